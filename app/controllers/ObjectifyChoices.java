@@ -0,0 +1,51 @@
+package controllers;
+
+import play.Play;
+import play.db.Model;
+import play.modules.objectify.ObjectifyChoice;
+import play.modules.objectify.ObjectifyModelLoader;
+import play.mvc.Controller;
+
+import java.util.List;
+
+/**
+ * Serves the choices of CRUD relation fields as JSON for autocompletion, for kinds too large to be listed in full.
+ * As with CRUD, extend this controller (typically with {@code @With(Secure.class)}) and route to the subclass:
+ * <pre>
+ * GET     /admin/choices          Choices.autocomplete
+ * </pre>
+ * Choices are looked up via the {@link ObjectifyModelLoader} of the model owning the field, so that any filters
+ * it applies (such as the current owner) still hold.
+ *
+ * @author David Cheong
+ * @since 19/10/2010
+ */
+public abstract class ObjectifyChoices extends Controller {
+
+    /**
+     * Renders the choices of a relation field matching the text supplied.
+     *
+     * @param type the class name of the model owning the field
+     * @param field the field name
+     * @param q the text to search for
+     * @param max the maximum number of choices, capped by "objectify.choices.autocomplete.max" (defaults to 20)
+     */
+    @SuppressWarnings({"unchecked"})
+    public static void autocomplete(String type, String field, String q, Integer max) {
+        Class<?> modelClass = Play.classloader.getClassIgnoreCase(type);
+        if (modelClass == null || !Model.class.isAssignableFrom(modelClass)) {
+            notFound(type);
+        }
+        Model.Factory factory = Model.Manager.factoryFor((Class<? extends Model>) modelClass);
+        if (!(factory instanceof ObjectifyModelLoader)) {
+            notFound(type);
+        }
+        int limit = Integer.parseInt(Play.configuration.getProperty("objectify.choices.autocomplete.max", "20"));
+        if (max != null && max > 0 && max < limit) {
+            limit = max;
+        }
+        List<ObjectifyChoice> choices = ((ObjectifyModelLoader) factory).searchChoices(field, q, limit);
+        renderJSON(choices);
+    }
+
+}
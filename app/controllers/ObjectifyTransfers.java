@@ -0,0 +1,78 @@
+package controllers;
+
+import play.Play;
+import play.modules.objectify.ObjectifyTransfer;
+import play.mvc.Before;
+import play.mvc.Controller;
+import play.mvc.Http;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Serves the bulk export and import of kinds used by the "objectify:export" and "objectify:import" play
+ * commands, see {@link ObjectifyTransfer}. Extend this controller and route to the subclass:
+ * <pre>
+ * GET     /objectify/export       Transfers.exportKind
+ * POST    /objectify/import       Transfers.importKind
+ * </pre>
+ * Requests must carry the secret configured as "objectify.transfer.secret" in the "X-Objectify-Secret" header;
+ * both actions respond with a 404 if no secret is configured.
+ *
+ * @author David Cheong
+ * @since 19/10/2010
+ */
+public abstract class ObjectifyTransfers extends Controller {
+
+    public static final String SECRET_HEADER = "X-Objectify-Secret";
+    public static final String CURSOR_HEADER = "X-Objectify-Cursor";
+
+    @Before
+    static void checkSecret() {
+        String secret = Play.configuration.getProperty("objectify.transfer.secret");
+        if (secret == null || secret.trim().length() == 0) {
+            notFound();
+        }
+        Http.Header header = request.headers.get(SECRET_HEADER.toLowerCase());
+        if (header == null || !secret.trim().equals(header.value())) {
+            forbidden();
+        }
+    }
+
+    /**
+     * Renders a page of the entities of a kind, one per line, with the cursor of the next page, if any, in the
+     * "X-Objectify-Cursor" header.
+     *
+     * @param kind the kind
+     * @param cursor the cursor of the page, if not the first
+     * @param limit the maximum number of entities
+     * @throws IOException if unable to write
+     */
+    public static void exportKind(String kind, String cursor, int limit) throws IOException {
+        if (kind == null || kind.length() == 0) {
+            notFound();
+        }
+        response.contentType = "application/x-ndjson; charset=utf-8";
+        Writer writer = new OutputStreamWriter(response.out, "UTF-8");
+        String next = ObjectifyTransfer.exportPage(kind, cursor, limit, writer);
+        writer.flush();
+        if (next != null) {
+            response.setHeader(CURSOR_HEADER, next);
+        }
+        ok();
+    }
+
+    /**
+     * Imports the entities posted one per line, rendering the number imported.
+     *
+     * @throws IOException if unable to read
+     */
+    public static void importKind() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(request.body, "UTF-8"));
+        renderText(ObjectifyTransfer.importEntities(reader));
+    }
+
+}
@@ -3,6 +3,7 @@ package extensions;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.googlecode.objectify.Key;
 import play.modules.objectify.ObjectifyService;
+import play.modules.objectify.Ref;
 import play.templates.JavaExtensions;
 
 /**
@@ -30,6 +31,9 @@ public class ObjectifyKeyExtensions extends JavaExtensions {
     }
     
     public static <T> T fetch(Key<T> key) {
+        if (key instanceof Ref) {
+            return ((Ref<T>) key).get();
+        }
         return ObjectifyService.find(key, false);
     }
 
@@ -0,0 +1,507 @@
+package play.modules.objectify.load;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.CookieHandler;
+import java.net.CookieManager;
+import java.net.CookiePolicy;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A load-test driver for the showcase application, replaying a weighted mix of the Flights, Passengers and
+ * Weathers flows (listing, paging, searching, creating and editing) at a fixed concurrency for a fixed
+ * duration. It reports requests per second, latency percentiles and datastore RPCs per request for each flow,
+ * the latter read from the "X-Objectify-RPCs" header added by the module when "objectify.metrics.header" is
+ * true. Results are also written as JSON so that runs may be compared across releases.
+ * <p/>
+ * Settings are read from the properties file given as the first argument (see loadtest.properties) and
+ * may be overridden by system properties of the same name.
+ *
+ * @author David Cheong
+ * @since 19/10/2010
+ */
+public class LoadTest {
+
+    protected static final String[] PILOTS = {"Dave", "John", "Mary", "Kate", "Peter", "Sarah", "Tom", "Anna"};
+    protected static final String[] CITIES = {"AUCKLAND", "LONDON", "SYDNEY", "SINGAPORE", "PARIS", "TOKYO"};
+    protected static final int TIMEOUT = 30000;
+    protected static final Pattern FLIGHT_ID = Pattern.compile("/flights/(\\d+)");
+    protected static final Pattern SELECTED_KEY = Pattern.compile("<option value=\"([^\"]+)\"\\s*selected");
+
+    protected Properties settings;
+    protected String url;
+    protected Map<String, Integer> mix = new LinkedHashMap<String, Integer>();
+    protected int totalWeight;
+    protected Map<String, FlowStats> stats = new LinkedHashMap<String, FlowStats>();
+    protected volatile boolean recording;
+    protected volatile boolean running = true;
+
+    public LoadTest(Properties settings) {
+        this.settings = settings;
+        this.url = get("url");
+        for (String entry : get("mix").split(",")) {
+            String[] pair = entry.trim().split(":");
+            int weight = Integer.parseInt(pair[1].trim());
+            mix.put(pair[0].trim(), weight);
+            stats.put(pair[0].trim(), new FlowStats());
+            totalWeight += weight;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Properties settings = new Properties();
+        if (args.length > 0) {
+            InputStream in = new FileInputStream(args[0]);
+            try {
+                settings.load(in);
+            }
+            finally {
+                in.close();
+            }
+        }
+        for (String name : settings.stringPropertyNames()) {
+            if (System.getProperty(name) != null) {
+                settings.setProperty(name, System.getProperty(name));
+            }
+        }
+        CookieHandler.setDefault(new ThreadCookieHandler());
+        new LoadTest(settings).run();
+    }
+
+    protected String get(String name) {
+        String value = settings.getProperty(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing load-test setting: " + name);
+        }
+        return value.trim();
+    }
+
+    public void run() throws Exception {
+
+        int threads = Integer.parseInt(get("threads"));
+        long warmup = Long.parseLong(get("warmup")) * 1000L;
+        long duration = Long.parseLong(get("duration")) * 1000L;
+
+        waitForServer(Long.parseLong(get("startTimeout")) * 1000L);
+
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            final Client client = new Client(i);
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        client.login();
+                        while (running) {
+                            try {
+                                client.runFlow(pickFlow(client.random));
+                            }
+                            catch (IOException e) {
+                                // already recorded as an error of the flow, keep the client running
+                            }
+                        }
+                    }
+                    catch (Exception e) {
+                        System.err.println("Load-test client failed: " + e);
+                    }
+                    finally {
+                        done.countDown();
+                    }
+                }
+            }, "load-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        System.out.println("Warming up for " + warmup / 1000 + "s with " + threads + " clients");
+        Thread.sleep(warmup);
+        recording = true;
+        long start = System.currentTimeMillis();
+        System.out.println("Recording for " + duration / 1000 + "s");
+        Thread.sleep(duration);
+        recording = false;
+        long elapsed = System.currentTimeMillis() - start;
+        running = false;
+        done.await();
+
+        report(threads, elapsed);
+
+    }
+
+    protected String pickFlow(Random random) {
+        int n = random.nextInt(totalWeight);
+        for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+            n -= entry.getValue();
+            if (n < 0) {
+                return entry.getKey();
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    protected void waitForServer(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (true) {
+            try {
+                HttpURLConnection connection = (HttpURLConnection) new URL(url + "/").openConnection();
+                connection.setInstanceFollowRedirects(false);
+                connection.setConnectTimeout(TIMEOUT);
+                connection.setReadTimeout(TIMEOUT);
+                connection.getResponseCode();
+                connection.disconnect();
+                return;
+            }
+            catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException("Showcase not reachable at " + url, e);
+                }
+                Thread.sleep(1000);
+            }
+        }
+    }
+
+    protected void report(int threads, long elapsed) throws IOException {
+        FlowStats total = new FlowStats();
+        StringBuilder json = new StringBuilder();
+        json.append("{\"url\":\"").append(url).append("\",\"threads\":").append(threads)
+                .append(",\"seconds\":").append(elapsed / 1000.0).append(",\"flows\":[");
+        System.out.println();
+        System.out.println(String.format(Locale.US, "%-24s %8s %8s %8s %8s %8s %8s %8s %8s", "flow", "requests", "errors", "req/s", "p50 ms", "p90 ms", "p99 ms", "max ms", "rpcs/req"));
+        boolean first = true;
+        for (Map.Entry<String, FlowStats> entry : stats.entrySet()) {
+            FlowStats flow = entry.getValue();
+            total.merge(flow);
+            System.out.println(flow.format(entry.getKey(), elapsed));
+            json.append(first ? "" : ",").append(flow.toJson(entry.getKey(), elapsed));
+            first = false;
+        }
+        System.out.println(total.format("total", elapsed));
+        json.append("],\"total\":").append(total.toJson("total", elapsed)).append("}");
+
+        String results = settings.getProperty("results");
+        if (results != null && results.trim().length() > 0) {
+            File file = new File(results.trim());
+            if (file.getParentFile() != null) {
+                file.getParentFile().mkdirs();
+            }
+            FileWriter writer = new FileWriter(file);
+            try {
+                writer.write(json.toString());
+            }
+            finally {
+                writer.close();
+            }
+            System.out.println("Load-test results written to " + file);
+        }
+    }
+
+    /**
+     * A simulated user, logged in with its own cookies, remembering the flights it has seen.
+     */
+    protected class Client {
+
+        protected Random random;
+        protected String email;
+        protected List<String> flightIds = new ArrayList<String>();
+
+        public Client(int index) {
+            this.random = new Random(index);
+            this.email = "load" + index + "@example.com";
+        }
+
+        public void login() throws IOException {
+            String login = get("login").replace("${email}", URLEncoder.encode(email, "UTF-8"));
+            request("GET", login, null);
+        }
+
+        public void runFlow(String flow) throws IOException {
+            if (flow.equals("flights.index")) {
+                record(flow, "GET", "/flights", null);
+            }
+            else if (flow.equals("flights.create")) {
+                record(flow, "POST", "/flights/create", flightParams(null));
+            }
+            else if (flow.equals("flights.edit")) {
+                String id = pickFlightId();
+                if (id != null) {
+                    record(flow, "GET", "/flights/" + id, null);
+                }
+            }
+            else if (flow.equals("flights.update")) {
+                String id = pickFlightId();
+                if (id != null) {
+                    record(flow, "POST", "/flights/" + id, flightParams(id));
+                }
+            }
+            else if (flow.equals("passengers.index")) {
+                String id = pickFlightId();
+                if (id != null) {
+                    record(flow, "GET", "/flights/" + id + "/passengers", null);
+                }
+            }
+            else if (flow.equals("passengers.create")) {
+                String id = pickFlightId();
+                if (id != null) {
+                    String page = record(flow, "GET", "/flights/" + id + "/passengers/create", null);
+                    Matcher matcher = SELECTED_KEY.matcher(page);
+                    if (matcher.find()) {
+                        Map<String, String> params = new LinkedHashMap<String, String>();
+                        params.put("passenger.firstName", pick(PILOTS));
+                        params.put("passenger.lastName", pick(PILOTS) + "son");
+                        params.put("passenger.flight", matcher.group(1));
+                        record(flow, "POST", "/flights/" + id + "/passengers/create", params);
+                    }
+                }
+            }
+            else if (flow.equals("admin.flights.page")) {
+                record(flow, "GET", "/admin/flightsadmin?page=" + (1 + random.nextInt(3)) + "&orderBy=pilot", null);
+            }
+            else if (flow.equals("admin.flights.search")) {
+                record(flow, "GET", "/admin/flightsadmin?search=" + URLEncoder.encode("pilot:" + pick(PILOTS).substring(0, 2), "UTF-8"), null);
+            }
+            else if (flow.equals("admin.weathers.page")) {
+                record(flow, "GET", "/admin/weathers?page=" + (1 + random.nextInt(3)), null);
+            }
+            else if (flow.equals("admin.weathers.search")) {
+                record(flow, "GET", "/admin/weathers?search=" + URLEncoder.encode(pick(new String[]{"rain", "fog", "clear"}), "UTF-8"), null);
+            }
+            else if (flow.equals("admin.weathers.blank")) {
+                record(flow, "GET", "/admin/weathers/new", null);
+            }
+            else if (flow.equals("admin.weathers.create")) {
+                Map<String, String> params = new LinkedHashMap<String, String>();
+                params.put("object.date", new SimpleDateFormat(get("dateFormat")).format(new Date()));
+                params.put("object.city", pick(CITIES));
+                params.put("object.description", pick(new String[]{"Light rain", "Morning fog", "Clear skies"}));
+                params.put("object.temperature", String.valueOf(random.nextInt(35)));
+                params.put("object.safeToFly", String.valueOf(random.nextBoolean()));
+                record(flow, "POST", "/admin/weathers", params);
+            }
+            else {
+                throw new IllegalArgumentException("Unknown load-test flow: " + flow);
+            }
+        }
+
+        protected Map<String, String> flightParams(String id) {
+            Map<String, String> params = new LinkedHashMap<String, String>();
+            if (id != null) {
+                params.put("flight.id", id);
+            }
+            params.put("flight.pilot", pick(PILOTS));
+            params.put("flight.origin", pick(CITIES));
+            params.put("flight.destination", pick(CITIES));
+            params.put("flight.price", String.valueOf(100 + random.nextInt(2000)));
+            params.put("flight.note.text", "Load test");
+            return params;
+        }
+
+        protected String pickFlightId() throws IOException {
+            if (flightIds.isEmpty()) {
+                record("flights.index", "GET", "/flights", null);
+                if (flightIds.isEmpty()) {
+                    record("flights.create", "POST", "/flights/create", flightParams(null));
+                    return null;
+                }
+            }
+            return flightIds.get(random.nextInt(flightIds.size()));
+        }
+
+        protected String pick(String[] values) {
+            return values[random.nextInt(values.length)];
+        }
+
+        protected String record(String flow, String method, String path, Map<String, String> params) throws IOException {
+            long start = System.nanoTime();
+            Response response = null;
+            try {
+                response = request(method, path, params);
+                return response.body;
+            }
+            finally {
+                long nanos = System.nanoTime() - start;
+                if (recording) {
+                    FlowStats flowStats = stats.get(flow);
+                    if (flowStats != null) {
+                        flowStats.record(nanos, response, response == null || response.status >= 400);
+                    }
+                }
+                if (response != null) {
+                    Matcher matcher = FLIGHT_ID.matcher(response.body);
+                    while (matcher.find() && flightIds.size() < 100) {
+                        if (!flightIds.contains(matcher.group(1))) {
+                            flightIds.add(matcher.group(1));
+                        }
+                    }
+                }
+            }
+        }
+
+        protected Response request(String method, String path, Map<String, String> params) throws IOException {
+            ThreadCookieHandler.client.set(this);
+            HttpURLConnection connection = (HttpURLConnection) new URL(url + path).openConnection();
+            connection.setRequestMethod(method);
+            connection.setConnectTimeout(TIMEOUT);
+            connection.setReadTimeout(TIMEOUT);
+            connection.setInstanceFollowRedirects(true);
+            if (params != null) {
+                StringBuilder body = new StringBuilder();
+                for (Map.Entry<String, String> param : params.entrySet()) {
+                    body.append(body.length() == 0 ? "" : "&")
+                            .append(URLEncoder.encode(param.getKey(), "UTF-8")).append("=")
+                            .append(URLEncoder.encode(param.getValue(), "UTF-8"));
+                }
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+                OutputStream out = connection.getOutputStream();
+                try {
+                    out.write(body.toString().getBytes("UTF-8"));
+                }
+                finally {
+                    out.close();
+                }
+            }
+            Response response = new Response();
+            response.status = connection.getResponseCode();
+            String rpcs = connection.getHeaderField("X-Objectify-RPCs");
+            response.rpcs = rpcs != null ? Integer.parseInt(rpcs) : -1;
+            InputStream in = response.status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            response.body = in != null ? read(in) : "";
+            return response;
+        }
+
+        protected CookieManager cookies = new CookieManager(null, CookiePolicy.ACCEPT_ALL);
+
+    }
+
+    protected static String read(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toString("UTF-8");
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    protected static class Response {
+
+        public int status;
+        public int rpcs;
+        public String body;
+
+    }
+
+    /**
+     * Routes cookies to the {@link CookieManager} of the client making the request on the current thread, so
+     * that each client holds its own session.
+     */
+    protected static class ThreadCookieHandler extends CookieHandler {
+
+        protected static ThreadLocal<Client> client = new ThreadLocal<Client>();
+
+        @Override
+        public Map<String, List<String>> get(java.net.URI uri, Map<String, List<String>> headers) throws IOException {
+            Client current = client.get();
+            return current != null ? current.cookies.get(uri, headers) : Collections.<String, List<String>>emptyMap();
+        }
+
+        @Override
+        public void put(java.net.URI uri, Map<String, List<String>> headers) throws IOException {
+            Client current = client.get();
+            if (current != null) {
+                current.cookies.put(uri, headers);
+            }
+        }
+
+    }
+
+    /**
+     * The latencies, errors and datastore RPCs recorded for a flow.
+     */
+    protected static class FlowStats {
+
+        protected long[] latencies = new long[1024];
+        protected int count;
+        protected int errors;
+        protected long rpcs;
+        protected int rpcSamples;
+
+        public synchronized void record(long nanos, Response response, boolean error) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = nanos;
+            if (error) {
+                errors++;
+            }
+            if (response != null && response.rpcs >= 0) {
+                rpcs += response.rpcs;
+                rpcSamples++;
+            }
+        }
+
+        public synchronized void merge(FlowStats other) {
+            for (int i = 0; i < other.count; i++) {
+                if (count == latencies.length) {
+                    latencies = Arrays.copyOf(latencies, count * 2);
+                }
+                latencies[count++] = other.latencies[i];
+            }
+            errors += other.errors;
+            rpcs += other.rpcs;
+            rpcSamples += other.rpcSamples;
+        }
+
+        public synchronized double percentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(count * percentile / 100.0) - 1;
+            return sorted[Math.max(0, Math.min(index, count - 1))] / 1000000.0;
+        }
+
+        public synchronized double rpcsPerRequest() {
+            return rpcSamples == 0 ? -1 : (double) rpcs / rpcSamples;
+        }
+
+        public String format(String name, long elapsed) {
+            return String.format(Locale.US, "%-24s %8d %8d %8.1f %8.1f %8.1f %8.1f %8.1f %8s", name, count, errors,
+                    count * 1000.0 / elapsed, percentile(50), percentile(90), percentile(99), percentile(100),
+                    rpcSamples == 0 ? "-" : String.format(Locale.US, "%.1f", rpcsPerRequest()));
+        }
+
+        public String toJson(String name, long elapsed) {
+            return String.format(Locale.US, "{\"flow\":\"%s\",\"requests\":%d,\"errors\":%d,\"rps\":%.2f,\"p50\":%.2f,\"p90\":%.2f,\"p99\":%.2f,\"max\":%.2f,\"rpcsPerRequest\":%.2f}",
+                    name, count, errors, count * 1000.0 / elapsed, percentile(50), percentile(90), percentile(99), percentile(100), rpcsPerRequest());
+        }
+
+    }
+
+}
@@ -0,0 +1,32 @@
+package play.modules.objectify.bench;
+
+import play.modules.objectify.ObjectifyModel;
+import play.modules.objectify.Searchable;
+
+import javax.persistence.Embedded;
+import javax.persistence.Id;
+import java.util.List;
+
+/**
+ * A Flight-shaped model mirroring the showcase.
+ *
+ * @author David Cheong
+ * @since 19/10/2010
+ */
+public class BenchFlight extends ObjectifyModel<BenchFlight> {
+
+    @Id public Long id;
+    @Searchable public String pilot;
+    public float price;
+    public BenchCity origin;
+    public BenchCity destination;
+    public List<BenchCity> stopovers;
+    @Embedded public BenchNote note = new BenchNote();
+    public String owner;
+
+    @Override
+    public String toString() {
+        return pilot;
+    }
+
+}
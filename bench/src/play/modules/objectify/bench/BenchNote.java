@@ -0,0 +1,11 @@
+package play.modules.objectify.bench;
+
+/**
+ * @author David Cheong
+ * @since 19/10/2010
+ */
+public class BenchNote {
+
+    public String text;
+
+}
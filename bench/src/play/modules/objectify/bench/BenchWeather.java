@@ -0,0 +1,30 @@
+package play.modules.objectify.bench;
+
+import com.googlecode.objectify.Key;
+import play.modules.objectify.ObjectifyModel;
+
+import javax.persistence.Embedded;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A Weather-shaped model mirroring the showcase.
+ *
+ * @author David Cheong
+ * @since 19/10/2010
+ */
+public class BenchWeather extends ObjectifyModel<BenchWeather> {
+
+    @Id @GeneratedValue public Long id;
+    public Date date;
+    public BenchCity city;
+    public String description;
+    public int temperature;
+    public boolean safeToFly;
+    @Embedded public BenchNote note = new BenchNote();
+    public List<Key<BenchFlight>> affectedFlights;
+    public String owner;
+
+}
@@ -0,0 +1,97 @@
+package play.modules.objectify.bench;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import play.Logger;
+import play.Play;
+import play.classloading.ApplicationClasses;
+import play.classloading.ApplicationClassloader;
+import play.modules.objectify.ObjectifyService;
+import play.vfs.VirtualFile;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Bootstraps the minimum of Play needed by the module outside of a running application, and the local
+ * datastore stand-in used by benchmarks touching the datastore.
+ *
+ * @author David Cheong
+ * @since 19/10/2010
+ */
+public class BenchmarkSupport {
+
+    private static boolean initialized;
+
+    /**
+     * Initializes Play's configuration and classloader and registers the benchmark models, once per JVM.
+     */
+    public static synchronized void init() {
+        if (initialized) {
+            return;
+        }
+        Logger.forceJuli = true;
+        Play.configuration = new Properties();
+        Play.configuration.setProperty("objectify.metrics", System.getProperty("objectify.metrics", "true"));
+        Play.mode = Play.Mode.PROD;
+        Play.classes = new ApplicationClasses();
+        Play.javaPath = new ArrayList<VirtualFile>();
+        Play.applicationPath = new File(System.getProperty("java.io.tmpdir"));
+        Play.classloader = new ApplicationClassloader();
+        ObjectifyService.register(BenchFlight.class);
+        ObjectifyService.register(BenchWeather.class);
+        initialized = true;
+    }
+
+    /**
+     * Creates and sets up the local datastore and memcache for the current thread.
+     *
+     * @return the helper to tear down once done
+     */
+    public static LocalServiceTestHelper setUpDatastore() {
+        init();
+        LocalServiceTestHelper helper = new LocalServiceTestHelper(
+                new LocalDatastoreServiceTestConfig().setNoStorage(true),
+                new LocalMemcacheServiceTestConfig());
+        helper.setUp();
+        return helper;
+    }
+
+    /**
+     * Returns Flight-shaped HTTP params.
+     *
+     * @return the params
+     */
+    public static Map<String, String[]> flightParams() {
+        Map<String, String[]> params = new HashMap<String, String[]>();
+        params.put("flight.pilot", new String[]{"Dave"});
+        params.put("flight.price", new String[]{"1200.5"});
+        params.put("flight.origin", new String[]{"AUCKLAND"});
+        params.put("flight.destination", new String[]{"LONDON"});
+        params.put("flight.stopovers", new String[]{"SYDNEY", "SINGAPORE"});
+        params.put("flight.note.text", new String[]{"Window seat"});
+        params.put("flight.owner", new String[]{"dave@example.com"});
+        return params;
+    }
+
+    /**
+     * Returns Weather-shaped HTTP params.
+     *
+     * @return the params
+     */
+    public static Map<String, String[]> weatherParams() {
+        Map<String, String[]> params = new HashMap<String, String[]>();
+        params.put("weather.city", new String[]{"LONDON"});
+        params.put("weather.description", new String[]{"Light rain clearing by the evening"});
+        params.put("weather.temperature", new String[]{"14"});
+        params.put("weather.safeToFly", new String[]{"true"});
+        params.put("weather.note.text", new String[]{"Fog warning"});
+        params.put("weather.owner", new String[]{"dave@example.com"});
+        return params;
+    }
+
+}
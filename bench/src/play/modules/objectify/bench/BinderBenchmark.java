@@ -0,0 +1,55 @@
+package play.modules.objectify.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import play.modules.objectify.ObjectifyBinder;
+
+import java.lang.annotation.Annotation;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks {@link ObjectifyBinder} binding new instances from HTTP params.
+ *
+ * @author David Cheong
+ * @since 19/10/2010
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BinderBenchmark {
+
+    private ObjectifyBinder binder;
+    private Map<String, String[]> flightParams;
+    private Map<String, String[]> weatherParams;
+
+    @Setup
+    public void setup() {
+        BenchmarkSupport.init();
+        binder = new ObjectifyBinder();
+        flightParams = BenchmarkSupport.flightParams();
+        weatherParams = BenchmarkSupport.weatherParams();
+    }
+
+    @Benchmark
+    public Object bindFlight() {
+        return binder.bind("flight", BenchFlight.class, BenchFlight.class, new Annotation[0], new HashMap<String, String[]>(flightParams));
+    }
+
+    @Benchmark
+    public Object editFlight() {
+        return binder.edit(new BenchFlight(), "flight", new HashMap<String, String[]>(flightParams));
+    }
+
+    @Benchmark
+    public Object editWeather() {
+        return binder.edit(new BenchWeather(), "weather", new HashMap<String, String[]>(weatherParams));
+    }
+
+}
@@ -0,0 +1,69 @@
+package play.modules.objectify.bench;
+
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.Key;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import play.modules.objectify.ObjectifyService;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks {@link ObjectifyService} find and put against the local datastore stand-in. The absolute numbers
+ * reflect the stand-in rather than the production datastore, but regressions in the module's own overhead
+ * (translation, caching, metrics) show up here.
+ *
+ * @author David Cheong
+ * @since 19/10/2010
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DatastoreBenchmark {
+
+    private LocalServiceTestHelper helper;
+    private Long id;
+    private long nextId = 1000;
+
+    @Setup
+    public void setup() {
+        helper = BenchmarkSupport.setUpDatastore();
+        BenchFlight flight = newFlight(1L);
+        ObjectifyService.put(flight);
+        id = flight.id;
+    }
+
+    @TearDown
+    public void teardown() {
+        helper.tearDown();
+    }
+
+    @Benchmark
+    public BenchFlight find() {
+        return ObjectifyService.find(BenchFlight.class, id, false);
+    }
+
+    @Benchmark
+    public Key<BenchFlight> put() {
+        return ObjectifyService.put(newFlight(nextId++));
+    }
+
+    private static BenchFlight newFlight(Long id) {
+        BenchFlight flight = new BenchFlight();
+        flight.id = id;
+        flight.pilot = "Dave";
+        flight.price = 1200.5f;
+        flight.origin = BenchCity.AUCKLAND;
+        flight.destination = BenchCity.LONDON;
+        flight.note.text = "Window seat";
+        flight.owner = "dave@example.com";
+        return flight;
+    }
+
+}
@@ -0,0 +1,75 @@
+package play.modules.objectify.bench;
+
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.Key;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import play.modules.objectify.ObjectifyFactory;
+import play.modules.objectify.ObjectifyService;
+import play.modules.objectify.Utils;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks key conversions of {@link ObjectifyFactory} and field lookups of {@link Utils}. The local datastore
+ * is set up as key strings are qualified by the application id of the environment.
+ *
+ * @author David Cheong
+ * @since 19/10/2010
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class KeyBenchmark {
+
+    private LocalServiceTestHelper helper;
+    private ObjectifyFactory factory;
+    private Key<BenchFlight> key;
+    private String keyStr;
+
+    @Setup
+    public void setup() {
+        helper = BenchmarkSupport.setUpDatastore();
+        factory = ObjectifyService.factory();
+        key = factory.getKey(BenchFlight.class, 42L);
+        keyStr = factory.getKeyStr(key);
+    }
+
+    @TearDown
+    public void teardown() {
+        helper.tearDown();
+    }
+
+    @Benchmark
+    public Key<BenchFlight> getKeyFromPairs() {
+        return factory.getKey(BenchFlight.class, 42L);
+    }
+
+    @Benchmark
+    public Key<BenchFlight> getKeyFromString() {
+        return factory.getKey(keyStr);
+    }
+
+    @Benchmark
+    public String getKeyStr() {
+        return factory.getKeyStr(key);
+    }
+
+    @Benchmark
+    public Field findField() {
+        return Utils.findField(BenchWeather.class, "description");
+    }
+
+    @Benchmark
+    public Field findNestedField() {
+        return Utils.findField(BenchWeather.class, "note.text");
+    }
+
+}
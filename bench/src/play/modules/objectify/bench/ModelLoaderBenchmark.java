@@ -0,0 +1,79 @@
+package play.modules.objectify.bench;
+
+import com.googlecode.objectify.Query;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import play.db.Model;
+import play.modules.objectify.ObjectifyModelLoader;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks {@link ObjectifyModelLoader} CRUD search parsing and property listing.
+ *
+ * @author David Cheong
+ * @since 19/10/2010
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ModelLoaderBenchmark {
+
+    private LocalServiceTestHelper helper;
+    private Loader loader;
+
+    @Setup
+    public void setup() {
+        helper = BenchmarkSupport.setUpDatastore();
+        loader = new Loader();
+        loader.init(BenchFlight.class);
+    }
+
+    @TearDown
+    public void teardown() {
+        helper.tearDown();
+    }
+
+    @Benchmark
+    public Object prepareFetchQuery(Search search) {
+        return loader.prepareFetchQuery(search.keywords, "pilot", "ASC");
+    }
+
+    @Benchmark
+    public List<Model.Property> listProperties() {
+        return loader.listProperties();
+    }
+
+    /**
+     * The CRUD search keywords, from a bare term to several fields including a quoted value.
+     */
+    @State(Scope.Benchmark)
+    public static class Search {
+
+        @Param({"Dave", "pilot:Dave", "owner:\"dave smith\" price:12.5", "price:12.5 origin:AUCKLAND Dave"})
+        public String keywords;
+
+    }
+
+    /**
+     * Exposes the protected query preparation to the benchmark.
+     */
+    public static class Loader extends ObjectifyModelLoader {
+
+        @Override
+        public Query<? extends Model> prepareFetchQuery(String keywords, String orderBy, String orderDirection) {
+            return super.prepareFetchQuery(keywords, orderBy, orderDirection);
+        }
+
+    }
+
+}
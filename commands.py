@@ -1,15 +1,157 @@
 # Here you can create play commands that are specific to the module
-
-# Example below:
+#
+# play objectify:export --kind=Flight --file=flights.ndjson [--url=http://localhost:9000] [--batch=500]
+# play objectify:import --file=flights.ndjson [--url=http://localhost:9000] [--batch=500] [--workers=4]
+#
+# Both commands talk to the ObjectifyTransfers controller of the application (see its javadoc for the routes),
+# authenticating with the "objectify.transfer.secret" of application.conf unless --secret is given. Use --path
+# if the routes are not under /objectify.
 # ~~~~
+import getopt
+import os
+import sys
+import threading
+import time
+import urllib
+import urllib2
+import Queue
+
+TRANSFER_OPTIONS = ['url=', 'path=', 'secret=', 'kind=', 'file=', 'batch=', 'workers=']
+
+def transfer_options(args):
+	optlist, args = getopt.getopt(args, '', TRANSFER_OPTIONS)
+	options = {'url': 'http://localhost:9000', 'path': '/objectify', 'batch': '500', 'workers': '4'}
+	for o, a in optlist:
+		options[o[2:]] = a
+	if 'secret' not in options:
+		options['secret'] = transfer_secret()
+	if not options['secret']:
+		raise getopt.GetoptError('no secret, specify --secret or objectify.transfer.secret in application.conf')
+	if 'file' not in options:
+		raise getopt.GetoptError('--file is required')
+	return options
+
+def transfer_secret():
+	conf = os.path.join(globals().get('application_path', '.'), 'conf', 'application.conf')
+	secret = None
+	if os.path.exists(conf):
+		for line in open(conf):
+			line = line.strip()
+			if line.startswith('objectify.transfer.secret=') or (line.startswith('%dev.objectify.transfer.secret=') and not secret):
+				secret = line.split('=', 1)[1].strip()
+	return secret
+
+def transfer_report(label, count, size, start):
+	elapsed = max(time.time() - start, 0.001)
+	print "~ %s %d entities, %.1f KB in %.1f s (%.0f entities/s, %.1f KB/s)" % (label, count, size / 1024.0, elapsed, count / elapsed, size / 1024.0 / elapsed)
+
+def transfer_export(options):
+	if 'kind' not in options:
+		raise getopt.GetoptError('--kind is required')
+	out = open(options['file'], 'wb')
+	count, size, start, cursor = 0, 0, time.time(), None
+	try:
+		while True:
+			query = {'kind': options['kind'], 'limit': options['batch']}
+			if cursor:
+				query['cursor'] = cursor
+			request = urllib2.Request('%s%s/export?%s' % (options['url'], options['path'], urllib.urlencode(query)))
+			request.add_header('X-Objectify-Secret', options['secret'])
+			response = urllib2.urlopen(request)
+			data = response.read()
+			cursor = response.info().getheader('X-Objectify-Cursor')
+			out.write(data)
+			count += data.count('\n')
+			size += len(data)
+			transfer_report('Exported', count, size, start)
+			if not cursor:
+				break
+	finally:
+		out.close()
+
+def transfer_import(options):
+	batch, workers = int(options['batch']), int(options['workers'])
+	chunks = Queue.Queue(workers * 2)
+	totals = {'count': 0, 'size': 0, 'errors': []}
+	lock = threading.Lock()
+	start = time.time()
+
+	def work():
+		while True:
+			chunk = chunks.get()
+			if chunk is None:
+				return
+			try:
+				request = urllib2.Request('%s%s/import' % (options['url'], options['path']), chunk)
+				request.add_header('X-Objectify-Secret', options['secret'])
+				request.add_header('Content-Type', 'application/x-ndjson; charset=utf-8')
+				imported = int(urllib2.urlopen(request).read().strip())
+				lock.acquire()
+				try:
+					totals['count'] += imported
+					totals['size'] += len(chunk)
+					transfer_report('Imported', totals['count'], totals['size'], start)
+				finally:
+					lock.release()
+			except Exception, err:
+				lock.acquire()
+				totals['errors'].append(str(err))
+				lock.release()
+
+	threads = [threading.Thread(target=work) for i in range(workers)]
+	for thread in threads:
+		thread.setDaemon(True)
+		thread.start()
+	lines = []
+	source = open(options['file'], 'rb')
+	try:
+		for line in source:
+			if line.strip():
+				lines.append(line)
+			if len(lines) >= batch:
+				chunks.put(''.join(lines))
+				lines = []
+		if lines:
+			chunks.put(''.join(lines))
+	finally:
+		source.close()
+		for thread in threads:
+			chunks.put(None)
+		for thread in threads:
+			thread.join()
+	transfer_report('Imported', totals['count'], totals['size'], start)
+	if totals['errors']:
+		print "~ %d batches failed, first error: %s" % (len(totals['errors']), totals['errors'][0])
+		sys.exit(-1)
+
+if play_command == 'objectify:export' or play_command == 'objectify:import':
+	try:
+		options = transfer_options(globals().get('remaining_args', sys.argv[2:]))
+		if play_command == 'objectify:export':
+			transfer_export(options)
+		else:
+			transfer_import(options)
+		sys.exit(0)
+
+	except getopt.GetoptError, err:
+		print "~ %s" % str(err)
+		print "~ "
+		sys.exit(-1)
+	except urllib2.HTTPError, err:
+		print "~ %s %s" % (err.code, err.msg)
+		sys.exit(-1)
+	except urllib2.URLError, err:
+		print "~ %s" % str(err.reason)
+		sys.exit(-1)
+
 if play_command == 'objectify:hello':
 	try:
 		print "~ Hello from objectify"
 		sys.exit(0)
-				
+
 	except getopt.GetoptError, err:
 		print "~ %s" % str(err)
 		print "~ "
 		sys.exit(-1)
-		
-	sys.exit(0)
\ No newline at end of file
+
+	sys.exit(0)
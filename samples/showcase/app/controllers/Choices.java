@@ -0,0 +1,13 @@
+package controllers;
+
+import play.mvc.With;
+
+/**
+ * @author David Cheong
+ * @since 19/10/2010
+ */
+@With(Secure.class)
+public class Choices extends ObjectifyChoices {
+
+
+}
@@ -1,14 +1,20 @@
 package controllers;
 
-import com.googlecode.objectify.Query;
 import models.City;
 import models.Flight;
 import play.data.validation.Valid;
 import play.data.validation.Validation;
+import play.i18n.Messages;
+import play.modules.objectify.Datastore;
+import play.modules.objectify.EntityView;
+import play.modules.objectify.ObjectifyETags;
 import play.mvc.Before;
 import play.mvc.Controller;
 import play.mvc.With;
 
+import javax.persistence.OptimisticLockException;
+import java.util.List;
+
 /**
  * @author David Cheong
  * @since 3/04/2010
@@ -22,7 +28,7 @@ public class Flights extends Controller {
     }
 
     public static void index() {
-        Query<Flight> flights = Flight.findAllByOwner();
+        List<EntityView<Flight>> flights = Datastore.view(Flight.findAllByOwner());
         render(flights);
     }
 
@@ -33,6 +39,7 @@ public class Flights extends Controller {
 
     public static void edit(Long id) {
         Flight flight = Flight.findById(id);
+        ObjectifyETags.checkModified(flight);
         render(flight);
     }
 
@@ -42,8 +49,19 @@ public class Flights extends Controller {
             render("@edit", flight);
         }
         else {
+            try {
+                flight.save();
+            }
+            catch (OptimisticLockException e) {
+                // keep the submitted values, taking the stored version so that saving again overwrites
+                Flight stored = Flight.findById(flight.id);
+                if (stored != null) {
+                    flight.version = stored.version;
+                }
+                flash.now("msg", Messages.get("flight.modified"));
+                render("@edit", flight);
+            }
             flash.put("msg", "Flight saved successfully");
-            flight.save();
             index();
         }
     }
@@ -1,6 +1,8 @@
 package controllers;
 
 import models.Flight;
+import play.modules.objectify.ObjectifyETags;
+import play.mvc.Before;
 import play.mvc.With;
 
 /**
@@ -11,5 +13,12 @@ import play.mvc.With;
 @CRUD.For(Flight.class)
 public class FlightsAdmin extends CRUD {
 
+    @Before(only = "show")
+    static void checkModified(Long id) {
+        Flight flight = Flight.findById(id, false);
+        if (flight != null) {
+            ObjectifyETags.checkModified(flight);
+        }
+    }
 
 }
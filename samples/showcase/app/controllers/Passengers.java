@@ -6,6 +6,7 @@ import models.Flight;
 import models.Passenger;
 import play.data.validation.Valid;
 import play.data.validation.Validation;
+import play.modules.objectify.Datastore;
 import play.mvc.Before;
 import play.mvc.Controller;
 import play.mvc.With;
@@ -24,7 +25,7 @@ public class Passengers extends Controller {
 
     public static void index(Long flightId) {
         Flight flight = Flight.findById(flightId, false);
-        Query<Passenger> passengers = Passenger.findByFlightId(flightId);
+        Query<Passenger> passengers = Datastore.include(Passenger.findByFlightId(flightId), "flight");
         render("Passengers/index.html", flight, passengers);
     }
 
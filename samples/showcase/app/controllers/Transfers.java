@@ -0,0 +1,10 @@
+package controllers;
+
+/**
+ * @author David Cheong
+ * @since 19/10/2010
+ */
+public class Transfers extends ObjectifyTransfers {
+
+
+}
@@ -9,7 +9,9 @@ import play.modules.objectify.*;
 import play.mvc.Scope;
 
 import javax.persistence.Embedded;
+import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
+import javax.persistence.Version;
 import java.util.List;
 
 /**
@@ -19,14 +21,15 @@ import java.util.List;
 @ManagedBy(Flight.Loader.class)
 public class Flight extends ObjectifyModel<Flight> {
 
-    @Id public Long id;
-    @Required public String pilot;
+    @Id @GeneratedValue public Long id;
+    @Required @Searchable public String pilot;
     public float price;
     @Required public City origin;
     @Required public City destination;
     public List<City> stopovers;
     @Embedded public Note note = new Note();
     public String owner;
+    @Version public long version;
 
     public static Flight findById(Long id) {
         return Datastore.find(Flight.class, id, true);
@@ -38,7 +41,7 @@ public class Flight extends ObjectifyModel<Flight> {
 
     public static Query<Flight> findAllByOwner() {
         return Datastore
-                .query(Flight.class)
+                .cachedQuery(Flight.class)
                 .filter("owner", Application.getUserEmail ())
                 .order("pilot");
     }
@@ -54,17 +57,11 @@ public class Flight extends ObjectifyModel<Flight> {
     }
 
     public static void deleteById(Long id) {
-        Datastore.beginTxn();
-        Passenger.deleteByFlightId(id);
-        Datastore.delete(Flight.class, id);
-        Datastore.commit();
+        Datastore.deleteCascade(Datastore.key(Flight.class, id));
     }
 
     public void delete() {
-        Datastore.beginTxn();
-        Passenger.deleteByFlightId(id);
-        Datastore.delete(this);
-        Datastore.commit();
+        deleteById(id);
     }
 
     @Override
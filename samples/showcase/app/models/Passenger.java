@@ -1,6 +1,5 @@
 package models;
 
-import com.google.appengine.api.datastore.QueryResultIterable;
 import com.googlecode.objectify.Key;
 import com.googlecode.objectify.Query;
 import com.googlecode.objectify.annotation.Parent;
@@ -20,8 +19,8 @@ import javax.persistence.Id;
 public class Passenger extends ObjectifyModel<Passenger> {
 
     @Id public Long id;
-    @Required public String firstName;
-    @Required public String lastName;
+    @Required @Searchable public String firstName;
+    @Required @Searchable public String lastName;
     @Required @Parent public Key<Flight> flight;
     public String owner;
 
@@ -58,13 +57,6 @@ public class Passenger extends ObjectifyModel<Passenger> {
         save();
     }
 
-    public static void deleteByFlightId(Long flightId) {
-        QueryResultIterable<Key<Passenger>> passengers = Datastore.query(Passenger.class)
-                .ancestor(Datastore.key(Flight.class, flightId))
-                .fetchKeys();
-        Datastore.delete(passengers);
-    }
-
     public void delete() {
         Datastore.delete(this);
     }
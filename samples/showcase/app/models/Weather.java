@@ -9,6 +9,8 @@ import play.modules.objectify.Datastore;
 import play.modules.objectify.ManagedBy;
 import play.modules.objectify.ObjectifyModel;
 import play.modules.objectify.ObjectifyModelLoader;
+import play.modules.objectify.Ref;
+import play.modules.objectify.Searchable;
 import play.mvc.Scope;
 
 import javax.persistence.Embedded;
@@ -21,17 +23,17 @@ import java.util.List;
  * @author David Cheong
  * @since 09/10/2010
  */
-@ManagedBy(Weather.Loader.class)
+@ManagedBy(value = Weather.Loader.class, profile = "listing")
 public class Weather extends ObjectifyModel<Weather> {
 
     @Id @GeneratedValue public Long id;
     @Required public Date date;
     @Required public City city;
-    @Required public String description;
+    @Required @Searchable public String description;
     @Required public int temperature;
     public boolean safeToFly;
     @Embedded public Note note = new Note();
-    public List<Key<Flight>> affectedFlights;
+    public List<Ref<Flight>> affectedFlights;
     public String owner;
 
     public Key<Weather> save() {
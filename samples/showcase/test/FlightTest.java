@@ -1,11 +1,38 @@
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.googlecode.objectify.impl.Transmog;
 import models.City;
 import models.Flight;
+import models.Weather;
 import org.junit.Before;
 import org.junit.Test;
+import play.Play;
+import play.exceptions.UnexpectedException;
 import play.modules.objectify.Datastore;
+import play.modules.objectify.EntityView;
+import play.modules.objectify.IncludeQuery;
+import play.modules.objectify.ObjectifyDirtyTracking;
+import play.modules.objectify.ObjectifyETags;
 import play.modules.objectify.ObjectifyFixtures;
+import play.modules.objectify.ObjectifyMetrics;
+import play.modules.objectify.ObjectifyMigration;
+import play.modules.objectify.Ref;
+import play.modules.objectify.Utils;
+import play.modules.objectify.ObjectifyScanner;
+import play.modules.objectify.ObjectifyTranslator;
+import play.modules.objectify.ObjectifyTransfer;
 import play.test.UnitTest;
 
+import javax.persistence.OptimisticLockException;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * @author David Cheong
  * @since 12/10/2010
@@ -62,6 +89,294 @@ public class FlightTest extends UnitTest {
         assertNull("Flight is not null", retrievedFlight);
     }
 
+    @Test
+    public void should_detect_concurrent_modification() {
+        Flight flight = put();
+        assertEquals("Flight version not correct", 1, flight.version);
+        Flight staleFlight = TestModelBuilder.createSimpleFlight("John", City.AUCKLAND, City.LONDON);
+        staleFlight.id = flight.id;
+        staleFlight.version = flight.version;
+        Datastore.put(flight);
+        assertEquals("Flight version not correct", 2, flight.version);
+        try {
+            Datastore.put(staleFlight);
+            fail("Concurrent modification not detected");
+        }
+        catch (OptimisticLockException e) {
+            assertEquals("Stale flight version changed", 1, staleFlight.version);
+        }
+        assertEquals("Flight pilot not correct", "Dave", Datastore.find(Flight.class, flight.id, false).pilot);
+    }
+
+    @Test
+    public void should_detect_concurrent_modification_in_batch() {
+        Flight flight = put();
+        Flight otherFlight = put();
+        Datastore.put(Arrays.asList(flight, otherFlight));
+        assertEquals("Flight version not correct", 2, flight.version);
+        assertEquals("Flight version not correct", 2, otherFlight.version);
+        Flight staleFlight = TestModelBuilder.createSimpleFlight("John", City.AUCKLAND, City.LONDON);
+        staleFlight.id = otherFlight.id;
+        staleFlight.version = 1;
+        flight.pilot = "Changed";
+        try {
+            Datastore.put(Arrays.asList(flight, staleFlight));
+            fail("Concurrent modification not detected");
+        }
+        catch (OptimisticLockException e) {
+            assertEquals("Flight version changed", 2, flight.version);
+        }
+        assertEquals("Flight written despite conflict", "Dave", Datastore.find(Flight.class, flight.id, false).pilot);
+    }
+
+    @Test
+    public void should_change_content_version_when_saved() {
+        Flight flight = put();
+        String etag = ObjectifyETags.getETag(flight);
+        assertEquals("Flight content version not correct", "1", flight.getContentVersion());
+        assertEquals("ETag not stable", etag, ObjectifyETags.getETag(Datastore.find(Flight.class, flight.id, false)));
+        Datastore.put(flight);
+        assertFalse("ETag not changed", etag.equals(ObjectifyETags.getETag(flight)));
+    }
+
+    @Test
+    public void should_export_and_import_flights() throws IOException {
+        Flight flight = put();
+        put();
+        StringWriter writer = new StringWriter();
+        String cursor = null;
+        int pages = 0;
+        do {
+            cursor = ObjectifyTransfer.exportPage("Flight", cursor, 1, writer);
+            pages++;
+        }
+        while (cursor != null);
+        assertEquals("Page count not correct", 3, pages);
+        ObjectifyFixtures.deleteAll();
+        int count = ObjectifyTransfer.importEntities(new BufferedReader(new StringReader(writer.toString())));
+        assertEquals("Import count not correct", 2, count);
+        Flight retrievedFlight = Datastore.find(Flight.class, flight.id, false);
+        assertNotNull("Flight is null", retrievedFlight);
+        assertEquals("Flight pilot not correct", flight.pilot, retrievedFlight.pilot);
+        assertEquals("Flight destination not correct", flight.destination, retrievedFlight.destination);
+        assertEquals("Flight version not correct", flight.version, retrievedFlight.version);
+    }
+
+    @Test
+    public void should_not_hand_out_imported_ids() throws IOException {
+        Flight flight = put();
+        Entity entity = new Entity(KeyFactory.createKey("Flight", flight.id + 1));
+        entity.setProperty("pilot", "Imported");
+        ObjectifyTransfer.importEntities(new BufferedReader(new StringReader(ObjectifyTransfer.toJson(entity).toString())));
+        Flight newFlight = put();
+        assertFalse("Imported id handed out", newFlight.id == flight.id + 1);
+        assertEquals("Imported flight overwritten", "Imported", Datastore.find(Flight.class, flight.id + 1, false).pilot);
+    }
+
+    @Test
+    public void should_migrate_flights() {
+        Flight flight = put();
+        put();
+        ObjectifyScanner.Stats stats = Datastore.migrate(Flight.class, "upperCasePilots", new ObjectifyMigration.Transform<Flight>() {
+            public boolean transform(Flight flight) {
+                flight.pilot = flight.pilot.toUpperCase();
+                return true;
+            }
+        });
+        assertEquals("Written count not correct", 2, stats.getWritten());
+        Flight retrievedFlight = Datastore.find(Flight.class, flight.id, false);
+        assertEquals("Flight pilot not correct", "DAVE", retrievedFlight.pilot);
+        assertEquals("Flight version not correct", flight.version, retrievedFlight.version);
+    }
+
+    @Test
+    public void should_not_resume_checkpoints_of_another_migration() {
+        put();
+        put();
+        try {
+            Datastore.migrate(Flight.class, "failing", new ObjectifyMigration.Transform<Flight>() {
+                public boolean transform(Flight flight) {
+                    throw new IllegalStateException("Failed");
+                }
+            });
+            fail("Migration did not fail");
+        }
+        catch (UnexpectedException e) {
+            // expected
+        }
+        ObjectifyScanner.Stats stats = Datastore.migrate(Flight.class, "upperCasePilots", new ObjectifyMigration.Transform<Flight>() {
+            public boolean transform(Flight flight) {
+                flight.pilot = flight.pilot.toUpperCase();
+                return true;
+            }
+        });
+        assertEquals("Written count not correct", 2, stats.getWritten());
+    }
+
+    @Test
+    public void should_resolve_refs_to_flights_in_one_get() {
+        for (int i = 0; i < 3; i++) {
+            Weather weather = new Weather();
+            weather.affectedFlights = Collections.singletonList(Ref.of(put().key()));
+            Datastore.put(weather);
+        }
+        Ref.clear();
+        ObjectifyMetrics.begin();
+        try {
+            List<Weather> weathers = Datastore.query(Weather.class).list();
+            assertEquals("Weather count not correct", 3, weathers.size());
+            assertFalse("Ref resolved before dereferenced", weathers.get(0).affectedFlights.get(0).isResolved());
+            assertNotNull("Flight is null", weathers.get(0).affectedFlights.get(0).get());
+            ObjectifyMetrics.reset();
+            for (Weather weather : weathers) {
+                assertTrue("Pending ref not resolved", weather.affectedFlights.get(0).isResolved());
+                Flight flight = weather.affectedFlights.get(0).get();
+                assertNotNull("Flight is null", flight);
+                assertEquals("Flight not correct", weather.affectedFlights.get(0), flight.key());
+            }
+            assertEquals("Get count not correct", 0, ObjectifyMetrics.getStat(ObjectifyMetrics.GET, "*").get(ObjectifyMetrics.Stat.CALLS));
+        }
+        finally {
+            ObjectifyMetrics.end();
+            IncludeQuery.clear();
+            Ref.clear();
+        }
+    }
+
+    @Test
+    public void should_not_keep_refs_outside_invocation() {
+        ObjectifyMetrics.end();
+        Weather weather = new Weather();
+        weather.affectedFlights = Collections.singletonList(Ref.of(put().key()));
+        Datastore.put(weather);
+        Ref.clear();
+        Weather loaded = Datastore.query(Weather.class).get();
+        assertNotNull("Flight is null", loaded.affectedFlights.get(0).get());
+        assertFalse("Ref resolved outside invocation", loaded.affectedFlights.get(0).isResolved());
+    }
+
+    @Test
+    public void should_skip_put_of_unchanged_flight() {
+        Play.configuration.setProperty("objectify.dirtyTracking", "true");
+        ObjectifyMetrics.begin();
+        try {
+            Flight flight = Datastore.find(Flight.class, put().id, false);
+            long version = flight.version;
+            ObjectifyMetrics.reset();
+            Datastore.put(flight);
+            assertEquals("Put count not correct", 0, ObjectifyMetrics.getStat(ObjectifyMetrics.PUT, "*").get(ObjectifyMetrics.Stat.CALLS));
+            assertEquals("Unchanged flight version not correct", version, flight.version);
+            flight.pilot = "Joe";
+            Datastore.put(flight);
+            assertEquals("Changed flight version not correct", version + 1, flight.version);
+            assertEquals("Flight not saved", "Joe", Datastore.find(Flight.class, flight.id, false).pilot);
+        }
+        finally {
+            Play.configuration.remove("objectify.dirtyTracking");
+            ObjectifyMetrics.end();
+            ObjectifyDirtyTracking.clear();
+        }
+    }
+
+    @Test
+    public void should_not_snapshot_flights_outside_invocation() {
+        Play.configuration.setProperty("objectify.dirtyTracking", "true");
+        ObjectifyMetrics.end();
+        try {
+            Flight flight = Datastore.find(Flight.class, put().id, false);
+            assertFalse("Flight snapshot outside invocation", ObjectifyDirtyTracking.isClean(flight));
+        }
+        finally {
+            Play.configuration.remove("objectify.dirtyTracking");
+            ObjectifyDirtyTracking.clear();
+        }
+    }
+
+    @Test
+    public void should_view_flights_without_translating() {
+        Flight flight = TestModelBuilder.createSimpleFlight("Dave", City.AUCKLAND, City.LONDON);
+        flight.price = 99.5f;
+        flight.note.text = "Window seats";
+        Datastore.put(flight);
+        List<EntityView<Flight>> views = Datastore.view(Datastore.query(Flight.class));
+        assertEquals("View count not correct", 1, views.size());
+        EntityView<Flight> view = views.get(0);
+        assertEquals("Flight id not correct", flight.id, view.get("id"));
+        assertEquals("Flight pilot not correct", "Dave", view.get("pilot"));
+        assertEquals("Flight price not correct", 99.5f, view.get("price"));
+        assertEquals("Flight origin not correct", City.AUCKLAND, view.get("origin"));
+        assertEquals("Flight note not correct", "Window seats", ((EntityView<?>) view.get("note")).get("text"));
+        assertEquals("Flight key not correct", flight.key(), view.key());
+        try {
+            view.put("pilot", "Joe");
+            fail("View is not read-only");
+        }
+        catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void should_translate_flight_as_objectify_does() {
+        Flight flight = TestModelBuilder.createSimpleFlight("Dave", City.AUCKLAND, City.LONDON);
+        flight.price = 99.5f;
+        flight.stopovers = Arrays.asList(City.SYDNEY, City.PARIS);
+        flight.note.text = "Window seats";
+        Datastore.put(flight);
+        Transmog<Flight> reflective = new Transmog<Flight>(Datastore.factory(), Flight.class);
+        Transmog<Flight> installed = ObjectifyTranslator.getTransmog(Datastore.factory().getMetadata(Flight.class));
+        Entity expected = new Entity(Datastore.factory().getRawKey(flight));
+        Entity actual = new Entity(expected.getKey());
+        reflective.save(flight, expected);
+        installed.save(flight, actual);
+        assertEquals("Flight properties not correct", expected.getProperties(), actual.getProperties());
+        for (String name : expected.getProperties().keySet()) {
+            assertEquals("Flight indexing not correct: " + name, expected.isUnindexedProperty(name), actual.isUnindexedProperty(name));
+        }
+        Flight loaded = new Flight();
+        installed.load(expected, loaded);
+        assertEquals("Flight pilot not correct", "Dave", loaded.pilot);
+        assertEquals("Flight price not correct", 99.5f, loaded.price, 0);
+        assertEquals("Flight origin not correct", City.AUCKLAND, loaded.origin);
+        assertEquals("Flight stopovers not correct", flight.stopovers, loaded.stopovers);
+        assertEquals("Flight note not correct", "Window seats", loaded.note.text);
+        assertEquals("Flight version not correct", flight.version, loaded.version);
+    }
+
+    @Test
+    public void should_page_flights_in_chunks() {
+        for (int i = 0; i < 5; i++) {
+            put();
+        }
+        List<Flight> flights = new ArrayList<Flight>();
+        for (Flight flight : Utils.asPagedIterable(Datastore.query(Flight.class).order("id"), 2)) {
+            flights.add(flight);
+        }
+        assertEquals("Paged flights not correct", 5, flights.size());
+        flights.clear();
+        for (Flight flight : Utils.asPagedIterable(Datastore.query(Flight.class).offset(1).limit(3), 2)) {
+            flights.add(flight);
+        }
+        assertEquals("Limited paged flights not correct", 3, flights.size());
+        try {
+            Utils.asPagedIterable(Datastore.query(Flight.class), 0);
+            fail("Paged with no chunk size");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void should_stream_flights_as_list() {
+        for (int i = 0; i < 5; i++) {
+            put();
+        }
+        assertEquals("Streamed flights not correct", 5, Utils.asList(Datastore.query(Flight.class), 0, 2, 2, 0).size());
+        assertEquals("Streamed flights not limited", 3, Utils.asList(Datastore.query(Flight.class), 0, 2, 2, 3).size());
+        assertEquals("Streamed flights not limited by query", 2, Utils.asList(Datastore.query(Flight.class).limit(2), 10, 0, 0, 3).size());
+    }
+
     private Flight put() {
         Flight flight = TestModelBuilder.createSimpleFlight("Dave", City.AUCKLAND, City.LONDON);
         Datastore.put(flight);
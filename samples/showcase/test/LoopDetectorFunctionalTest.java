@@ -0,0 +1,74 @@
+import com.googlecode.objectify.Key;
+import models.City;
+import models.Flight;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import play.Play;
+import play.modules.objectify.Datastore;
+import play.modules.objectify.ObjectifyFixtures;
+import play.test.FunctionalTest;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author David Cheong
+ * @since 19/10/2010
+ */
+public class LoopDetectorFunctionalTest extends FunctionalTest {
+
+    @Before
+    public void setup() {
+        ObjectifyFixtures.deleteAll();
+        Play.configuration.setProperty("objectify.loopDetector", "fail");
+        Play.configuration.setProperty("objectify.loopDetector.threshold", "3");
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("email", TestModelBuilder.OWNER_1);
+        params.put("url", "/");
+        POST("/GAEActions/doLogin", params, new HashMap<String, File>());
+    }
+
+    @After
+    public void teardown() {
+        Play.configuration.remove("objectify.loopDetector");
+        Play.configuration.remove("objectify.loopDetector.threshold");
+    }
+
+    @Test
+    public void should_fail_request_on_single_gets_in_template_loop() {
+        for (int i = 0; i < 4; i++) {
+            Flight flight = TestModelBuilder.createSimpleFlight("Dave", City.AUCKLAND, City.LONDON);
+            Datastore.put(flight);
+            Datastore.put(TestModelBuilder.createSimplePassenger("John", new Key<Flight>(Flight.class, flight.id)));
+        }
+        try {
+            GET("/admin/passengersadmin");
+            fail("N+1 not detected");
+        }
+        catch (RuntimeException e) {
+            assertTrue("Cause not correct", isLoopDetected(e));
+        }
+    }
+
+    @Test
+    public void should_allow_single_gets_under_threshold() {
+        for (int i = 0; i < 3; i++) {
+            Flight flight = TestModelBuilder.createSimpleFlight("Dave", City.AUCKLAND, City.LONDON);
+            Datastore.put(flight);
+            Datastore.put(TestModelBuilder.createSimplePassenger("John", new Key<Flight>(Flight.class, flight.id)));
+        }
+        assertIsOk(GET("/admin/passengersadmin"));
+    }
+
+    private boolean isLoopDetected(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause.getMessage() != null && cause.getMessage().contains("Possible N+1")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,58 @@
+import models.City;
+import models.Flight;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import play.Play;
+import play.exceptions.UnexpectedException;
+import play.modules.objectify.Datastore;
+import play.modules.objectify.ObjectifyFixtures;
+import play.modules.objectify.ObjectifyMetrics;
+import play.test.UnitTest;
+
+/**
+ * @author David Cheong
+ * @since 19/10/2010
+ */
+public class LoopDetectorTest extends UnitTest {
+
+    @Before
+    public void setup() {
+        ObjectifyFixtures.deleteAll();
+        Play.configuration.setProperty("objectify.loopDetector", "fail");
+        Play.configuration.setProperty("objectify.loopDetector.threshold", "3");
+        ObjectifyMetrics.begin();
+    }
+
+    @After
+    public void teardown() {
+        ObjectifyMetrics.end();
+        Play.configuration.remove("objectify.loopDetector");
+        Play.configuration.remove("objectify.loopDetector.threshold");
+    }
+
+    @Test
+    public void should_fail_on_single_gets_in_loop() {
+        Flight flight = TestModelBuilder.createSimpleFlight("Dave", City.AUCKLAND, City.LONDON);
+        Datastore.put(flight);
+        try {
+            for (int i = 0; i < 4; i++) {
+                Datastore.find(Flight.class, flight.id, false);
+            }
+            fail("N+1 not detected");
+        }
+        catch (UnexpectedException e) {
+            assertTrue("Message not correct", e.getMessage().contains("Flight"));
+        }
+    }
+
+    @Test
+    public void should_allow_single_gets_under_threshold() {
+        Flight flight = TestModelBuilder.createSimpleFlight("Dave", City.AUCKLAND, City.LONDON);
+        Datastore.put(flight);
+        for (int i = 0; i < 3; i++) {
+            Datastore.find(Flight.class, flight.id, false);
+        }
+    }
+
+}
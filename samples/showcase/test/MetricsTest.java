@@ -0,0 +1,119 @@
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import models.City;
+import models.Flight;
+import org.junit.Before;
+import org.junit.Test;
+import play.Play;
+import play.exceptions.UnexpectedException;
+import play.modules.objectify.Datastore;
+import play.modules.objectify.MetricsDatastoreService;
+import play.modules.objectify.ObjectifyBudget;
+import play.modules.objectify.ObjectifyFixtures;
+import play.modules.objectify.ObjectifyIdPool;
+import play.modules.objectify.ObjectifyMetrics;
+import play.modules.objectify.ObjectifyTxnRunner;
+import play.test.UnitTest;
+
+import java.util.ConcurrentModificationException;
+
+/**
+ * @author David Cheong
+ * @since 19/10/2010
+ */
+public class MetricsTest extends UnitTest {
+
+    @Before
+    public void setup() {
+        ObjectifyFixtures.deleteAll();
+        ObjectifyMetrics.reset();
+    }
+
+    @Test
+    public void should_record_datastore_operations() {
+        Flight flight = TestModelBuilder.createSimpleFlight("Dave", City.AUCKLAND, City.LONDON);
+        Datastore.put(flight);
+        Datastore.find(Flight.class, flight.id, false);
+        Datastore.query(Flight.class).list();
+        assertEquals("Put count not correct", 1, ObjectifyMetrics.getStat(ObjectifyMetrics.PUT, "Flight").get(ObjectifyMetrics.Stat.CALLS));
+        assertEquals("Query entities not correct", 1, ObjectifyMetrics.getStat(ObjectifyMetrics.QUERY, "Flight").get(ObjectifyMetrics.Stat.ENTITIES));
+        assertTrue("Status not correct", ObjectifyMetrics.getStatus().contains("Flight"));
+    }
+
+    @Test
+    public void should_record_invocation_metrics() {
+        ObjectifyMetrics.begin();
+        Datastore.put(TestModelBuilder.createSimpleFlight("Dave", City.AUCKLAND, City.LONDON));
+        Datastore.query(Flight.class).countAll();
+        ObjectifyMetrics.Invocation invocation = ObjectifyMetrics.end();
+        assertEquals("RPC count not correct", 2, invocation.rpcs);
+    }
+
+    @Test
+    public void should_add_action_metrics_to_invocation() {
+        ObjectifyMetrics.begin();
+        Datastore.put(TestModelBuilder.createSimpleFlight("Dave", City.AUCKLAND, City.LONDON));
+        ObjectifyMetrics.beginAction();
+        Datastore.query(Flight.class).countAll();
+        ObjectifyMetrics.Invocation action = ObjectifyMetrics.endAction();
+        assertEquals("Action RPC count not correct", 1, action.rpcs);
+        ObjectifyMetrics.Invocation invocation = ObjectifyMetrics.end();
+        assertEquals("RPC count not correct", 2, invocation.rpcs);
+        ObjectifyMetrics.beginAction();
+        assertNotNull("Action not current", ObjectifyMetrics.current());
+        ObjectifyMetrics.endAction();
+        assertFalse("Action outside invocation still current", ObjectifyMetrics.isInvocation());
+    }
+
+    @Test
+    public void should_not_count_pool_allocations_in_invocation() {
+        ObjectifyIdPool pool = new ObjectifyIdPool(new MetricsDatastoreService(DatastoreServiceFactory.getDatastoreService(), false), "Flight", 10);
+        ObjectifyMetrics.begin();
+        pool.next();
+        ObjectifyMetrics.Invocation invocation = ObjectifyMetrics.end();
+        assertEquals("RPC count not correct", 0, invocation.rpcs);
+        assertTrue("Allocation not recorded", ObjectifyMetrics.getStat(ObjectifyMetrics.ALLOCATE, "Flight").get(ObjectifyMetrics.Stat.CALLS) >= 1);
+    }
+
+    @Test
+    public void should_fail_when_over_budget() {
+        Play.configuration.setProperty("objectify.budget.rpcs", "1");
+        Play.configuration.setProperty("objectify.budget.mode", "fail");
+        ObjectifyMetrics.begin();
+        try {
+            Datastore.put(TestModelBuilder.createSimpleFlight("Dave", City.AUCKLAND, City.LONDON));
+            ObjectifyBudget.check();
+            Datastore.put(TestModelBuilder.createSimpleFlight("John", City.AUCKLAND, City.LONDON));
+            ObjectifyBudget.check();
+            fail("Budget not enforced");
+        }
+        catch (UnexpectedException e) {
+            assertEquals("Budget count not correct", 1, ObjectifyMetrics.getStat(ObjectifyBudget.BUDGET, "rpcs").get(ObjectifyMetrics.Stat.CALLS));
+        }
+        finally {
+            ObjectifyMetrics.end();
+            Play.configuration.remove("objectify.budget.rpcs");
+            Play.configuration.remove("objectify.budget.mode");
+        }
+    }
+
+    @Test
+    public void should_retry_transaction_on_contention() {
+        final Flight flight = TestModelBuilder.createSimpleFlight("Dave", City.AUCKLAND, City.LONDON);
+        Datastore.put(flight);
+        final int[] attempts = new int[1];
+        String pilot = Datastore.inTxn(new ObjectifyTxnRunner.Work<String>() {
+            public String run() {
+                Flight found = Datastore.find(Flight.class, flight.id, false);
+                if (attempts[0]++ == 0) {
+                    throw new ConcurrentModificationException();
+                }
+                return found.pilot;
+            }
+        });
+        assertEquals("Result not correct", "Dave", pilot);
+        assertEquals("Attempts not correct", 2, attempts[0]);
+        assertNull("Transaction not closed", Datastore.objectify().getTxn());
+        assertEquals("Contention count not correct", 1, ObjectifyMetrics.getStat(ObjectifyTxnRunner.CONTENTION, "Flight(" + flight.id + ")").get(ObjectifyMetrics.Stat.CALLS));
+    }
+
+}
@@ -1,12 +1,19 @@
+import com.googlecode.objectify.Key;
 import models.City;
 import models.Flight;
 import models.Passenger;
 import org.junit.Before;
 import org.junit.Test;
 import play.modules.objectify.Datastore;
+import play.modules.objectify.IncludeQuery;
 import play.modules.objectify.ObjectifyFixtures;
+import play.modules.objectify.ObjectifyMetrics;
+import play.modules.objectify.ObjectifyTxnRunner;
 import play.test.UnitTest;
 
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * @author David Cheong
  * @since 12/10/2010
@@ -74,6 +81,62 @@ public class PassengerTest extends UnitTest {
         assertNull("Passenger is not null", retrievedPassenger);
     }
 
+    @Test
+    public void should_put_new_flight_and_passengers_in_one_batch() {
+        Flight flight = TestModelBuilder.createSimpleFlight("Dave", City.AUCKLAND, City.LONDON);
+        Key<Flight> flightKey = Datastore.assignId(flight);
+        assertNotNull("Flight id not assigned", flight.id);
+        Passenger joe = TestModelBuilder.createSimplePassenger("Joe", flightKey);
+        Passenger jane = TestModelBuilder.createSimplePassenger("Jane", flightKey);
+        ObjectifyMetrics.reset();
+        Datastore.put(Arrays.<Object>asList(flight, joe, jane));
+        assertEquals("Put count not correct", 1, ObjectifyMetrics.getStat(ObjectifyMetrics.PUT, "*").get(ObjectifyMetrics.Stat.CALLS));
+        assertEquals("Flight version not correct", 1, flight.version);
+        assertEquals("Passenger count not correct", 2, Datastore.query(Passenger.class).ancestor(flightKey).countAll());
+    }
+
+    @Test
+    public void should_delete_passengers_with_flight() {
+        Passenger passenger = put();
+        Passenger other = put();
+        Flight.deleteById(passenger.flight.getId());
+        assertNull("Flight is not null", Datastore.find(passenger.flight, false));
+        assertEquals("Passenger count not correct", 0, Datastore.query(Passenger.class).ancestor(passenger.flight).countAll());
+        assertNotNull("Other passenger is null", Datastore.find(other.key(), false));
+    }
+
+    @Test
+    public void should_include_flights_of_passengers() {
+        put();
+        put();
+        List<Passenger> passengers = Datastore.include(Datastore.query(Passenger.class), "flight").list();
+        assertEquals("Passenger count not correct", 2, passengers.size());
+        ObjectifyMetrics.reset();
+        for (Passenger passenger : passengers) {
+            assertTrue("Flight not included", IncludeQuery.isIncluded(passenger.flight));
+            assertNotNull("Flight is null", Datastore.find(passenger.flight));
+        }
+        assertEquals("Get count not correct", 0, ObjectifyMetrics.getStat(ObjectifyMetrics.GET, "*").get(ObjectifyMetrics.Stat.CALLS));
+        Datastore.delete(passengers.get(0).flight);
+        assertFalse("Deleted flight still included", IncludeQuery.isIncluded(passengers.get(0).flight));
+    }
+
+    @Test
+    public void should_read_included_flight_again_in_txn() {
+        final Passenger passenger = put();
+        Datastore.include(Datastore.query(Passenger.class), "flight").list();
+        assertTrue("Flight not included", IncludeQuery.isIncluded(passenger.flight));
+        Flight flight = Datastore.find(passenger.flight);
+        flight.pilot = "Changed";
+        String pilot = Datastore.inTxn(new ObjectifyTxnRunner.Work<String>() {
+            public String run() {
+                assertFalse("Flight included in txn", IncludeQuery.isIncluded(passenger.flight));
+                return Datastore.find(passenger.flight).pilot;
+            }
+        });
+        assertEquals("Flight not read in txn", "Dave", pilot);
+    }
+
     private Passenger put() {
         Flight flight = TestModelBuilder.createSimpleFlight("Dave", City.AUCKLAND, City.LONDON);
         Datastore.put(flight);
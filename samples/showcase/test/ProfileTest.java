@@ -0,0 +1,56 @@
+import com.google.appengine.api.datastore.ReadPolicy;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyOpts;
+import models.City;
+import models.Flight;
+import org.junit.Before;
+import org.junit.Test;
+import play.exceptions.UnexpectedException;
+import play.modules.objectify.Datastore;
+import play.modules.objectify.ObjectifyFixtures;
+import play.modules.objectify.ObjectifyProfiles;
+import play.test.UnitTest;
+
+/**
+ * @author David Cheong
+ * @since 19/10/2010
+ */
+public class ProfileTest extends UnitTest {
+
+    @Before
+    public void setup() {
+        ObjectifyFixtures.deleteAll();
+    }
+
+    @Test
+    public void should_read_profile_options() {
+        ObjectifyOpts opts = ObjectifyProfiles.getOpts("listing");
+        assertEquals("Consistency not correct", ReadPolicy.Consistency.EVENTUAL, opts.getConsistency());
+        assertEquals("Deadline not correct", 2.0, opts.getDeadline(), 0.001);
+    }
+
+    @Test
+    public void should_query_with_profile() {
+        Datastore.put(TestModelBuilder.createSimpleFlight("Dave", City.AUCKLAND, City.LONDON));
+        Objectify objectify = Datastore.begin("listing");
+        try {
+            assertSame("Profile not on stack", objectify, Datastore.objectify());
+            assertEquals("Flight count not correct", 1, Datastore.query(Flight.class).countAll());
+        }
+        finally {
+            Datastore.commit();
+        }
+    }
+
+    @Test
+    public void should_fail_for_unknown_profile() {
+        try {
+            Datastore.begin("unknown");
+            fail("Unknown profile not rejected");
+        }
+        catch (UnexpectedException e) {
+            assertTrue("Message not correct", e.getMessage().contains("unknown"));
+        }
+    }
+
+}
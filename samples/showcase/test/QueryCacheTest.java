@@ -0,0 +1,168 @@
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Query;
+import com.googlecode.objectify.annotation.Cached;
+import models.City;
+import models.Flight;
+import models.Passenger;
+import org.junit.Before;
+import org.junit.Test;
+import play.Play;
+import play.db.Model;
+import play.modules.objectify.Datastore;
+import play.modules.objectify.ObjectifyChoice;
+import play.modules.objectify.ObjectifyModelLoader;
+import play.modules.objectify.ObjectifyFixtures;
+import play.modules.objectify.ObjectifyQueryCache;
+import play.modules.objectify.Utils;
+import play.test.UnitTest;
+
+import java.util.List;
+
+/**
+ * @author David Cheong
+ * @since 19/10/2010
+ */
+public class QueryCacheTest extends UnitTest {
+
+    @Before
+    public void setup() {
+        ObjectifyFixtures.deleteAll();
+    }
+
+    @Test
+    public void should_list_cached_flights() {
+        put("Dave");
+        put("John");
+        List<Flight> flights = query().list();
+        assertEquals("Flight count not correct", 2, flights.size());
+        assertEquals("Flight order not correct", "Dave", flights.get(0).pilot);
+        assertEquals("Flight order not correct", "John", flights.get(1).pilot);
+        assertEquals("Flight count not correct", 2, query().countAll());
+    }
+
+    @Test
+    public void should_invalidate_cached_flights_on_put() {
+        put("Dave");
+        assertEquals("Flight count not correct", 1, query().list().size());
+        put("John");
+        assertEquals("Flight count not correct", 2, query().list().size());
+        assertEquals("Flight count not correct", 2, query().countAll());
+    }
+
+    @Test
+    public void should_not_cache_results_racing_a_put() {
+        put("Dave");
+        String kind = Datastore.getKind(Flight.class);
+        String signature = query().toString();
+        String version = ObjectifyQueryCache.getVersion(kind);
+        List<Key<Flight>> keys = query().listKeys();
+        put("John");
+        ObjectifyQueryCache.putKeys(kind, version, signature, keys);
+        assertEquals("Flight count not correct", 2, query().list().size());
+    }
+
+    @Test
+    public void should_invalidate_cached_flights_on_delete() {
+        Flight flight = put("Dave");
+        put("John");
+        assertEquals("Flight count not correct", 2, query().list().size());
+        Datastore.delete(Flight.class, flight.id);
+        List<Flight> flights = query().list();
+        assertEquals("Flight count not correct", 1, flights.size());
+        assertEquals("Flight not correct", "John", flights.get(0).pilot);
+    }
+
+    @Test
+    public void should_invalidate_cached_choices() {
+        ObjectifyModelLoader loader = new ObjectifyModelLoader();
+        loader.init(Passenger.class);
+        put("Dave");
+        List<Object> choices = loader.listChoices("flight", Flight.class);
+        assertEquals("Choice count not correct", 1, choices.size());
+        assertTrue("Choice type not correct", choices.get(0) instanceof ObjectifyChoice);
+        put("John");
+        assertEquals("Choice count not correct", 2, loader.listChoices("flight", Flight.class).size());
+    }
+
+    @Test
+    public void should_cache_choice_of_relation_until_kind_written() throws EntityNotFoundException {
+        Flight flight = put("Dave");
+        assertTrue("Choice label not correct", ObjectifyChoice.of(flight.key()).label.contains("Dave"));
+        DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+        Entity entity = ds.get(Datastore.factory().getRawKey(flight));
+        entity.setProperty("pilot", "John");
+        ds.put(entity);
+        assertTrue("Choice not cached", ObjectifyChoice.of(flight.key()).label.contains("Dave"));
+        put("Mary");
+        assertTrue("Choice not invalidated", ObjectifyChoice.of(flight.key()).label.contains("John"));
+    }
+
+    @Test
+    public void should_list_flights_by_keys_in_query_order() {
+        put("John");
+        put("Dave");
+        Flight flight = put("Mary");
+        List<Flight> flights = Utils.asListByKeys(query());
+        assertEquals("Flight count not correct", 3, flights.size());
+        assertEquals("Flight order not correct", "Dave", flights.get(0).pilot);
+        assertEquals("Flight order not correct", "Mary", flights.get(2).pilot);
+        assertEquals("Flight id not correct", flight.id, flights.get(2).id);
+        assertEquals("Flight count not correct", 3, Utils.asList(query(), true).size());
+    }
+
+    @Test
+    public void should_fetch_keys_only_for_cached_classes_or_when_configured() {
+        KeysOnlyLoader loader = new KeysOnlyLoader();
+        loader.init(Flight.class);
+        assertFalse("Flight fetched keys only", loader.isKeysOnly(Flight.class));
+        assertTrue("Cached class not fetched keys only", loader.isKeysOnly(CachedModel.class));
+        String fetchMode = Play.configuration.getProperty("objectify.fetchMode");
+        Play.configuration.setProperty("objectify.fetchMode", "keys");
+        try {
+            assertTrue("Flight not fetched keys only", loader.isKeysOnly(Flight.class));
+            put("Dave");
+            put("John");
+            List<? extends Model> flights = loader.fetch(null, "pilot", "DESC", 0, 10);
+            assertEquals("Flight count not correct", 2, flights.size());
+            assertEquals("Flight order not correct", "John", ((Flight) flights.get(0)).pilot);
+        }
+        finally {
+            if (fetchMode != null) {
+                Play.configuration.setProperty("objectify.fetchMode", fetchMode);
+            }
+            else {
+                Play.configuration.remove("objectify.fetchMode");
+            }
+        }
+    }
+
+    private Flight put(String pilot) {
+        Flight flight = TestModelBuilder.createSimpleFlight(pilot, City.AUCKLAND, City.LONDON);
+        Datastore.put(flight);
+        return flight;
+    }
+
+    private Query<Flight> query() {
+        return Datastore
+                .cachedQuery(Flight.class)
+                .filter("owner", TestModelBuilder.OWNER_1)
+                .order("pilot");
+    }
+
+    @Cached
+    private static class CachedModel {
+    }
+
+    private static class KeysOnlyLoader extends ObjectifyModelLoader {
+
+        public boolean isKeysOnly(Class<?> clazz) {
+            return isKeysOnlyFetch(clazz);
+        }
+
+    }
+
+}
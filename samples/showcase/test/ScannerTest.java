@@ -0,0 +1,149 @@
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import models.City;
+import models.Flight;
+import org.junit.Before;
+import org.junit.Test;
+import play.exceptions.UnexpectedException;
+import play.modules.objectify.Datastore;
+import play.modules.objectify.ObjectifyFixtures;
+import play.modules.objectify.ObjectifyScanner;
+import play.test.UnitTest;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * @author David Cheong
+ * @since 19/10/2010
+ */
+public class ScannerTest extends UnitTest {
+
+    @Before
+    public void setup() {
+        ObjectifyFixtures.deleteAll();
+        DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+        ds.delete(getCheckpointKeys(ds));
+    }
+
+    @Test
+    public void should_scan_each_flight_once_across_ranges() {
+        for (int i = 0; i < 7; i++) {
+            put();
+        }
+        final Set<Long> ids = new HashSet<Long>();
+        ObjectifyScanner.Stats stats = new ObjectifyScanner<Flight>(Flight.class).ranges(4).chunkSize(2).scan(new ObjectifyScanner.Processor<Flight>() {
+            public void process(Flight flight, ObjectifyScanner.Batch batch) {
+                synchronized (ids) {
+                    assertTrue("Flight scanned twice", ids.add(flight.id));
+                }
+            }
+        });
+        assertEquals("Processed count not correct", 7, stats.getProcessed());
+        assertEquals("Scanned flights not correct", 7, ids.size());
+        assertTrue("Range count not correct", stats.getRanges() >= 1 && stats.getRanges() <= 4);
+    }
+
+    @Test
+    public void should_resume_failed_scan_from_checkpoint() {
+        for (int i = 0; i < 5; i++) {
+            put();
+        }
+        final int[] count = new int[1];
+        try {
+            scanner().scan(new ObjectifyScanner.Processor<Flight>() {
+                public void process(Flight flight, ObjectifyScanner.Batch batch) {
+                    if (++count[0] == 3) {
+                        throw new IllegalStateException("Failed");
+                    }
+                }
+            });
+            fail("Scan did not fail");
+        }
+        catch (UnexpectedException e) {
+            // expected
+        }
+        DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+        assertFalse("Checkpoints not kept", getCheckpointKeys(ds).isEmpty());
+        ObjectifyScanner.Stats stats = scanner().scan(new ObjectifyScanner.Processor<Flight>() {
+            public void process(Flight flight, ObjectifyScanner.Batch batch) {
+                flight.pilot = "Resumed";
+                batch.put(flight);
+            }
+        });
+        assertEquals("Resumed scan did not start from the checkpoint", 3, stats.getProcessed());
+        assertEquals("Written count not correct", 3, stats.getWritten());
+        assertTrue("Checkpoints not deleted", getCheckpointKeys(ds).isEmpty());
+    }
+
+    @Test
+    public void should_not_resume_from_partial_checkpoints() {
+        for (int i = 0; i < 5; i++) {
+            put();
+        }
+        try {
+            scanner().scan(new ObjectifyScanner.Processor<Flight>() {
+                public void process(Flight flight, ObjectifyScanner.Batch batch) {
+                    throw new IllegalStateException("Failed");
+                }
+            });
+            fail("Scan did not fail");
+        }
+        catch (UnexpectedException e) {
+            // expected
+        }
+        DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+        ds.delete(KeyFactory.createKey(ObjectifyScanner.CHECKPOINT_KIND, "resumable.0"));
+        try {
+            scanner().scan(new ObjectifyScanner.Processor<Flight>() {
+                public void process(Flight flight, ObjectifyScanner.Batch batch) {
+                }
+            });
+            fail("Scan resumed from partial checkpoints");
+        }
+        catch (UnexpectedException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void should_delete_checkpoints_when_complete() {
+        put();
+        put();
+        ObjectifyScanner.Stats stats = scanner().scan(new ObjectifyScanner.Processor<Flight>() {
+            public void process(Flight flight, ObjectifyScanner.Batch batch) {
+                batch.delete(flight);
+            }
+        });
+        assertEquals("Deleted count not correct", 2, stats.getDeleted());
+        assertEquals("Flights not deleted", 0, Datastore.query(Flight.class).countAll());
+        assertTrue("Checkpoints not deleted", getCheckpointKeys(DatastoreServiceFactory.getDatastoreService()).isEmpty());
+    }
+
+    private ObjectifyScanner<Flight> scanner() {
+        return new ObjectifyScanner<Flight>(Flight.class).id("resumable").ranges(1).chunkSize(2);
+    }
+
+    private List<Key> getCheckpointKeys(DatastoreService ds) {
+        List<Key> keys = new ArrayList<Key>();
+        Query query = new Query(ObjectifyScanner.CHECKPOINT_KIND).setKeysOnly();
+        for (Entity entity : ds.prepare(query).asIterable(FetchOptions.Builder.withDefaults())) {
+            keys.add(entity.getKey());
+        }
+        return keys;
+    }
+
+    private Flight put() {
+        Flight flight = TestModelBuilder.createSimpleFlight("Dave", City.AUCKLAND, City.LONDON);
+        Datastore.put(flight);
+        return flight;
+    }
+
+}
@@ -0,0 +1,132 @@
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.googlecode.objectify.Query;
+import models.City;
+import models.Flight;
+import org.junit.Before;
+import org.junit.Test;
+import play.db.Model;
+import play.modules.objectify.Datastore;
+import play.modules.objectify.ObjectifyFixtures;
+import play.modules.objectify.ObjectifyModelLoader;
+import play.modules.objectify.ObjectifySearch;
+import play.test.UnitTest;
+
+import java.util.List;
+
+/**
+ * @author David Cheong
+ * @since 19/10/2010
+ */
+public class SearchTest extends UnitTest {
+
+    private ObjectifyModelLoader loader;
+
+    @Before
+    public void setup() {
+        ObjectifyFixtures.deleteAll();
+        loader = new ObjectifyModelLoader();
+        loader.init(Flight.class);
+        put("Dave Smith");
+        put("David Jones");
+        put("John Smithers");
+    }
+
+    @Test
+    public void should_search_by_prefix() {
+        List<? extends Model> flights = loader.fetch("dav", null, null, 0, 10);
+        assertEquals("Flight count not correct", 2, flights.size());
+    }
+
+    @Test
+    public void should_search_by_several_terms() {
+        List<? extends Model> flights = loader.fetch("smith dav", null, null, 0, 10);
+        assertEquals("Flight count not correct", 1, flights.size());
+        assertEquals("Flight not correct", "Dave Smith", ((Flight) flights.get(0)).pilot);
+        assertEquals("Flight count not correct", 2L, (long) loader.count("smith"));
+    }
+
+    @Test
+    public void should_search_by_field_with_sort_order() {
+        List<? extends Model> flights = loader.fetch("pilot:\"smith\"", "price", "DESC", 0, 10);
+        assertEquals("Flight count not correct", 2, flights.size());
+        assertEquals("Flight order not correct", "John Smithers", ((Flight) flights.get(0)).pilot);
+    }
+
+    @Test
+    public void should_page_and_count_several_terms_with_sort_order() {
+        put("Dave Smithson");
+        List<? extends Model> flights = loader.fetch("smith dav", "price", "ASC", 0, 1);
+        assertEquals("Flight count not correct", 1, flights.size());
+        assertEquals("Flight not correct", "Dave Smith", ((Flight) flights.get(0)).pilot);
+        flights = loader.fetch("smith dav", "price", "ASC", 1, 10);
+        assertEquals("Flight count not correct", 1, flights.size());
+        assertEquals("Flight not correct", "Dave Smithson", ((Flight) flights.get(0)).pilot);
+        assertEquals("Flight count not correct", 2L, (long) loader.count("smith dav"));
+        assertEquals("Flight count not correct", 1L, (long) loader.count("pilot:john smith"));
+    }
+
+    @Test
+    public void should_reindex_flights_by_migration() throws EntityNotFoundException {
+        Flight flight = put("Peter Pan");
+        DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+        Entity entity = ds.get(Datastore.factory().getRawKey(flight));
+        entity.removeProperty(ObjectifySearch.PROPERTY);
+        ds.put(entity);
+        assertEquals("Flight count not correct", 0L, (long) loader.count("peter"));
+        Datastore.migrate(Flight.class);
+        assertEquals("Flight count not correct", 1L, (long) loader.count("peter"));
+    }
+
+    @Test
+    public void should_share_search_plans_by_shape() {
+        PlanLoader planLoader = new PlanLoader();
+        planLoader.init(Flight.class);
+        assertSame("Plan not shared", planLoader.plan("pilot:dave price:3"), planLoader.plan("pilot:john price:5 smith"));
+        assertNotSame("Plan shared across shapes", planLoader.plan("pilot:dave"), planLoader.plan("price:3"));
+        PlanLoader otherLoader = new PlanLoader() {
+        };
+        otherLoader.init(Flight.class);
+        assertNotSame("Plan shared across loaders", planLoader.plan("pilot:dave"), otherLoader.plan("pilot:dave"));
+        List<? extends Model> flights = loader.fetch("pilot:smith price:10", null, null, 0, 10);
+        assertEquals("Flight count not correct", 1, flights.size());
+        assertEquals("Flight not correct", "Dave Smith", ((Flight) flights.get(0)).pilot);
+        flights = loader.fetch("pilot:smith price:13", null, null, 0, 10);
+        assertEquals("Flight count not correct", 1, flights.size());
+        assertEquals("Flight not correct", "John Smithers", ((Flight) flights.get(0)).pilot);
+    }
+
+    @Test
+    public void should_apply_loader_filters_to_several_terms() {
+        put("Dave Smithson");
+        ObjectifyModelLoader priceLoader = new ObjectifyModelLoader() {
+            @Override
+            protected Query<? extends Model> prepareFetchQuery(String keywords, String orderBy, String orderDirection) {
+                return super.prepareFetchQuery(keywords, orderBy, orderDirection).filter("price", 13f);
+            }
+        };
+        priceLoader.init(Flight.class);
+        List<? extends Model> flights = priceLoader.fetch("smith dav", null, null, 0, 10);
+        assertEquals("Flight count not correct", 1, flights.size());
+        assertEquals("Flight not correct", "Dave Smithson", ((Flight) flights.get(0)).pilot);
+        assertEquals("Flight count not correct", 1L, (long) priceLoader.count("smith dav"));
+    }
+
+    private Flight put(String pilot) {
+        Flight flight = TestModelBuilder.createSimpleFlight(pilot, City.AUCKLAND, City.LONDON);
+        flight.price = pilot.length();
+        Datastore.put(flight);
+        return flight;
+    }
+
+    private static class PlanLoader extends ObjectifyModelLoader {
+
+        public SearchPlan plan(String keywords) {
+            return getSearchPlan(parseKeywords(keywords));
+        }
+
+    }
+
+}
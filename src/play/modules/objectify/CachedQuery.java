@@ -0,0 +1,174 @@
+package play.modules.objectify;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterable;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Query;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link Query} decorator which serves its keys and counts from the {@link ObjectifyQueryCache}. Entities are
+ * then loaded via a batch get so that they may be served from the session or global cache. The iterators returned
+ * from a cached query do not support cursors, and single entity lookups (get, getKey) as well as parent fetches
+ * are delegated to the underlying query without caching.
+ *
+ * @author David Cheong
+ * @since 19/10/2010
+ * @see ObjectifyService#cachedQuery(Class)
+ */
+public class CachedQuery<T> implements Query<T> {
+
+    protected Query<T> query;
+    protected String kind;
+
+    /**
+     * Creates a cached query decorating the supplied query.
+     *
+     * @param clazz the class queried
+     * @param query the underlying query
+     */
+    public CachedQuery(Class<T> clazz, Query<T> query) {
+        this.query = query;
+        this.kind = ObjectifyService.factory().getKind(clazz);
+    }
+
+    public Query<T> filter(String condition, Object value) {
+        query.filter(condition, value);
+        return this;
+    }
+
+    public Query<T> order(String condition) {
+        query.order(condition);
+        return this;
+    }
+
+    public Query<T> ancestor(Object keyOrEntity) {
+        query.ancestor(keyOrEntity);
+        return this;
+    }
+
+    public Query<T> limit(int value) {
+        query.limit(value);
+        return this;
+    }
+
+    public Query<T> offset(int value) {
+        query.offset(value);
+        return this;
+    }
+
+    public Query<T> cursor(Cursor value) {
+        query.cursor(value);
+        return this;
+    }
+
+    /**
+     * Returns the normalized signature of the underlying query (kind, ancestor, filters, orders, limit, offset
+     * and cursor) which is used as the cache key.
+     *
+     * @return the signature
+     */
+    public String getSignature() {
+        return query.toString();
+    }
+
+    public QueryResultIterator<T> iterator() {
+        return new ListQueryResultIterator<T>(list());
+    }
+
+    public T get() {
+        return query.get();
+    }
+
+    public Key<T> getKey() {
+        return query.getKey();
+    }
+
+    public int countAll() {
+        String signature = getSignature();
+        String version = ObjectifyQueryCache.getVersion(kind);
+        Integer count = ObjectifyQueryCache.getCount(kind, version, signature);
+        if (count == null) {
+            count = query.countAll();
+            ObjectifyQueryCache.putCount(kind, version, signature, count);
+        }
+        return count;
+    }
+
+    @Deprecated
+    public QueryResultIterable<T> fetch() {
+        return this;
+    }
+
+    public QueryResultIterable<Key<T>> fetchKeys() {
+        final List<Key<T>> keys = listKeys();
+        return new QueryResultIterable<Key<T>>() {
+            public QueryResultIterator<Key<T>> iterator() {
+                return new ListQueryResultIterator<Key<T>>(keys);
+            }
+        };
+    }
+
+    public <V> Set<Key<V>> fetchParentKeys() {
+        return query.fetchParentKeys();
+    }
+
+    public <V> Map<Key<V>, V> fetchParents() {
+        return query.fetchParents();
+    }
+
+    public List<T> list() {
+        return ObjectifyService.getList(listKeys());
+    }
+
+    public List<Key<T>> listKeys() {
+        String signature = getSignature();
+        String version = ObjectifyQueryCache.getVersion(kind);
+        List<Key<T>> keys = ObjectifyQueryCache.getKeys(kind, version, signature);
+        if (keys == null) {
+            keys = query.listKeys();
+            ObjectifyQueryCache.putKeys(kind, version, signature, keys);
+        }
+        return keys;
+    }
+
+    @Override
+    public String toString() {
+        return getSignature();
+    }
+
+    /**
+     * A {@link QueryResultIterator} over an in-memory list which does not support cursors.
+     */
+    protected static class ListQueryResultIterator<E> implements QueryResultIterator<E> {
+
+        protected Iterator<E> itr;
+
+        public ListQueryResultIterator(List<E> list) {
+            this.itr = list.iterator();
+        }
+
+        public Cursor getCursor() {
+            return null;
+        }
+
+        public boolean hasNext() {
+            return itr.hasNext();
+        }
+
+        public E next() {
+            return itr.next();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException("Cached query results may not be removed");
+        }
+
+    }
+
+}
@@ -0,0 +1,23 @@
+package play.modules.objectify;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a {@link com.googlecode.objectify.Key} field (or a collection or array of keys) of an entity whose
+ * referenced entities are owned by it and are to be deleted along with it, together with their own descendants
+ * and owned entities, when the entity is deleted via {@link ObjectifyService#deleteCascade(Object)}.
+ * <p/>
+ * Descendants in the entity group of an entity, that is entities whose
+ * {@link com.googlecode.objectify.annotation.Parent} is the entity, are always deleted and need not be marked.
+ *
+ * @author David Cheong
+ * @since 19/10/2010
+ * @see ObjectifyCascade
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface CascadeDelete {
+}
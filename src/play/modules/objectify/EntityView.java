@@ -0,0 +1,398 @@
+package play.modules.objectify;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.ShortBlob;
+import com.google.appengine.api.datastore.Text;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.Query;
+import com.googlecode.objectify.annotation.Parent;
+import com.googlecode.objectify.annotation.Serialized;
+import play.exceptions.UnexpectedException;
+
+import javax.persistence.Embedded;
+import javax.persistence.Id;
+import javax.persistence.Transient;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A read-only view of an entity backed by its raw datastore {@link Entity}, for rendering large lists without
+ * translating every result into its model class. Each property is converted to the type of its field the first
+ * time it is read, and a view is a map of field names to values, so templates read it like the model:
+ * <pre>
+ * renderArgs.put("flights", Datastore.view(Flight.findAllByOwner()));
+ * ...
+ * ${flight.id} ${flight.pilot} ${flight.origin?.label} ${flight.note?.text}
+ * </pre>
+ * The @Id field reads as the id or name of the key and the {@link Parent} field as the parent key. An
+ * {@link Embedded} field reads as a view of its properties, while fields which cannot be converted property by
+ * property (embedded collections and {@link Serialized} fields) are read from the entity translated in full on
+ * first use, see {@link #toObject()}. Views cannot be modified or saved.
+ *
+ * @author David Cheong
+ * @since 19/10/2010
+ * @see ObjectifyService#view(Query)
+ */
+public class EntityView<T> extends AbstractMap<String, Object> {
+
+    protected static final Object NULL = new Object();
+
+    protected static Map<Class<?>, Map<String, Field>> viewFields = new ConcurrentHashMap<Class<?>, Map<String, Field>>();
+
+    protected Objectify objectify;
+    protected Entity entity;
+    protected Class<?> clazz;
+    protected String prefix;
+    protected EntityView<T> root;
+    protected T object;
+    protected Map<String, Object> values = new HashMap<String, Object>();
+
+    /**
+     * Creates a view of a raw entity.
+     *
+     * @param objectify the Objectify instance the entity was read with
+     * @param entity the raw entity
+     */
+    public EntityView(Objectify objectify, Entity entity) {
+        this.objectify = objectify;
+        this.entity = entity;
+        this.clazz = objectify.getFactory().getMetadata(entity.getKey()).getEntityClass();
+        this.prefix = "";
+        this.root = this;
+    }
+
+    /**
+     * Creates a view of the properties of an embedded field.
+     *
+     * @param root the view of the entity
+     * @param clazz the embedded class
+     * @param prefix the property prefix of the embedded field
+     */
+    protected EntityView(EntityView<T> root, Class<?> clazz, String prefix) {
+        this.objectify = root.objectify;
+        this.entity = root.entity;
+        this.clazz = clazz;
+        this.prefix = prefix;
+        this.root = root;
+    }
+
+    /**
+     * Returns views of the results of a query, read as raw entities. The keys of a {@link CachedQuery} are
+     * taken from the query cache and the entities read with a batch get.
+     *
+     * @param query the query
+     * @param <T> the type
+     * @return the views
+     */
+    public static <T> List<EntityView<T>> list(Query<T> query) {
+        Objectify objectify = Utils.getObjectify(query);
+        Iterable<Entity> entities;
+        if (query instanceof CachedQuery) {
+            List<com.google.appengine.api.datastore.Key> keys = new ArrayList<com.google.appengine.api.datastore.Key>();
+            for (Key<T> key : query.listKeys()) {
+                keys.add(objectify.getFactory().typedKeyToRawKey(key));
+            }
+            Map<com.google.appengine.api.datastore.Key, Entity> found = objectify.getDatastore().get(objectify.getTxn(), keys);
+            List<Entity> ordered = new ArrayList<Entity>(keys.size());
+            for (com.google.appengine.api.datastore.Key key : keys) {
+                Entity entity = found.get(key);
+                if (entity != null) {
+                    ordered.add(entity);
+                }
+            }
+            entities = ordered;
+        }
+        else {
+            FetchOptions options = Utils.getFetchOptions(query);
+            entities = objectify.getTxn() != null
+                    ? objectify.getDatastore().prepare(objectify.getTxn(), Utils.getRawQuery(query)).asList(options)
+                    : objectify.getDatastore().prepare(Utils.getRawQuery(query)).asList(options);
+        }
+        List<EntityView<T>> views = new ArrayList<EntityView<T>>();
+        for (Entity entity : entities) {
+            views.add(new EntityView<T>(objectify, entity));
+        }
+        return views;
+    }
+
+    /**
+     * Returns the key of the entity.
+     *
+     * @return the key
+     */
+    public Key<T> key() {
+        return objectify.getFactory().rawKeyToTypedKey(entity.getKey());
+    }
+
+    /**
+     * Returns the string representation of the key of the entity.
+     *
+     * @return the key string
+     */
+    public String str() {
+        return ObjectifyService.keyStr(entity.getKey());
+    }
+
+    /**
+     * Returns the raw entity backing this view.
+     *
+     * @return the raw entity
+     */
+    public Entity getEntity() {
+        return entity;
+    }
+
+    /**
+     * Returns the entity translated into its model class, translating it on first use.
+     *
+     * @return the entity instance
+     */
+    public T toObject() {
+        if (root != this) {
+            return root.toObject();
+        }
+        if (object == null) {
+            object = Utils.<T>toObject(objectify, entity);
+        }
+        return object;
+    }
+
+    /**
+     * Returns the value of a field, converted from its property on first use.
+     *
+     * @param name the field name
+     * @return the value, or null if there is no such field
+     */
+    @Override
+    public Object get(Object name) {
+        Object value = values.get(name);
+        if (value == null) {
+            Field field = getFields(clazz).get(name);
+            if (field == null) {
+                return null;
+            }
+            value = read(field);
+            values.put((String) name, value == null ? NULL : value);
+        }
+        return value == NULL ? null : value;
+    }
+
+    @Override
+    public boolean containsKey(Object name) {
+        return getFields(clazz).containsKey(name);
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        Map<String, Object> copy = new LinkedHashMap<String, Object>();
+        for (String name : getFields(clazz).keySet()) {
+            copy.put(name, get(name));
+        }
+        return Collections.unmodifiableMap(copy).entrySet();
+    }
+
+    @Override
+    public String toString() {
+        return "EntityView{" + entity.getKey() + (prefix.length() > 0 ? ", " + prefix : "") + "}";
+    }
+
+    protected Object read(Field field) {
+        Class<?> type = field.getType();
+        boolean many = Collection.class.isAssignableFrom(type) || type.isArray();
+        if (field.isAnnotationPresent(Serialized.class) || (field.isAnnotationPresent(Embedded.class) && many)) {
+            return readObject(field);
+        }
+        if (field.isAnnotationPresent(Id.class)) {
+            com.google.appengine.api.datastore.Key key = entity.getKey();
+            return key.getName() != null ? key.getName() : convert(key.getId(), type);
+        }
+        if (field.isAnnotationPresent(Parent.class)) {
+            return objectify.getFactory().rawKeyToTypedKey(entity.getKey().getParent());
+        }
+        String property = prefix + field.getName();
+        if (field.isAnnotationPresent(Embedded.class)) {
+            return new EntityView<T>(root, type, property + ".");
+        }
+        Object value = entity.getProperty(property);
+        if (many) {
+            return convertMany(value, field);
+        }
+        return convert(value, type);
+    }
+
+    protected Object readObject(Field field) {
+        Object current = toObject();
+        for (String name : prefix.split("\\.")) {
+            if (name.length() > 0 && current != null) {
+                current = readField(current, name);
+            }
+        }
+        return current != null ? readField(current, field.getName()) : null;
+    }
+
+    protected static Object readField(Object obj, String name) {
+        Field field = getFields(obj.getClass()).get(name);
+        try {
+            return field != null ? field.get(obj) : null;
+        }
+        catch (IllegalAccessException e) {
+            throw new UnexpectedException(e);
+        }
+    }
+
+    @SuppressWarnings({"unchecked"})
+    protected Object convertMany(Object value, Field field) {
+        if (value == null) {
+            return null;
+        }
+        Collection<?> source = value instanceof Collection ? (Collection<?>) value : Collections.singletonList(value);
+        Class<?> type = field.getType();
+        Class<?> componentType = Utils.getManyFieldRawClass(field);
+        if (componentType == null) {
+            componentType = Object.class;
+        }
+        if (type.isArray()) {
+            Object array = Array.newInstance(componentType, source.size());
+            int i = 0;
+            for (Object element : source) {
+                Array.set(array, i++, convert(element, componentType));
+            }
+            return array;
+        }
+        Collection<Object> collection;
+        if (SortedSet.class.isAssignableFrom(type)) {
+            collection = new TreeSet<Object>();
+        }
+        else if (Set.class.isAssignableFrom(type)) {
+            collection = new LinkedHashSet<Object>();
+        }
+        else {
+            collection = new ArrayList<Object>(source.size());
+        }
+        for (Object element : source) {
+            collection.add(convert(element, componentType));
+        }
+        return Collections.unmodifiableCollection(collection);
+    }
+
+    @SuppressWarnings({"unchecked"})
+    protected Object convert(Object value, Class<?> type) {
+        if (value == null) {
+            return type.isPrimitive() ? defaultValue(type) : null;
+        }
+        if (value instanceof com.google.appengine.api.datastore.Key) {
+            return objectify.getFactory().rawKeyToTypedKey((com.google.appengine.api.datastore.Key) value);
+        }
+        if (value instanceof Text && String.class.equals(type)) {
+            return ((Text) value).getValue();
+        }
+        if (value instanceof ShortBlob && byte[].class.equals(type)) {
+            return ((ShortBlob) value).getBytes();
+        }
+        if (value instanceof Blob && byte[].class.equals(type)) {
+            return ((Blob) value).getBytes();
+        }
+        if (value instanceof String && type.isEnum()) {
+            return Enum.valueOf((Class<Enum>) type, (String) value);
+        }
+        if (value instanceof Number) {
+            Number number = (Number) value;
+            if (int.class.equals(type) || Integer.class.equals(type)) {
+                return number.intValue();
+            }
+            if (long.class.equals(type) || Long.class.equals(type)) {
+                return number.longValue();
+            }
+            if (float.class.equals(type) || Float.class.equals(type)) {
+                return number.floatValue();
+            }
+            if (double.class.equals(type) || Double.class.equals(type)) {
+                return number.doubleValue();
+            }
+            if (short.class.equals(type) || Short.class.equals(type)) {
+                return number.shortValue();
+            }
+            if (byte.class.equals(type) || Byte.class.equals(type)) {
+                return number.byteValue();
+            }
+        }
+        if (value instanceof String && (char.class.equals(type) || Character.class.equals(type))) {
+            return ((String) value).length() > 0 ? ((String) value).charAt(0) : null;
+        }
+        return value;
+    }
+
+    protected static Object defaultValue(Class<?> type) {
+        if (boolean.class.equals(type)) {
+            return Boolean.FALSE;
+        }
+        if (char.class.equals(type)) {
+            return (char) 0;
+        }
+        if (long.class.equals(type)) {
+            return 0L;
+        }
+        if (float.class.equals(type)) {
+            return 0f;
+        }
+        if (double.class.equals(type)) {
+            return 0d;
+        }
+        if (short.class.equals(type)) {
+            return (short) 0;
+        }
+        if (byte.class.equals(type)) {
+            return (byte) 0;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the persistent fields of a class by name.
+     *
+     * @param clazz the class
+     * @return the fields
+     */
+    protected static Map<String, Field> getFields(Class<?> clazz) {
+        Map<String, Field> fields = viewFields.get(clazz);
+        if (fields == null) {
+            fields = new LinkedHashMap<String, Field>();
+            List<Class<?>> hierarchy = new ArrayList<Class<?>>();
+            for (Class<?> c = clazz; c != null && !c.equals(Object.class); c = c.getSuperclass()) {
+                hierarchy.add(0, c);
+            }
+            for (Class<?> c : hierarchy) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isAnnotationPresent(Transient.class)
+                            || field.isSynthetic()) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    fields.put(field.getName(), field);
+                }
+            }
+            fields = Collections.unmodifiableMap(fields);
+            viewFields.put(clazz, fields);
+        }
+        return fields;
+    }
+
+}
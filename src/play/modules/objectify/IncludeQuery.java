@@ -0,0 +1,318 @@
+package play.modules.objectify;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterable;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Query;
+import play.exceptions.UnexpectedException;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link Query} decorator which resolves the {@link Key} relations of its results (fields holding a key, or a
+ * collection or array of keys) in a single batch get, rather than one get per result. Once a page of results has
+ * been read, the keys referenced by the included fields of every result are collected and loaded together, and
+ * the entities are held for the remainder of the invocation so that {@link ObjectifyService#find(Key)} (and hence
+ * the {@code fetch()} template extension) resolves them without an RPC:
+ * <pre>
+ * List&lt;Passenger&gt; passengers = Datastore.include(Passenger.findAllByOwner(), "flight").list();
+ * </pre>
+ * A list page therefore costs two RPCs (or one, if the keys of the query are cached) whatever its size. Results
+ * are read in full before being iterated, so iterators do not support cursors and queries should be limited.
+ * Entities put or deleted during the invocation are forgotten, and the rest at the end of the invocation. Within
+ * a transaction the included entities are ignored, so that read-modify-write work reads the entity group anew.
+ *
+ * @author David Cheong
+ * @since 19/10/2010
+ * @see ObjectifyService#include(Query, String...)
+ */
+public class IncludeQuery<T> implements Query<T> {
+
+    protected static final Object MISSING = new Object();
+
+    protected static Map<String, Field> fields = new ConcurrentHashMap<String, Field>();
+
+    protected static ThreadLocal<Map<Key<?>, Object>> included = new ThreadLocal<Map<Key<?>, Object>>();
+
+    protected Query<T> query;
+    protected Set<String> includes = new LinkedHashSet<String>();
+
+    /**
+     * Creates an include query decorating the supplied query.
+     *
+     * @param query the underlying query
+     */
+    public IncludeQuery(Query<T> query) {
+        this.query = query;
+    }
+
+    /**
+     * Adds fields whose keys are to be resolved along with the results.
+     *
+     * @param fieldNames the field names
+     * @return this query
+     */
+    public IncludeQuery<T> include(String... fieldNames) {
+        for (String fieldName : fieldNames) {
+            includes.add(fieldName);
+        }
+        return this;
+    }
+
+    public IncludeQuery<T> filter(String condition, Object value) {
+        query.filter(condition, value);
+        return this;
+    }
+
+    public IncludeQuery<T> order(String condition) {
+        query.order(condition);
+        return this;
+    }
+
+    public IncludeQuery<T> ancestor(Object keyOrEntity) {
+        query.ancestor(keyOrEntity);
+        return this;
+    }
+
+    public IncludeQuery<T> limit(int value) {
+        query.limit(value);
+        return this;
+    }
+
+    public IncludeQuery<T> offset(int value) {
+        query.offset(value);
+        return this;
+    }
+
+    public IncludeQuery<T> cursor(Cursor value) {
+        query.cursor(value);
+        return this;
+    }
+
+    public QueryResultIterator<T> iterator() {
+        return new CachedQuery.ListQueryResultIterator<T>(list());
+    }
+
+    public T get() {
+        T result = query.get();
+        if (result != null) {
+            resolve(Collections.singletonList(result));
+        }
+        return result;
+    }
+
+    public Key<T> getKey() {
+        return query.getKey();
+    }
+
+    public int countAll() {
+        return query.countAll();
+    }
+
+    @Deprecated
+    public QueryResultIterable<T> fetch() {
+        return this;
+    }
+
+    public QueryResultIterable<Key<T>> fetchKeys() {
+        return query.fetchKeys();
+    }
+
+    public <V> Set<Key<V>> fetchParentKeys() {
+        return query.fetchParentKeys();
+    }
+
+    public <V> Map<Key<V>, V> fetchParents() {
+        return query.fetchParents();
+    }
+
+    public List<T> list() {
+        List<T> results = query.list();
+        resolve(results);
+        return results;
+    }
+
+    public List<Key<T>> listKeys() {
+        return query.listKeys();
+    }
+
+    @Override
+    public String toString() {
+        return query.toString();
+    }
+
+    /**
+     * Loads the entities referenced by the included fields of the results in a single batch get.
+     *
+     * @param results the results
+     */
+    protected void resolve(List<T> results) {
+        if (includes.isEmpty() || results.isEmpty()) {
+            return;
+        }
+        Map<Key<?>, Object> current = getIncluded();
+        Set<Key<Object>> keys = new LinkedHashSet<Key<Object>>();
+        for (T result : results) {
+            for (String include : includes) {
+                addKeys(keys, getValue(result, include));
+            }
+        }
+        keys.removeAll(current.keySet());
+        if (keys.isEmpty()) {
+            return;
+        }
+        Map<Key<Object>, Object> entities = ObjectifyService.get(keys);
+        for (Key<Object> key : keys) {
+            Object entity = entities.get(key);
+            current.put(key, entity != null ? entity : MISSING);
+        }
+    }
+
+    @SuppressWarnings({"unchecked"})
+    protected static void addKeys(Set<Key<Object>> keys, Object value) {
+        if (value instanceof Key) {
+            Key<Object> key = (Key<Object>) value;
+            if (key.getId() != 0 || key.getName() != null) {
+                keys.add(key);
+            }
+        }
+        else if (value instanceof Collection) {
+            for (Object element : (Collection<?>) value) {
+                addKeys(keys, element);
+            }
+        }
+        else if (value instanceof Object[]) {
+            for (Object element : (Object[]) value) {
+                addKeys(keys, element);
+            }
+        }
+    }
+
+    protected static Object getValue(Object result, String fieldName) {
+        Class<?> clazz = result.getClass();
+        String fieldKey = clazz.getName() + "." + fieldName;
+        Field field = fields.get(fieldKey);
+        if (field == null) {
+            for (Class<?> current = clazz; field == null && current != null; current = current.getSuperclass()) {
+                try {
+                    field = current.getDeclaredField(fieldName);
+                    field.setAccessible(true);
+                }
+                catch (NoSuchFieldException e) {
+                    // try the superclass
+                }
+            }
+            if (field == null) {
+                throw new UnexpectedException("Unable to include " + fieldName + ", no such field in " + clazz.getName());
+            }
+            fields.put(fieldKey, field);
+        }
+        try {
+            return field.get(result);
+        }
+        catch (IllegalAccessException e) {
+            throw new UnexpectedException(e);
+        }
+    }
+
+    protected static Map<Key<?>, Object> getIncluded() {
+        Map<Key<?>, Object> current = included.get();
+        if (current == null) {
+            current = new HashMap<Key<?>, Object>();
+            included.set(current);
+        }
+        return current;
+    }
+
+    /**
+     * Returns true if the entity of the key has been loaded by an include query during the current invocation,
+     * in which case it is returned by {@link #getIncluded(Key)}. Always false within a transaction, so that
+     * entities read in a transaction are read from its entity group rather than from an earlier, non
+     * transactional read.
+     *
+     * @param key the key
+     * @return true if included, false otherwise
+     */
+    public static boolean isIncluded(Key<?> key) {
+        Map<Key<?>, Object> current = included.get();
+        return current != null && current.containsKey(key) && !isInTxn();
+    }
+
+    /**
+     * Returns the entity of the key loaded by an include query during the current invocation, or null if none,
+     * if it does not exist or if within a transaction.
+     *
+     * @param key the key
+     * @param <V> the type
+     * @return the entity or null
+     */
+    @SuppressWarnings({"unchecked"})
+    public static <V> V getIncluded(Key<? extends V> key) {
+        Map<Key<?>, Object> current = included.get();
+        Object entity = current != null && !isInTxn() ? current.get(key) : null;
+        return entity != MISSING ? (V) entity : null;
+    }
+
+    /**
+     * Returns true if the current {@link com.googlecode.objectify.Objectify} of the {@link ObjectifyService} has
+     * a transaction.
+     *
+     * @return true if within a transaction, false otherwise
+     */
+    protected static boolean isInTxn() {
+        return ObjectifyService.objectify().getTxn() != null;
+    }
+
+    /**
+     * Forgets the included entities of the given class, key, entity or keys and entities, as when they are
+     * written.
+     *
+     * @param classOrKeyOrEntity the class, key or entity, or an iterable of keys or entities
+     */
+    protected static void forget(Object classOrKeyOrEntity) {
+        Map<Key<?>, Object> current = included.get();
+        if (current == null || current.isEmpty()) {
+            return;
+        }
+        if (classOrKeyOrEntity instanceof Iterable) {
+            for (Object keyOrEntity : (Iterable<?>) classOrKeyOrEntity) {
+                forget(keyOrEntity);
+            }
+        }
+        else if (classOrKeyOrEntity instanceof Class) {
+            String kind = ObjectifyService.getKind(classOrKeyOrEntity);
+            List<Key<?>> keys = new ArrayList<Key<?>>(current.keySet());
+            for (Key<?> key : keys) {
+                if (kind.equals(ObjectifyService.getKind(key))) {
+                    current.remove(key);
+                }
+            }
+        }
+        else {
+            try {
+                current.remove(ObjectifyService.getKey(classOrKeyOrEntity));
+            }
+            catch (IllegalArgumentException e) {
+                // a new entity without an id, which cannot have been included
+            }
+        }
+    }
+
+    /**
+     * Forgets all included entities, at the end of an invocation.
+     */
+    public static void clear() {
+        included.remove();
+    }
+
+}
@@ -0,0 +1,19 @@
+package play.modules.objectify;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a {@link java.util.Date} or long field of an {@link ObjectifyModel} to be stamped with the current time
+ * whenever the entity is saved, giving a cheap content version for conditional requests.
+ *
+ * @author David Cheong
+ * @since 19/10/2010
+ * @see ObjectifyETags
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface LastModified {
+}
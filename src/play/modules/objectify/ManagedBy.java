@@ -6,6 +6,9 @@ import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 
 /**
+ * Specifies the {@link ObjectifyModel.Factory} of a model and optionally the {@link ObjectifyProfiles profile}
+ * used by the factory's listing queries.
+ *
  * @author David Cheong
  * @since 15/10/2010
  */
@@ -15,5 +18,10 @@ public @interface ManagedBy {
 
     Class<? extends ObjectifyModel.Factory> value();
 
+    /**
+     * The name of the profile used to list and count models, or empty to use the current {@link ObjectifyService}
+     * session.
+     */
+    String profile() default "";
 
 }
@@ -0,0 +1,460 @@
+package play.modules.objectify;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyRange;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultIterable;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.datastore.Transaction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link DatastoreService} decorator recording {@link ObjectifyMetrics}. The factory wraps the raw datastore
+ * service so that every RPC is recorded, and when Objectify's global cache is in use it also wraps the caching
+ * service (with cacheLayer set) to record the entities requested, from which the cache hit rate is derived.
+ * <p/>
+ * Query latency is measured to the first result since later batches are fetched lazily while iterating.
+ *
+ * @author David Cheong
+ * @since 19/10/2010
+ * @see ObjectifyFactory#getDatastoreService(com.googlecode.objectify.ObjectifyOpts)
+ */
+public class MetricsDatastoreService implements DatastoreService {
+
+    protected static final String MIXED = "*";
+
+    protected DatastoreService ds;
+    protected boolean cacheLayer;
+
+    public MetricsDatastoreService(DatastoreService ds, boolean cacheLayer) {
+        this.ds = ds;
+        this.cacheLayer = cacheLayer;
+    }
+
+    public Entity get(Key key) throws EntityNotFoundException {
+        return get(ds.getCurrentTransaction(null), key);
+    }
+
+    public Entity get(Transaction txn, Key key) throws EntityNotFoundException {
+        touch(txn, key);
+        if (cacheLayer) {
+            ObjectifyMetrics.recordRequested(key.getKind(), 1);
+            return ds.get(txn, key);
+        }
+        long start = System.nanoTime();
+        try {
+            return ds.get(txn, key);
+        }
+        catch (RuntimeException e) {
+            ObjectifyMetrics.recordError(ObjectifyMetrics.GET, key.getKind());
+            throw e;
+        }
+        finally {
+            ObjectifyMetrics.record(ObjectifyMetrics.GET, key.getKind(), 1, System.nanoTime() - start);
+        }
+    }
+
+    public Map<Key, Entity> get(Iterable<Key> keys) {
+        return get(ds.getCurrentTransaction(null), keys);
+    }
+
+    public Map<Key, Entity> get(Transaction txn, Iterable<Key> keys) {
+        List<Key> list = toList(keys);
+        if (list.isEmpty()) {
+            return ds.get(txn, list);
+        }
+        String kind = getKeyKind(list);
+        touch(txn, list.get(0));
+        if (cacheLayer) {
+            ObjectifyMetrics.recordRequested(kind, list.size());
+            return ds.get(txn, list);
+        }
+        long start = System.nanoTime();
+        try {
+            return ds.get(txn, list);
+        }
+        catch (RuntimeException e) {
+            ObjectifyMetrics.recordError(ObjectifyMetrics.GET, kind);
+            throw e;
+        }
+        finally {
+            ObjectifyMetrics.record(ObjectifyMetrics.GET, kind, list.size(), System.nanoTime() - start);
+        }
+    }
+
+    public Key put(Entity entity) {
+        return put(ds.getCurrentTransaction(null), entity);
+    }
+
+    public Key put(Transaction txn, Entity entity) {
+        touch(txn, entity.getKey());
+        if (cacheLayer) {
+            return ds.put(txn, entity);
+        }
+        long start = System.nanoTime();
+        try {
+            return ds.put(txn, entity);
+        }
+        catch (RuntimeException e) {
+            ObjectifyMetrics.recordError(ObjectifyMetrics.PUT, entity.getKind());
+            throw e;
+        }
+        finally {
+            ObjectifyMetrics.record(ObjectifyMetrics.PUT, entity.getKind(), 1, System.nanoTime() - start);
+        }
+    }
+
+    public List<Key> put(Iterable<Entity> entities) {
+        return put(ds.getCurrentTransaction(null), entities);
+    }
+
+    public List<Key> put(Transaction txn, Iterable<Entity> entities) {
+        List<Entity> list = toList(entities);
+        if (!list.isEmpty()) {
+            touch(txn, list.get(0).getKey());
+        }
+        if (cacheLayer) {
+            return ds.put(txn, list);
+        }
+        String kind = getEntityKind(list);
+        long start = System.nanoTime();
+        try {
+            return ds.put(txn, list);
+        }
+        catch (RuntimeException e) {
+            ObjectifyMetrics.recordError(ObjectifyMetrics.PUT, kind);
+            throw e;
+        }
+        finally {
+            ObjectifyMetrics.record(ObjectifyMetrics.PUT, kind, list.size(), System.nanoTime() - start);
+        }
+    }
+
+    public void delete(Key... keys) {
+        delete(ds.getCurrentTransaction(null), Arrays.asList(keys));
+    }
+
+    public void delete(Transaction txn, Key... keys) {
+        delete(txn, Arrays.asList(keys));
+    }
+
+    public void delete(Iterable<Key> keys) {
+        delete(ds.getCurrentTransaction(null), keys);
+    }
+
+    public void delete(Transaction txn, Iterable<Key> keys) {
+        List<Key> list = toList(keys);
+        if (!list.isEmpty()) {
+            touch(txn, list.get(0));
+        }
+        if (cacheLayer) {
+            ds.delete(txn, list);
+            return;
+        }
+        String kind = getKeyKind(list);
+        long start = System.nanoTime();
+        try {
+            ds.delete(txn, list);
+        }
+        catch (RuntimeException e) {
+            ObjectifyMetrics.recordError(ObjectifyMetrics.DELETE, kind);
+            throw e;
+        }
+        finally {
+            ObjectifyMetrics.record(ObjectifyMetrics.DELETE, kind, list.size(), System.nanoTime() - start);
+        }
+    }
+
+    public PreparedQuery prepare(Query query) {
+        return prepare(ds.getCurrentTransaction(null), query);
+    }
+
+    public PreparedQuery prepare(Transaction txn, Query query) {
+        PreparedQuery preparedQuery = ds.prepare(txn, query);
+        return cacheLayer ? preparedQuery : new MetricsPreparedQuery(preparedQuery, query.getKind());
+    }
+
+    public Transaction beginTransaction() {
+        if (cacheLayer) {
+            return ds.beginTransaction();
+        }
+        long start = System.nanoTime();
+        try {
+            return ds.beginTransaction();
+        }
+        finally {
+            ObjectifyMetrics.record(ObjectifyMetrics.TXN, null, 0, System.nanoTime() - start);
+        }
+    }
+
+    public Transaction getCurrentTransaction() {
+        return ds.getCurrentTransaction();
+    }
+
+    public Transaction getCurrentTransaction(Transaction txn) {
+        return ds.getCurrentTransaction(txn);
+    }
+
+    public Collection<Transaction> getActiveTransactions() {
+        return ds.getActiveTransactions();
+    }
+
+    public KeyRange allocateIds(String kind, long num) {
+        return allocateIds(null, kind, num);
+    }
+
+    public KeyRange allocateIds(Key parent, String kind, long num) {
+        if (cacheLayer) {
+            return parent == null ? ds.allocateIds(kind, num) : ds.allocateIds(parent, kind, num);
+        }
+        long start = System.nanoTime();
+        try {
+            return parent == null ? ds.allocateIds(kind, num) : ds.allocateIds(parent, kind, num);
+        }
+        finally {
+            ObjectifyMetrics.record(ObjectifyMetrics.ALLOCATE, kind, 0, System.nanoTime() - start);
+        }
+    }
+
+    public KeyRangeState allocateIdRange(KeyRange range) {
+        return ds.allocateIdRange(range);
+    }
+
+    /**
+     * Notes the entity group of a key used within a transaction, see {@link ObjectifyTxnRunner#touch}.
+     *
+     * @param txn the transaction or null
+     * @param key the key
+     */
+    protected static void touch(Transaction txn, Key key) {
+        if (txn != null) {
+            ObjectifyTxnRunner.touch(txn, key);
+        }
+    }
+
+    protected static <T> List<T> toList(Iterable<T> iterable) {
+        if (iterable instanceof List) {
+            return (List<T>) iterable;
+        }
+        List<T> list = new ArrayList<T>();
+        for (T t : iterable) {
+            list.add(t);
+        }
+        return list;
+    }
+
+    protected static String getKeyKind(List<Key> keys) {
+        String kind = null;
+        for (Key key : keys) {
+            if (kind == null) {
+                kind = key.getKind();
+            }
+            else if (!kind.equals(key.getKind())) {
+                return MIXED;
+            }
+        }
+        return kind;
+    }
+
+    protected static String getEntityKind(List<Entity> entities) {
+        String kind = null;
+        for (Entity entity : entities) {
+            if (kind == null) {
+                kind = entity.getKind();
+            }
+            else if (!kind.equals(entity.getKind())) {
+                return MIXED;
+            }
+        }
+        return kind;
+    }
+
+    /**
+     * A {@link PreparedQuery} decorator recording {@link ObjectifyMetrics}.
+     */
+    protected static class MetricsPreparedQuery implements PreparedQuery {
+
+        protected PreparedQuery pq;
+        protected String kind;
+
+        public MetricsPreparedQuery(PreparedQuery pq, String kind) {
+            this.pq = pq;
+            this.kind = kind;
+        }
+
+        public List<Entity> asList(FetchOptions fetchOptions) {
+            return asQueryResultList(fetchOptions);
+        }
+
+        public QueryResultList<Entity> asQueryResultList(FetchOptions fetchOptions) {
+            long start = System.nanoTime();
+            int entities = 0;
+            try {
+                QueryResultList<Entity> list = pq.asQueryResultList(fetchOptions);
+                entities = list.size();
+                return list;
+            }
+            catch (RuntimeException e) {
+                ObjectifyMetrics.recordError(ObjectifyMetrics.QUERY, kind);
+                throw e;
+            }
+            finally {
+                ObjectifyMetrics.record(ObjectifyMetrics.QUERY, kind, entities, System.nanoTime() - start);
+            }
+        }
+
+        public Iterable<Entity> asIterable(final FetchOptions fetchOptions) {
+            return asQueryResultIterable(fetchOptions);
+        }
+
+        public QueryResultIterable<Entity> asQueryResultIterable(final FetchOptions fetchOptions) {
+            return new QueryResultIterable<Entity>() {
+                public QueryResultIterator<Entity> iterator() {
+                    return asQueryResultIterator(fetchOptions);
+                }
+            };
+        }
+
+        public Iterable<Entity> asIterable() {
+            return asQueryResultIterable();
+        }
+
+        public QueryResultIterable<Entity> asQueryResultIterable() {
+            return asQueryResultIterable(null);
+        }
+
+        public Iterator<Entity> asIterator(FetchOptions fetchOptions) {
+            return asQueryResultIterator(fetchOptions);
+        }
+
+        public Iterator<Entity> asIterator() {
+            return asQueryResultIterator();
+        }
+
+        public QueryResultIterator<Entity> asQueryResultIterator(FetchOptions fetchOptions) {
+            QueryResultIterator<Entity> itr = fetchOptions == null ? pq.asQueryResultIterator() : pq.asQueryResultIterator(fetchOptions);
+            return new MetricsQueryResultIterator(itr, kind);
+        }
+
+        public QueryResultIterator<Entity> asQueryResultIterator() {
+            return asQueryResultIterator(null);
+        }
+
+        public Entity asSingleEntity() throws TooManyResultsException {
+            long start = System.nanoTime();
+            Entity entity = null;
+            try {
+                entity = pq.asSingleEntity();
+                return entity;
+            }
+            catch (RuntimeException e) {
+                ObjectifyMetrics.recordError(ObjectifyMetrics.QUERY, kind);
+                throw e;
+            }
+            finally {
+                ObjectifyMetrics.record(ObjectifyMetrics.QUERY, kind, entity != null ? 1 : 0, System.nanoTime() - start);
+            }
+        }
+
+        public int countEntities(FetchOptions fetchOptions) {
+            long start = System.nanoTime();
+            try {
+                return pq.countEntities(fetchOptions);
+            }
+            catch (RuntimeException e) {
+                ObjectifyMetrics.recordError(ObjectifyMetrics.COUNT, kind);
+                throw e;
+            }
+            finally {
+                ObjectifyMetrics.record(ObjectifyMetrics.COUNT, kind, 0, System.nanoTime() - start);
+            }
+        }
+
+        @SuppressWarnings({"deprecation"})
+        public int countEntities() {
+            long start = System.nanoTime();
+            try {
+                return pq.countEntities();
+            }
+            catch (RuntimeException e) {
+                ObjectifyMetrics.recordError(ObjectifyMetrics.COUNT, kind);
+                throw e;
+            }
+            finally {
+                ObjectifyMetrics.record(ObjectifyMetrics.COUNT, kind, 0, System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return pq.toString();
+        }
+
+    }
+
+    /**
+     * A {@link QueryResultIterator} decorator recording the time to the first result as the query latency and
+     * then the number of entities iterated.
+     */
+    protected static class MetricsQueryResultIterator implements QueryResultIterator<Entity> {
+
+        protected QueryResultIterator<Entity> itr;
+        protected String kind;
+        protected boolean started;
+
+        public MetricsQueryResultIterator(QueryResultIterator<Entity> itr, String kind) {
+            this.itr = itr;
+            this.kind = kind;
+        }
+
+        public Cursor getCursor() {
+            return itr.getCursor();
+        }
+
+        public boolean hasNext() {
+            if (started) {
+                return itr.hasNext();
+            }
+            started = true;
+            long start = System.nanoTime();
+            try {
+                return itr.hasNext();
+            }
+            catch (RuntimeException e) {
+                ObjectifyMetrics.recordError(ObjectifyMetrics.QUERY, kind);
+                throw e;
+            }
+            finally {
+                ObjectifyMetrics.record(ObjectifyMetrics.QUERY, kind, 0, System.nanoTime() - start);
+            }
+        }
+
+        public Entity next() {
+            if (!started) {
+                hasNext();
+            }
+            Entity entity = itr.next();
+            ObjectifyMetrics.recordEntities(ObjectifyMetrics.QUERY, kind, 1);
+            return entity;
+        }
+
+        public void remove() {
+            itr.remove();
+        }
+
+    }
+
+}
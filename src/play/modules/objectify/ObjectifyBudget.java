@@ -0,0 +1,98 @@
+package play.modules.objectify;
+
+import play.Logger;
+import play.Play;
+import play.exceptions.UnexpectedException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Enforces per-invocation datastore budgets, checked by {@link ObjectifyPlugin} once an action (or an invocation
+ * other than a request, such as a job) completes against the {@link ObjectifyMetrics} accumulated by it. Unit
+ * tests, which all run within the single request of the test runner, are not checked. Budgets are disabled
+ * unless set:
+ * <ul>
+ * <li>"objectify.budget.rpcs" - the maximum number of datastore RPCs</li>
+ * <li>"objectify.budget.entities" - the maximum number of entities read</li>
+ * <li>"objectify.budget.time" - the maximum time spent in the datastore in milliseconds</li>
+ * </ul>
+ * An invocation over budget is logged with a breakdown of its operations, or fails when "objectify.budget.mode"
+ * is "fail" (the default when running tests). Each budget exceeded is counted in the metrics under the
+ * "budget" operation.
+ *
+ * @author David Cheong
+ * @since 19/10/2010
+ */
+public class ObjectifyBudget {
+
+    public static final String BUDGET = "budget";
+
+    /**
+     * Returns the configured budget.
+     *
+     * @param name the budget name
+     * @return the budget or 0 if unlimited
+     */
+    public static long getBudget(String name) {
+        return Long.parseLong(Play.configuration.getProperty("objectify.budget." + name, "0"));
+    }
+
+    /**
+     * Returns true if exceeding a budget fails the invocation, which is the default in test mode.
+     *
+     * @return true if fail, false if log
+     */
+    public static boolean isFail() {
+        String defaultMode = "test".equals(Play.id) ? "fail" : "log";
+        return "fail".equalsIgnoreCase(Play.configuration.getProperty("objectify.budget.mode", defaultMode));
+    }
+
+    /**
+     * Returns the budgets exceeded by the given invocation.
+     *
+     * @param invocation the invocation metrics
+     * @return the budgets exceeded, empty if none
+     */
+    public static List<String> getExceeded(ObjectifyMetrics.Invocation invocation) {
+        List<String> exceeded = new ArrayList<String>();
+        long rpcs = getBudget("rpcs");
+        if (rpcs > 0 && invocation.rpcs > rpcs) {
+            exceeded.add("rpcs " + invocation.rpcs + " > " + rpcs);
+        }
+        long entities = getBudget("entities");
+        if (entities > 0 && invocation.entitiesRead > entities) {
+            exceeded.add("entities " + invocation.entitiesRead + " > " + entities);
+        }
+        long time = getBudget("time");
+        if (time > 0 && invocation.getMillis() > time) {
+            exceeded.add("time " + invocation.getMillis() + "ms > " + time + "ms");
+        }
+        return exceeded;
+    }
+
+    /**
+     * Checks the current invocation against the configured budgets.
+     *
+     * @throws UnexpectedException if a budget is exceeded and budgets fail
+     */
+    public static void check() {
+        ObjectifyMetrics.Invocation invocation = ObjectifyMetrics.current();
+        if (invocation == null) {
+            return;
+        }
+        List<String> exceeded = getExceeded(invocation);
+        if (exceeded.isEmpty()) {
+            return;
+        }
+        for (String budget : exceeded) {
+            ObjectifyMetrics.getStat(BUDGET, budget.substring(0, budget.indexOf(' '))).record(0, 0);
+        }
+        String msg = "Datastore budget exceeded " + exceeded + " by " + invocation;
+        if (isFail()) {
+            throw new UnexpectedException(msg);
+        }
+        Logger.warn(msg);
+    }
+
+}
@@ -0,0 +1,434 @@
+package play.modules.objectify;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.annotation.Parent;
+import play.Logger;
+import play.Play;
+import play.exceptions.UnexpectedException;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * Cascading deletes driven by entity metadata. Deleting an entity also deletes its descendants and the entities
+ * it owns via fields annotated with {@link CascadeDelete}, together with their own descendants and owned entities.
+ * Descendants are found via a keys-only ancestor query for each kind which may descend from the kind of the
+ * entity, as given by the {@link Parent} fields of the registered classes. Kinds which are neither parents nor
+ * owners are deleted without any extra RPC.
+ * <p/>
+ * Keys are deleted in batches of up to "objectify.cascade.batchSize" (500, the datastore maximum) in
+ * application.conf. An entity group which fits in a single batch is found and deleted within a transaction,
+ * retried on contention by the {@link ObjectifyTxnRunner}, so that children added concurrently are not orphaned.
+ * Larger deletes, or deletes whose owned entities span entity groups, are not transactional: descendants and owned
+ * entities are deleted first and the entities themselves last, so that an interrupted delete may simply be
+ * repeated. If "objectify.cascade.async" is true, such deletes are made on a background thread, where the
+ * runtime allows threads, in the same order: the entities themselves are therefore only gone once the delete
+ * completes, after the request, and remain should it fail, so that it may still be repeated.
+ * <p/>
+ * If a transaction is already open, the whole delete is made within it and owned entities must therefore be in
+ * the same entity group.
+ *
+ * @author David Cheong
+ * @since 19/10/2010
+ * @see ObjectifyService#deleteCascade(Object)
+ */
+public class ObjectifyCascade {
+
+    protected static final String ANY_KIND = "*";
+
+    protected ObjectifyFactory factory;
+    protected Map<String, Set<String>> childKinds = new ConcurrentHashMap<String, Set<String>>();
+    protected Map<String, Field[]> ownerFields = new ConcurrentHashMap<String, Field[]>();
+
+    public ObjectifyCascade(ObjectifyFactory factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Records the kind of the {@link Parent} and the {@link CascadeDelete} fields of a registered class.
+     *
+     * @param clazz the class
+     */
+    public void register(Class<?> clazz) {
+        List<Field> owned = new ArrayList<Field>();
+        Class<?> current = clazz;
+        while (current != null && !current.equals(Object.class)) {
+            for (Field field : current.getDeclaredFields()) {
+                if (field.isAnnotationPresent(Parent.class)) {
+                    String parentKind = getParentKind(field);
+                    Set<String> kinds = childKinds.get(parentKind);
+                    if (kinds == null) {
+                        kinds = new CopyOnWriteArraySet<String>();
+                        childKinds.put(parentKind, kinds);
+                    }
+                    kinds.add(factory.getKind(clazz));
+                }
+                if (field.isAnnotationPresent(CascadeDelete.class)) {
+                    Class<?> type = field.getType();
+                    if (!com.googlecode.objectify.Key.class.equals(type) && !Key.class.equals(type)
+                            && !Collection.class.isAssignableFrom(type) && !type.isArray()) {
+                        throw new UnexpectedException("The @CascadeDelete field " + field.getName() + " of "
+                                + clazz.getName() + " must be a Key or collection of keys");
+                    }
+                    field.setAccessible(true);
+                    owned.add(field);
+                }
+            }
+            current = current.getSuperclass();
+        }
+        String kind = factory.getKind(clazz);
+        if (owned.isEmpty()) {
+            ownerFields.remove(kind);
+        }
+        else {
+            ownerFields.put(kind, owned.toArray(new Field[owned.size()]));
+        }
+    }
+
+    /**
+     * Returns the kind of a {@link Parent} field, or {@link #ANY_KIND} if not given by its type argument.
+     *
+     * @param field the field
+     * @return the kind
+     */
+    protected String getParentKind(Field field) {
+        Type type = field.getGenericType();
+        if (type instanceof ParameterizedType) {
+            Type arg = ((ParameterizedType) type).getActualTypeArguments()[0];
+            if (arg instanceof Class) {
+                return factory.getKind((Class<?>) arg);
+            }
+        }
+        return ANY_KIND;
+    }
+
+    /**
+     * Returns true if entities of the kind may have descendants.
+     *
+     * @param kind the kind
+     * @return true if a parent, false otherwise
+     */
+    public boolean isParent(String kind) {
+        return childKinds.containsKey(kind) || childKinds.containsKey(ANY_KIND);
+    }
+
+    /**
+     * Returns the kinds which may descend from entities of the given kind, at any depth.
+     *
+     * @param kind the kind
+     * @return the descendant kinds
+     */
+    public Set<String> getDescendantKinds(String kind) {
+        Set<String> result = new LinkedHashSet<String>();
+        List<String> pending = new ArrayList<String>();
+        pending.add(kind);
+        for (int i = 0; i < pending.size(); i++) {
+            for (String parentKind : new String[]{pending.get(i), ANY_KIND}) {
+                Set<String> kinds = childKinds.get(parentKind);
+                if (kinds != null) {
+                    for (String child : kinds) {
+                        if (result.add(child)) {
+                            pending.add(child);
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns true if entities of the kind own other entities via fields annotated with {@link CascadeDelete}.
+     *
+     * @param kind the kind
+     * @return true if an owner, false otherwise
+     */
+    public boolean isOwner(String kind) {
+        return ownerFields.containsKey(kind);
+    }
+
+    /**
+     * Deletes the entities, their descendants and owned entities.
+     *
+     * @param keysOrEntities the keys or entities
+     */
+    public void delete(Iterable<?> keysOrEntities) {
+        final Set<Key> roots = new LinkedHashSet<Key>();
+        final Map<Key, Object> entities = new HashMap<Key, Object>();
+        boolean cascades = false;
+        boolean owners = false;
+        Key group = null;
+        boolean singleGroup = true;
+        for (Object keyOrEntity : keysOrEntities) {
+            Key key = factory.getRawKey(keyOrEntity);
+            roots.add(key);
+            if (!(keyOrEntity instanceof com.googlecode.objectify.Key) && !(keyOrEntity instanceof Key)
+                    && !(keyOrEntity instanceof String)) {
+                entities.put(key, keyOrEntity);
+            }
+            cascades |= isParent(key.getKind());
+            owners |= isOwner(key.getKind());
+            Key root = getRoot(key);
+            singleGroup &= group == null || group.equals(root);
+            group = root;
+        }
+        if (roots.isEmpty()) {
+            return;
+        }
+        if (!cascades && !owners) {
+            ObjectifyService.delete(roots);
+            return;
+        }
+        final int batchSize = getBatchSize();
+        Objectify objectify = ObjectifyService.objectify();
+        if (objectify.getTxn() == null && singleGroup && !owners) {
+            List<Key> keys = ObjectifyTxnRunner.run(new ObjectifyTxnRunner.Work<List<Key>>() {
+                public List<Key> run() {
+                    List<Key> keys = collect(ObjectifyService.objectify(), roots, entities);
+                    if (keys.size() > batchSize) {
+                        return keys;
+                    }
+                    ObjectifyService.delete(keys);
+                    return null;
+                }
+            });
+            if (keys != null) {
+                deleteLarge(keys, roots, batchSize);
+            }
+        }
+        else {
+            List<Key> keys = collect(objectify, roots, entities);
+            if (objectify.getTxn() != null) {
+                deleteBatches(keys, batchSize);
+            }
+            else {
+                deleteLarge(keys, roots, batchSize);
+            }
+        }
+    }
+
+    /**
+     * Returns the keys of the entities, their descendants and owned entities, deepest first and the entities
+     * themselves last.
+     *
+     * @param objectify the objectify
+     * @param roots the keys of the entities
+     * @param entities the entities already loaded, by key
+     * @return the keys
+     */
+    protected List<Key> collect(Objectify objectify, Set<Key> roots, Map<Key, Object> entities) {
+        Set<Key> keys = new LinkedHashSet<Key>();
+        List<Key> pending = new ArrayList<Key>(roots);
+        while (!pending.isEmpty()) {
+            List<Key> owners = new ArrayList<Key>();
+            for (Key key : pending) {
+                if (!keys.add(key)) {
+                    continue;
+                }
+                if (isOwner(key.getKind())) {
+                    owners.add(key);
+                }
+                if (isParent(key.getKind())) {
+                    for (Key descendant : findDescendants(objectify, key)) {
+                        if (keys.add(descendant) && isOwner(descendant.getKind())) {
+                            owners.add(descendant);
+                        }
+                    }
+                }
+            }
+            pending = new ArrayList<Key>();
+            for (Key owned : findOwned(objectify, owners, entities)) {
+                if (!keys.contains(owned)) {
+                    pending.add(owned);
+                }
+            }
+        }
+        List<Key> result = new ArrayList<Key>(keys.size());
+        for (Key key : keys) {
+            if (!roots.contains(key)) {
+                result.add(key);
+            }
+        }
+        Collections.sort(result, new Comparator<Key>() {
+            public int compare(Key k1, Key k2) {
+                return getDepth(k2) - getDepth(k1);
+            }
+        });
+        result.addAll(roots);
+        return result;
+    }
+
+    /**
+     * Returns the keys of the descendants of an entity, via a keys-only ancestor query per descendant kind.
+     *
+     * @param objectify the objectify
+     * @param key the key of the entity
+     * @return the keys of the descendants
+     */
+    protected List<Key> findDescendants(Objectify objectify, Key key) {
+        List<Key> keys = new ArrayList<Key>();
+        for (String kind : getDescendantKinds(key.getKind())) {
+            Query query = new Query(kind, key).setKeysOnly();
+            PreparedQuery prepared = objectify.getTxn() != null
+                    ? objectify.getDatastore().prepare(objectify.getTxn(), query)
+                    : objectify.getDatastore().prepare(query);
+            for (Entity entity : prepared.asIterable()) {
+                if (!entity.getKey().equals(key)) {
+                    keys.add(entity.getKey());
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Returns the keys of the entities owned by the given entities, loading those not already loaded in a single
+     * batch.
+     *
+     * @param objectify the objectify
+     * @param owners the keys of the owning entities
+     * @param entities the entities already loaded, by key
+     * @return the keys of the owned entities
+     */
+    protected List<Key> findOwned(Objectify objectify, List<Key> owners, Map<Key, Object> entities) {
+        List<Key> result = new ArrayList<Key>();
+        if (owners.isEmpty()) {
+            return result;
+        }
+        List<Object> loaded = new ArrayList<Object>();
+        List<com.googlecode.objectify.Key<Object>> missing = new ArrayList<com.googlecode.objectify.Key<Object>>();
+        for (Key key : owners) {
+            Object entity = entities.get(key);
+            if (entity != null) {
+                loaded.add(entity);
+            }
+            else {
+                missing.add(factory.<Object>rawKeyToTypedKey(key));
+            }
+        }
+        if (!missing.isEmpty()) {
+            loaded.addAll(objectify.get(missing).values());
+        }
+        for (Object entity : loaded) {
+            for (Field field : ownerFields.get(factory.getKind(entity.getClass()))) {
+                try {
+                    addKeys(result, field.get(entity));
+                }
+                catch (IllegalAccessException e) {
+                    throw new UnexpectedException(e);
+                }
+            }
+        }
+        return result;
+    }
+
+    protected void addKeys(List<Key> keys, Object value) {
+        if (value instanceof Key) {
+            keys.add((Key) value);
+        }
+        else if (value instanceof com.googlecode.objectify.Key) {
+            keys.add(factory.typedKeyToRawKey((com.googlecode.objectify.Key<?>) value));
+        }
+        else if (value instanceof Iterable) {
+            for (Object element : (Iterable<?>) value) {
+                addKeys(keys, element);
+            }
+        }
+        else if (value instanceof Object[]) {
+            for (Object element : (Object[]) value) {
+                addKeys(keys, element);
+            }
+        }
+    }
+
+    /**
+     * Deletes keys outside of a transaction, in order, the entities themselves being last, within the request or
+     * on a background thread if "objectify.cascade.async" is true.
+     *
+     * @param keys the keys, the entities themselves last
+     * @param roots the keys of the entities themselves
+     * @param batchSize the batch size
+     */
+    protected void deleteLarge(List<Key> keys, Set<Key> roots, int batchSize) {
+        Logger.debug("Objectify: cascading delete of %s entities from %s", keys.size(), roots);
+        if (keys.size() > roots.size() && isAsync() && deleteInBackground(keys, batchSize)) {
+            return;
+        }
+        deleteBatches(keys, batchSize);
+    }
+
+    protected void deleteBatches(List<Key> keys, int batchSize) {
+        for (int i = 0; i < keys.size(); i += batchSize) {
+            ObjectifyService.delete(keys.subList(i, Math.min(i + batchSize, keys.size())));
+        }
+    }
+
+    /**
+     * Deletes keys in batches on the shared background executor (see {@link Utils#execute(Runnable)}), in the API
+     * environment of the current request, in the order given so that the entities themselves are deleted last and
+     * a failed delete may be repeated.
+     *
+     * @param keys the keys, the entities themselves last
+     * @param batchSize the batch size
+     * @return true if submitted, false if the runtime does not allow threads
+     */
+    protected boolean deleteInBackground(List<Key> keys, final int batchSize) {
+        final List<Key> remaining = new ArrayList<Key>(keys);
+        return Utils.execute(new Runnable() {
+            public void run() {
+                try {
+                    Objectify objectify = factory.begin();
+                    for (int i = 0; i < remaining.size(); i += batchSize) {
+                        List<Key> batch = remaining.subList(i, Math.min(i + batchSize, remaining.size()));
+                        objectify.delete(batch);
+                        ObjectifyService.invalidate(batch, null);
+                    }
+                }
+                catch (RuntimeException e) {
+                    Logger.error(e, "Objectify: unable to complete cascading delete of %s entities", remaining.size());
+                }
+            }
+        });
+    }
+
+    protected static int getBatchSize() {
+        return Math.max(1, Integer.parseInt(Play.configuration.getProperty("objectify.cascade.batchSize", "500")));
+    }
+
+    protected static boolean isAsync() {
+        return Boolean.parseBoolean(Play.configuration.getProperty("objectify.cascade.async", "false"));
+    }
+
+    protected static Key getRoot(Key key) {
+        while (key.getParent() != null) {
+            key = key.getParent();
+        }
+        return key;
+    }
+
+    protected static int getDepth(Key key) {
+        int depth = 0;
+        while (key.getParent() != null) {
+            key = key.getParent();
+            depth++;
+        }
+        return depth;
+    }
+
+}
@@ -0,0 +1,81 @@
+package play.modules.objectify;
+
+import com.googlecode.objectify.Key;
+
+import java.io.Serializable;
+
+/**
+ * A lightweight choice for CRUD relation fields holding only the key string and label of an entity, so that
+ * choice lists may be cached without holding the entities themselves.
+ *
+ * @author David Cheong
+ * @since 19/10/2010
+ * @see ObjectifyModelLoader#listChoices(String, Class)
+ */
+public class ObjectifyChoice implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public String key;
+    public String label;
+
+    public ObjectifyChoice(String key, String label) {
+        this.key = key;
+        this.label = label;
+    }
+
+    /**
+     * Creates a choice for the given key or entity. If a key is supplied the entity is fetched for its label and,
+     * when the query cache is enabled, the choice is cached until the kind is next written, so that a form
+     * rendering a relation missing from a capped choice list does not fetch the related entity every time.
+     *
+     * @param keyOrEntity the key or entity
+     * @return the choice or null if the key or entity is null
+     */
+    public static ObjectifyChoice of(Object keyOrEntity) {
+        if (keyOrEntity == null) {
+            return null;
+        }
+        String key = ObjectifyService.keyStr(keyOrEntity);
+        if (!(keyOrEntity instanceof Key)) {
+            return new ObjectifyChoice(key, keyOrEntity.toString());
+        }
+        String kind = ObjectifyService.getKind(keyOrEntity);
+        boolean cached = ObjectifyQueryCache.isEnabled();
+        String version = cached ? ObjectifyQueryCache.getVersion(kind) : null;
+        ObjectifyChoice choice = cached ? ObjectifyQueryCache.getChoice(kind, version, key) : null;
+        if (choice == null) {
+            Object entity = ObjectifyService.find((Key<?>) keyOrEntity, false);
+            choice = new ObjectifyChoice(key, entity != null ? entity.toString() : key);
+            if (cached) {
+                ObjectifyQueryCache.putChoice(kind, version, key, choice);
+            }
+        }
+        return choice;
+    }
+
+    /**
+     * Internal get key method, as per {@link ObjectifyModel#_key()}.
+     *
+     * @return the key string
+     */
+    public Object _key() {
+        return key;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || (o instanceof ObjectifyChoice && key.equals(((ObjectifyChoice) o).key));
+    }
+
+    @Override
+    public int hashCode() {
+        return key.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return label;
+    }
+
+}
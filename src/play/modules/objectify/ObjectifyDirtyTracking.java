@@ -0,0 +1,164 @@
+package play.modules.objectify;
+
+import com.google.appengine.api.datastore.Entity;
+import com.googlecode.objectify.impl.EntityMetadata;
+import play.Play;
+
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Skips the puts of entities which have not changed since they were loaded, as when a form is resubmitted with
+ * unchanged data, sparing the write and the update of every index. When enabled with "objectify.dirtyTracking",
+ * the raw entity read for each {@link ObjectifyModel} loaded during an invocation is kept as a snapshot, and
+ * {@link ObjectifyService#put(Object)} compares the properties the instance would be saved with against the
+ * snapshot, returning the key without an RPC if they are equal (batched puts leave such entities out).
+ * <p/>
+ * Properties are compared by value and indexing, with numbers compared regardless of their boxed type. The
+ * comparison runs before the entity is stamped or its version incremented, and includes the search index of
+ * {@link Searchable} fields; properties set by other pre-persist callbacks always make the entity dirty.
+ * Snapshots are dropped once an entity is written and at the end of the invocation, so entities which were not
+ * loaded during the invocation are always written; entities loaded outside of an invocation, as by scanner
+ * workers or other threads of their own, are never snapshot.
+ *
+ * @author David Cheong
+ * @since 19/10/2010
+ * @see ObjectifyService#put(Object)
+ */
+public class ObjectifyDirtyTracking {
+
+    protected static ThreadLocal<Map<Object, Entity>> snapshots = new ThreadLocal<Map<Object, Entity>>();
+
+    /**
+     * Returns true if dirty tracking is enabled.
+     *
+     * @return true if enabled, false otherwise
+     */
+    public static boolean isEnabled() {
+        return Boolean.parseBoolean(Play.configuration.getProperty("objectify.dirtyTracking", "false"));
+    }
+
+    /**
+     * Keeps the raw entity an instance was loaded from, if enabled and within an invocation (snapshots are only
+     * dropped at the end of one, so entities loaded by the workers of the {@link ObjectifyScanner}, say, are not
+     * kept).
+     *
+     * @param obj the instance
+     * @param entity the raw entity
+     */
+    public static void snapshot(Object obj, Entity entity) {
+        if (!isEnabled() || !ObjectifyMetrics.isInvocation()) {
+            return;
+        }
+        Map<Object, Entity> current = snapshots.get();
+        if (current == null) {
+            current = new IdentityHashMap<Object, Entity>();
+            snapshots.set(current);
+        }
+        current.put(obj, entity);
+    }
+
+    /**
+     * Returns true if the instance was loaded during the current invocation and would be saved with the same
+     * properties it was loaded with.
+     *
+     * @param obj the instance
+     * @return true if unchanged, false otherwise
+     */
+    public static boolean isClean(Object obj) {
+        Map<Object, Entity> current = snapshots.get();
+        Entity snapshot = current != null ? current.get(obj) : null;
+        if (snapshot == null || !isEnabled()) {
+            return false;
+        }
+        Entity entity = toEntity(obj);
+        if (!snapshot.getKey().equals(entity.getKey())) {
+            return false;
+        }
+        Map<String, Object> properties = entity.getProperties();
+        if (properties.size() != snapshot.getProperties().size()) {
+            return false;
+        }
+        for (Map.Entry<String, Object> property : properties.entrySet()) {
+            String name = property.getKey();
+            if (!snapshot.hasProperty(name) || entity.isUnindexedProperty(name) != snapshot.isUnindexedProperty(name)
+                    || !same(property.getValue(), snapshot.getProperty(name))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Converts an instance to the raw entity it would be saved as, without invoking its pre-persist callbacks
+     * other than the indexing of {@link Searchable} fields.
+     *
+     * @param obj the instance
+     * @return the raw entity
+     */
+    @SuppressWarnings({"unchecked"})
+    protected static Entity toEntity(Object obj) {
+        ObjectifyFactory factory = ObjectifyService.factory();
+        Entity entity = new Entity(factory.getRawKey(obj));
+        ObjectifyTranslator.getTransmog(factory.getMetadataForEntity(obj)).save(obj, entity);
+        ObjectifySearch.index(obj, entity);
+        return entity;
+    }
+
+    protected static boolean same(Object value, Object stored) {
+        if (value == null || stored == null) {
+            return value == stored;
+        }
+        if (value instanceof Number && stored instanceof Number) {
+            if (value instanceof Float || value instanceof Double || stored instanceof Float || stored instanceof Double) {
+                return ((Number) value).doubleValue() == ((Number) stored).doubleValue();
+            }
+            return ((Number) value).longValue() == ((Number) stored).longValue();
+        }
+        if (value instanceof Collection && stored instanceof Collection) {
+            Collection<?> values = (Collection<?>) value;
+            Collection<?> storedValues = (Collection<?>) stored;
+            if (values.size() != storedValues.size()) {
+                return false;
+            }
+            Iterator<?> iterator = storedValues.iterator();
+            for (Object element : values) {
+                if (!same(element, iterator.next())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return value.equals(stored);
+    }
+
+    /**
+     * Drops the snapshots of the given entity or entities, as when they are written.
+     *
+     * @param entityOrEntities the entity, or an iterable of entities or keys
+     */
+    protected static void forget(Object entityOrEntities) {
+        Map<Object, Entity> current = snapshots.get();
+        if (current == null || current.isEmpty()) {
+            return;
+        }
+        if (entityOrEntities instanceof Iterable) {
+            for (Object entity : (Iterable<?>) entityOrEntities) {
+                current.remove(entity);
+            }
+        }
+        else {
+            current.remove(entityOrEntities);
+        }
+    }
+
+    /**
+     * Drops all snapshots, at the end of an invocation.
+     */
+    public static void clear() {
+        snapshots.remove();
+    }
+
+}
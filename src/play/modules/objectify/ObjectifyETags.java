@@ -0,0 +1,168 @@
+package play.modules.objectify;
+
+import play.i18n.Lang;
+import play.libs.Codec;
+import play.mvc.Http;
+import play.mvc.Scope;
+import play.mvc.results.NotModified;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Conditional GET support for actions rendering entities, based on their cheap content version (see
+ * {@link ObjectifyModel#getContentVersion()}). Invoking {@link #checkModified(Object...)} with the entities an
+ * action is about to render sets the ETag and Last-Modified headers and, when the browser already holds the
+ * current representation, ends the action with a 304 before the template is rendered. Callers must therefore
+ * pass every entity the template renders (including related entities fetched by the template), since a change to
+ * an entity left out would not change the ETag and the browser would keep showing the stale page.
+ * <p/>
+ * Since rendered pages commonly include the authenticity token, flash messages and localised text, the ETag also
+ * covers the session (and hence its authenticity token), the flash and the current language, and responses are
+ * marked private. Entities without a version or last modified time, or requests other than GET and HEAD, are
+ * always rendered.
+ *
+ * @author David Cheong
+ * @since 19/10/2010
+ * @see ObjectifyVersioning
+ */
+public class ObjectifyETags {
+
+    protected static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+    /**
+     * Sets the ETag and Last-Modified headers of the current response given the entities rendered by the action,
+     * throwing a {@link NotModified} result if the browser's cached representation is current.
+     *
+     * @param entities the entities
+     */
+    public static void checkModified(Object... entities) {
+        Http.Request request = Http.Request.current();
+        Http.Response response = Http.Response.current();
+        if (request == null || response == null || !("GET".equals(request.method) || "HEAD".equals(request.method))) {
+            return;
+        }
+        String etag = getETag(entities);
+        if (etag == null) {
+            return;
+        }
+        long lastModified = getLastModified(entities);
+        response.setHeader("Etag", etag);
+        response.setHeader("Cache-Control", "private, no-cache");
+        if (lastModified > 0) {
+            response.setHeader("Last-Modified", formatDate(lastModified));
+        }
+        if (!isModified(request, etag, lastModified)) {
+            throw new NotModified(etag);
+        }
+    }
+
+    /**
+     * Returns the ETag of the entities as rendered for the current request or null if the content version of any
+     * entity is unknown. Reads the existing session without adding anything to it.
+     *
+     * @param entities the entities
+     * @return the ETag or null
+     */
+    public static String getETag(Object... entities) {
+        StringBuilder sb = new StringBuilder();
+        for (Object entity : entities) {
+            if (entity == null) {
+                sb.append("null;");
+                continue;
+            }
+            String version = getContentVersion(entity);
+            if (version == null) {
+                return null;
+            }
+            sb.append(ObjectifyService.getKind(entity)).append(':')
+                    .append(ObjectifyService.getKeyStr(entity)).append(':')
+                    .append(version).append(';');
+        }
+        // the authenticity token is signed from the session id, so the id alone covers it without signing
+        Scope.Session session = Scope.Session.current();
+        if (session != null && session.getId() != null) {
+            sb.append(session.getId());
+        }
+        Scope.Flash flash = Scope.Flash.current();
+        if (flash != null) {
+            sb.append(flash);
+        }
+        sb.append(Lang.get());
+        return "\"" + Codec.hexMD5(sb.toString()) + "\"";
+    }
+
+    /**
+     * Returns the latest last modified time of the entities or 0 if unknown.
+     *
+     * @param entities the entities
+     * @return the last modified time or 0
+     */
+    public static long getLastModified(Object... entities) {
+        long lastModified = 0;
+        for (Object entity : entities) {
+            if (entity != null) {
+                lastModified = Math.max(lastModified, ObjectifyVersioning.getLastModified(entity));
+            }
+        }
+        return lastModified;
+    }
+
+    protected static String getContentVersion(Object entity) {
+        if (entity instanceof ObjectifyModel) {
+            return ((ObjectifyModel) entity).getContentVersion();
+        }
+        Long version = ObjectifyVersioning.getVersion(entity);
+        return version != null ? String.valueOf(version) : null;
+    }
+
+    /**
+     * Returns true unless the request's If-None-Match header matches the ETag or, in its absence, the
+     * If-Modified-Since header is no earlier than the last modified time (to the second).
+     *
+     * @param request the request
+     * @param etag the ETag
+     * @param lastModified the last modified time or 0 if unknown
+     * @return true if modified, false otherwise
+     */
+    protected static boolean isModified(Http.Request request, String etag, long lastModified) {
+        Http.Header ifNoneMatch = request.headers.get("if-none-match");
+        if (ifNoneMatch != null) {
+            for (String value : ifNoneMatch.value().split(",")) {
+                value = value.trim();
+                if (value.equals(etag) || value.equals("W/" + etag) || value.equals("*")) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        Http.Header ifModifiedSince = request.headers.get("if-modified-since");
+        if (ifModifiedSince != null && lastModified > 0) {
+            try {
+                return parseDate(ifModifiedSince.value()).getTime() < lastModified / 1000 * 1000;
+            }
+            catch (ParseException e) {
+                return true;
+            }
+        }
+        return true;
+    }
+
+    protected static String formatDate(long time) {
+        return createDateFormat().format(new Date(time));
+    }
+
+    protected static Date parseDate(String date) throws ParseException {
+        return createDateFormat().parse(date);
+    }
+
+    protected static SimpleDateFormat createDateFormat() {
+        SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+
+}
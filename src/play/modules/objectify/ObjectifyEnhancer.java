@@ -0,0 +1,118 @@
+package play.modules.objectify;
+
+import javassist.CtClass;
+import javassist.CtField;
+import javassist.CtMethod;
+import javassist.CtPrimitiveType;
+import javassist.Modifier;
+import play.classloading.ApplicationClasses;
+import play.classloading.enhancers.Enhancer;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Generates the field accessors of {@link ObjectifyModel} subclasses as they are loaded (or precompiled), which
+ * let the {@link ObjectifyTranslator} read and write persistent fields directly rather than through reflection.
+ * Enhanced classes implement {@link ObjectifyFieldAccess} and declare the names of their fields in a static field.
+ * The accessors cover the fields declared by the class and the non-private fields inherited from its
+ * superclasses; classes with shadowed fields are left unenhanced, and translated reflectively.
+ *
+ * @author David Cheong
+ * @since 19/10/2010
+ * @see ObjectifyPlugin#enhance(ApplicationClasses.ApplicationClass)
+ */
+public class ObjectifyEnhancer extends Enhancer {
+
+    @Override
+    public void enhanceThisClass(ApplicationClasses.ApplicationClass applicationClass) throws Exception {
+        CtClass ctClass = makeClass(applicationClass);
+        CtClass modelClass = classPool.get(ObjectifyModel.class.getName());
+        if (ctClass.isInterface() || Modifier.isAbstract(ctClass.getModifiers()) || ctClass.equals(modelClass)
+                || !ctClass.subclassOf(modelClass)) {
+            return;
+        }
+        for (CtField field : ctClass.getDeclaredFields()) {
+            if (field.getName().equals(ObjectifyFieldAccess.FIELD_NAMES)) {
+                return;
+            }
+        }
+        List<CtField> fields = getFields(ctClass, modelClass);
+        if (fields == null || fields.isEmpty()) {
+            return;
+        }
+
+        StringBuilder names = new StringBuilder();
+        StringBuilder getter = new StringBuilder("public Object _getField(int index) { switch (index) {");
+        StringBuilder setter = new StringBuilder("public void _setField(int index, Object value) { switch (index) {");
+        for (int i = 0; i < fields.size(); i++) {
+            CtField field = fields.get(i);
+            CtClass type = field.getType();
+            names.append(i > 0 ? "," : "").append(field.getName());
+            getter.append(" case ").append(i).append(": return ($w) this.").append(field.getName()).append(";");
+            setter.append(" case ").append(i).append(": this.").append(field.getName()).append(" = ");
+            if (type.isPrimitive()) {
+                String wrapper = ((CtPrimitiveType) type).getWrapperName();
+                setter.append("((").append(wrapper).append(") value).").append(type.getName()).append("Value();");
+            }
+            else {
+                setter.append("(").append(type.getName()).append(") value;");
+            }
+            setter.append(" return;");
+        }
+        getter.append(" } throw new IllegalArgumentException(\"No field \" + index); }");
+        setter.append(" } throw new IllegalArgumentException(\"No field \" + index); }");
+
+        CtField fieldNames = new CtField(classPool.get(String.class.getName()), ObjectifyFieldAccess.FIELD_NAMES, ctClass);
+        fieldNames.setModifiers(Modifier.PUBLIC | Modifier.STATIC | Modifier.FINAL);
+        ctClass.addField(fieldNames, CtField.Initializer.constant(names.toString()));
+        ctClass.addInterface(classPool.get(ObjectifyFieldAccess.class.getName()));
+        ctClass.addMethod(CtMethod.make(getter.toString(), ctClass));
+        ctClass.addMethod(CtMethod.make(setter.toString(), ctClass));
+
+        applicationClass.enhancedByteCode = ctClass.toBytecode();
+        ctClass.defrost();
+    }
+
+    /**
+     * Returns the persistent fields accessible from a class, superclass fields first, or null if a field is
+     * shadowed.
+     *
+     * @param ctClass the class
+     * @param modelClass the {@link ObjectifyModel} class
+     * @return the fields or null
+     * @throws Exception if a class cannot be read
+     */
+    protected List<CtField> getFields(CtClass ctClass, CtClass modelClass) throws Exception {
+        List<CtClass> hierarchy = new ArrayList<CtClass>();
+        for (CtClass current = ctClass; current != null && !current.equals(modelClass); current = current.getSuperclass()) {
+            hierarchy.add(0, current);
+        }
+        List<CtField> fields = new ArrayList<CtField>();
+        Set<String> names = new HashSet<String>();
+        for (CtClass current : hierarchy) {
+            for (CtField field : current.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.getName().indexOf('$') >= 0
+                        || hasAnnotation(field, "javax.persistence.Transient")
+                        || hasAnnotation(field, "javax.persistence.Id")
+                        || hasAnnotation(field, "com.googlecode.objectify.annotation.Parent")) {
+                    continue;
+                }
+                if (!names.add(field.getName())) {
+                    return null;
+                }
+                boolean accessible = current.equals(ctClass) || Modifier.isPublic(modifiers) || Modifier.isProtected(modifiers)
+                        || (!Modifier.isPrivate(modifiers) && current.getPackageName() != null
+                        && current.getPackageName().equals(ctClass.getPackageName()));
+                if (accessible) {
+                    fields.add(field);
+                }
+            }
+        }
+        return fields;
+    }
+
+}
@@ -1,9 +1,19 @@
 package play.modules.objectify;
 
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceConfig;
 import com.google.appengine.api.datastore.KeyFactory;
 import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyOpts;
+import com.googlecode.objectify.annotation.Parent;
 import play.Play;
 
+import javax.persistence.GeneratedValue;
+import java.lang.reflect.Field;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * A convenient subclass of {@link com.googlecode.objectify.ObjectifyFactory} with better handling of
  * keys and working with Play's dynamic classloaders.
@@ -13,6 +23,37 @@ import play.Play;
  */
 public class ObjectifyFactory extends com.googlecode.objectify.ObjectifyFactory {
 
+    protected static final int MAX_UNWRITTEN_KEYS = 10000;
+
+    protected Map<String, ObjectifyIdPool> idPools = new ConcurrentHashMap<String, ObjectifyIdPool>();
+    protected Map<Class<?>, Boolean> pooledClasses = new ConcurrentHashMap<Class<?>, Boolean>();
+    protected Map<com.google.appengine.api.datastore.Key, Boolean> unwrittenKeys =
+            new ConcurrentHashMap<com.google.appengine.api.datastore.Key, Boolean>();
+    protected ObjectifyCascade cascade = new ObjectifyCascade(this);
+
+    /**
+     * Registers a class, also recording its metadata for cascading deletes and installing an
+     * {@link ObjectifyTranslator} if the class was enhanced by the {@link ObjectifyEnhancer}.
+     *
+     * @param clazz the class
+     * @param <T> the type
+     */
+    @Override
+    public <T> void register(Class<T> clazz) {
+        super.register(clazz);
+        ObjectifyTranslator.install(this, clazz);
+        cascade.register(clazz);
+    }
+
+    /**
+     * Returns the {@link ObjectifyCascade} of the registered classes.
+     *
+     * @return the cascade
+     */
+    public ObjectifyCascade getCascade() {
+        return cascade;
+    }
+
     /**
      * Returns the kind for a given class name.
      *
@@ -24,6 +65,156 @@ public class ObjectifyFactory extends com.googlecode.objectify.ObjectifyFactory
         return super.getKind(loadClass(className));
     }
 
+    /**
+     * Returns the datastore service, wrapped to record the entities requested from the global cache
+     * if {@link ObjectifyMetrics} are enabled.
+     *
+     * @param opts the options
+     * @return the datastore service
+     */
+    @Override
+    protected DatastoreService getDatastoreService(ObjectifyOpts opts) {
+        DatastoreService ds = super.getDatastoreService(opts);
+        if (ObjectifyMetrics.isEnabled() && !(ds instanceof MetricsDatastoreService)) {
+            ds = new MetricsDatastoreService(ds, true);
+        }
+        return ds;
+    }
+
+    /**
+     * Returns the raw datastore service, wrapped to record every RPC if {@link ObjectifyMetrics} are enabled.
+     *
+     * @param cfg the config
+     * @return the raw datastore service
+     */
+    @Override
+    protected DatastoreService getRawDatastoreService(DatastoreServiceConfig cfg) {
+        DatastoreService ds = super.getRawDatastoreService(cfg);
+        if (ObjectifyMetrics.isEnabled()) {
+            ds = new MetricsDatastoreService(ds, false);
+        }
+        return ds;
+    }
+
+    /**
+     * Returns an id reserved for a new entity of the given class from the {@link ObjectifyIdPool} of its kind.
+     *
+     * @param clazz the class, whose @Id must be a Long annotated with {@link GeneratedValue} and which must not
+     * have a {@link Parent}
+     * @return the id
+     */
+    public long allocateId(Class<?> clazz) {
+        if (!isPooled(clazz)) {
+            throw new IllegalArgumentException("Ids of " + clazz.getName() + " are not pooled, see ObjectifyIdPool");
+        }
+        String kind = getKind(clazz);
+        ObjectifyIdPool pool = idPools.get(kind);
+        if (pool == null) {
+            synchronized (idPools) {
+                pool = idPools.get(kind);
+                if (pool == null) {
+                    pool = new ObjectifyIdPool(getRawDatastoreService(DatastoreServiceConfig.Builder.withDefaults()), kind, getIdPoolSize());
+                    idPools.put(kind, pool);
+                }
+            }
+        }
+        return pool.next();
+    }
+
+    /**
+     * Discards the {@link ObjectifyIdPool} of a kind along with the ids it handed out which have not been written,
+     * as when entities are imported with ids the pool may have reserved, so that such ids are neither handed out
+     * again nor treated as new.
+     *
+     * @param kind the kind
+     */
+    public void resetIdPool(String kind) {
+        idPools.remove(kind);
+        for (Iterator<com.google.appengine.api.datastore.Key> iterator = unwrittenKeys.keySet().iterator(); iterator.hasNext(); ) {
+            if (kind.equals(iterator.next().getKind())) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Assigns an id from the {@link ObjectifyIdPool} of its kind to a new entity whose ids are pooled, so that its
+     * key is known before it is written. Other entities are returned unchanged.
+     *
+     * @param obj the entity
+     * @param <T> the type
+     * @return the entity
+     */
+    public <T> T assignId(T obj) {
+        if (obj != null && isPooled(obj.getClass())) {
+            Field field = ObjectifyVersioning.getFields(obj.getClass())[0];
+            try {
+                if (field.get(obj) == null) {
+                    field.set(obj, allocateId(obj.getClass()));
+                    if (unwrittenKeys.size() >= MAX_UNWRITTEN_KEYS) {
+                        unwrittenKeys.clear();
+                    }
+                    unwrittenKeys.put(getRawKey(obj), Boolean.TRUE);
+                }
+            }
+            catch (IllegalAccessException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return obj;
+    }
+
+    /**
+     * Returns true if the entity was assigned an id by {@link #assignId(Object)} and has not been written since, so
+     * is known to be new. Only the most recent assignments are remembered.
+     *
+     * @param obj the entity
+     * @return true if known to be new, false otherwise
+     */
+    public boolean isUnwritten(Object obj) {
+        return !unwrittenKeys.isEmpty() && isPooled(obj.getClass()) && unwrittenKeys.containsKey(getRawKey(obj));
+    }
+
+    /**
+     * Notes that an entity has been written, see {@link #isUnwritten(Object)}.
+     *
+     * @param obj the entity
+     */
+    public void markWritten(Object obj) {
+        if (!unwrittenKeys.isEmpty() && isPooled(obj.getClass())) {
+            unwrittenKeys.remove(getRawKey(obj));
+        }
+    }
+
+    /**
+     * Returns true if the ids of new entities of the given class are handed out from an {@link ObjectifyIdPool},
+     * being classes without a {@link Parent} whose Long @Id is annotated with {@link GeneratedValue}, provided
+     * "objectify.idPool.size" is not 0.
+     *
+     * @param clazz the class
+     * @return true if pooled, false otherwise
+     */
+    public boolean isPooled(Class<?> clazz) {
+        Boolean pooled = pooledClasses.get(clazz);
+        if (pooled == null) {
+            Field idField = ObjectifyVersioning.getFields(clazz)[0];
+            pooled = idField != null && Long.class.equals(idField.getType()) && idField.isAnnotationPresent(GeneratedValue.class);
+            for (Class<?> c = clazz; pooled && c != null && !c.equals(Object.class); c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (field.isAnnotationPresent(Parent.class)) {
+                        pooled = false;
+                    }
+                }
+            }
+            pooledClasses.put(clazz, pooled);
+        }
+        return pooled && getIdPoolSize() > 0;
+    }
+
+    protected long getIdPoolSize() {
+        return Long.parseLong(Play.configuration.getProperty("objectify.idPool.size", "50"));
+    }
+
     /**
      * Loads a class using Play's dynamic classloader.
      *
@@ -111,6 +302,26 @@ public class ObjectifyFactory extends com.googlecode.objectify.ObjectifyFactory
         return (Key<T>) current;
     }
 
+    /**
+     * Converts a raw key to a {@link Ref}, being a {@link Key} which may also be set to fields of type
+     * <code>Ref</code> when entities are loaded.
+     *
+     * @param rawKey the raw key
+     * @param <T> the key type
+     * @return the ref
+     */
+    @Override
+    public <T> Key<T> rawKeyToTypedKey(com.google.appengine.api.datastore.Key rawKey) {
+        if (rawKey == null) {
+            return null;
+        }
+        Class<T> entityClass = this.<T>getMetadata(rawKey).getEntityClass();
+        if (rawKey.getName() != null) {
+            return new Ref<T>(rawKeyToTypedKey(rawKey.getParent()), entityClass, rawKey.getName());
+        }
+        return new Ref<T>(rawKeyToTypedKey(rawKey.getParent()), entityClass, rawKey.getId());
+    }
+
     /**
      * Returns a string representation of a key given an input key or entity.
      *
@@ -0,0 +1,37 @@
+package play.modules.objectify;
+
+/**
+ * The field accessors generated by the {@link ObjectifyEnhancer} on {@link ObjectifyModel} subclasses, through
+ * which the {@link ObjectifyTranslator} reads and writes persistent fields without reflection. An enhanced class
+ * also declares a static {@link #FIELD_NAMES} field holding the comma separated names of the fields, in index
+ * order, so that the fields can be known without instantiating the class.
+ * <p/>
+ * This interface is internal and should not be implemented by application classes.
+ *
+ * @author David Cheong
+ * @since 19/10/2010
+ */
+public interface ObjectifyFieldAccess {
+
+    /**
+     * The name of the static field declared by each enhanced class.
+     */
+    String FIELD_NAMES = "_FIELD_NAMES";
+
+    /**
+     * Returns the value of a persistent field.
+     *
+     * @param index the index of the field in the field names
+     * @return the value, boxed if primitive
+     */
+    Object _getField(int index);
+
+    /**
+     * Sets the value of a persistent field.
+     *
+     * @param index the index of the field in the field names
+     * @param value the value, boxed if primitive
+     */
+    void _setField(int index, Object value);
+
+}
@@ -0,0 +1,131 @@
+package play.modules.objectify;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.KeyRange;
+import play.Logger;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A pool of datastore ids of a kind, reserved in ranges via allocateIds so that ids may be handed out locally
+ * before entities are written, as when keying the children of a new parent or putting a new graph in a single
+ * batch. Ids are handed out without locks from the current range. Once half of a range has been used, the next
+ * range is reserved ahead of demand on the shared background executor (see {@link Utils#execute(Runnable)}), in
+ * the API environment of the request which triggered it. Where the runtime does not allow threads, the next
+ * range is instead reserved when the current one runs out.
+ * <p/>
+ * Ranges are disjoint, so an id is never handed out twice, and ranges abandoned when two threads race to replace
+ * an exhausted range merely leave gaps. Reserving a range is recorded in the {@link ObjectifyMetrics} statistics
+ * but not counted against the invocation which triggered it, whose RPC count would otherwise depend on the state
+ * of the pool.
+ *
+ * @author David Cheong
+ * @since 19/10/2010
+ * @see ObjectifyFactory#allocateId(Class)
+ */
+public class ObjectifyIdPool {
+
+    protected DatastoreService ds;
+    protected String kind;
+    protected long size;
+    protected AtomicReference<Range> current = new AtomicReference<Range>(new Range(1, 0));
+    protected AtomicReference<Range> spare = new AtomicReference<Range>();
+    protected AtomicBoolean refilling = new AtomicBoolean();
+
+    public ObjectifyIdPool(DatastoreService ds, String kind, long size) {
+        this.ds = ds;
+        this.kind = kind;
+        this.size = size;
+    }
+
+    /**
+     * Returns the next id of the pool.
+     *
+     * @return the id
+     */
+    public long next() {
+        while (true) {
+            Range range = current.get();
+            long id = range.next.getAndIncrement();
+            if (id <= range.end) {
+                if (id == range.prefetchAt) {
+                    prefetch();
+                }
+                return id;
+            }
+            Range next = spare.getAndSet(null);
+            if (next == null) {
+                synchronized (this) {
+                    if (current.get() == range) {
+                        current.set(allocate());
+                    }
+                }
+            }
+            else if (!current.compareAndSet(range, next)) {
+                spare.compareAndSet(null, next);
+            }
+        }
+    }
+
+    /**
+     * Reserves the next range on a background thread unless already doing so.
+     */
+    protected void prefetch() {
+        if (spare.get() != null || !refilling.compareAndSet(false, true)) {
+            return;
+        }
+        boolean submitted = Utils.execute(new Runnable() {
+            public void run() {
+                try {
+                    spare.compareAndSet(null, allocate());
+                }
+                catch (RuntimeException e) {
+                    Logger.warn(e, "Objectify: unable to reserve ids of kind %s", kind);
+                }
+                finally {
+                    refilling.set(false);
+                }
+            }
+        });
+        if (!submitted) {
+            refilling.set(false);
+        }
+    }
+
+    /**
+     * Reserves a range of ids. The RPC is made on behalf of the pool rather than the invocation which happens to
+     * trigger it, so it is kept out of the {@link ObjectifyMetrics} of the invocation.
+     *
+     * @return the range
+     */
+    protected Range allocate() {
+        ObjectifyMetrics.Invocation invocation = ObjectifyMetrics.suspend();
+        try {
+            KeyRange range = ds.allocateIds(kind, size);
+            return new Range(range.getStart().getId(), range.getEnd().getId());
+        }
+        finally {
+            ObjectifyMetrics.resume(invocation);
+        }
+    }
+
+    /**
+     * A reserved range of ids, from the next id to be handed out to the end inclusive.
+     */
+    protected static class Range {
+
+        protected final AtomicLong next;
+        protected final long end;
+        protected final long prefetchAt;
+
+        public Range(long start, long end) {
+            this.next = new AtomicLong(start);
+            this.end = end;
+            this.prefetchAt = start + (end - start + 1) / 2;
+        }
+
+    }
+
+}
@@ -0,0 +1,121 @@
+package play.modules.objectify;
+
+import play.Logger;
+import play.Play;
+import play.exceptions.UnexpectedException;
+
+import java.util.HashMap;
+
+/**
+ * Detects N+1 access patterns in dev mode (which includes tests), such as <code>passenger.flight.fetch()</code>
+ * inside a <code>#{list}</code>, by counting the single entity gets made through {@link ObjectifyService} per kind
+ * and call site within an action, including the rendering of its template, or within an invocation other than a
+ * request such as a job. Counts are kept with the {@link ObjectifyMetrics} begun by the {@link ObjectifyPlugin}
+ * for each action, so that actions invoked directly by functional tests are tracked too. The call site is the
+ * first stack frame outside of this module, Objectify, the JDK and Groovy, so that gets made from templates are
+ * attributed to the template.
+ * <p/>
+ * Once more than "objectify.loopDetector.threshold" (defaults to 10) gets of the same kind are made from the same
+ * site, a warning suggesting a batch get is logged, or an exception is thrown when "objectify.loopDetector" is set
+ * to "fail". Set "objectify.loopDetector" to "off" to disable detection, which is never active in prod mode.
+ *
+ * @author David Cheong
+ * @since 19/10/2010
+ */
+public class ObjectifyLoopDetector {
+
+    protected static final String[] IGNORED_PREFIXES = {
+            "play.modules.objectify.",
+            "com.googlecode.objectify.",
+            "extensions.ObjectifyKeyExtensions",
+            "java.",
+            "javax.",
+            "sun.",
+            "groovy.",
+            "org.codehaus.groovy.",
+            "play.templates.",
+            "play.classloading."
+    };
+
+    /**
+     * Returns the configured mode, one of "warn", "fail" or "off".
+     *
+     * @return the mode
+     */
+    public static String getMode() {
+        if (Play.mode == null || !Play.mode.isDev()) {
+            return "off";
+        }
+        return Play.configuration.getProperty("objectify.loopDetector", "warn");
+    }
+
+    /**
+     * Returns the number of single gets of a kind from a call site allowed per invocation.
+     *
+     * @return the threshold
+     */
+    public static int getThreshold() {
+        return Integer.parseInt(Play.configuration.getProperty("objectify.loopDetector.threshold", "10"));
+    }
+
+    /**
+     * Tracks a single entity get of the given class or key against the current action or invocation, if any.
+     *
+     * @param classOrKey the class or key
+     */
+    public static void track(Object classOrKey) {
+        String mode = getMode();
+        if ("off".equalsIgnoreCase(mode)) {
+            return;
+        }
+        ObjectifyMetrics.Invocation invocation = ObjectifyMetrics.current();
+        if (invocation == null) {
+            return;
+        }
+        if (invocation.singleGets == null) {
+            invocation.singleGets = new HashMap<String, Integer>();
+        }
+        String kind = ObjectifyService.getKind(classOrKey);
+        String site = getCallSite();
+        String name = kind + "@" + site;
+        Integer count = invocation.singleGets.get(name);
+        count = count == null ? 1 : count + 1;
+        invocation.singleGets.put(name, count);
+        int threshold = getThreshold();
+        if (count == threshold + 1) {
+            String msg = "Possible N+1: more than " + threshold + " single gets of kind '" + kind + "' from " + site
+                    + " in " + invocation.getName() + ", consider collecting the keys and batch loading them"
+                    + " with Datastore.getList(keys) or Datastore.get(keys)";
+            if ("fail".equalsIgnoreCase(mode)) {
+                throw new UnexpectedException(msg);
+            }
+            Logger.warn(msg);
+        }
+    }
+
+    /**
+     * Returns the first stack frame outside of the ignored packages.
+     *
+     * @return the call site
+     */
+    protected static String getCallSite() {
+        StackTraceElement[] elements = new Throwable().getStackTrace();
+        for (StackTraceElement element : elements) {
+            if (!isIgnored(element.getClassName())) {
+                return element.getClassName() + "." + element.getMethodName()
+                        + "(" + element.getFileName() + ":" + element.getLineNumber() + ")";
+            }
+        }
+        return "unknown";
+    }
+
+    protected static boolean isIgnored(String className) {
+        for (String prefix : IGNORED_PREFIXES) {
+            if (className.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
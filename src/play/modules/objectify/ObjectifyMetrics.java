@@ -0,0 +1,549 @@
+package play.modules.objectify;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import play.Logger;
+import play.Play;
+import play.mvc.Http;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Low overhead datastore operation metrics, recorded by {@link MetricsDatastoreService} per operation and kind.
+ * Counters and histograms are striped by thread so that concurrent requests rarely contend on the same cache line.
+ * Metrics are enabled by default and may be disabled by setting "objectify.metrics" to false.
+ * <p/>
+ * Each Play invocation also accumulates its own RPCs, entities and datastore time which are logged at the end of
+ * the invocation when exceeding "objectify.metrics.threshold.rpcs" (defaults to 50) or
+ * "objectify.metrics.threshold.time" (in milliseconds, defaults to 1000).
+ *
+ * @author David Cheong
+ * @since 19/10/2010
+ * @see ObjectifyPlugin#getStatus()
+ */
+public class ObjectifyMetrics {
+
+    public static final String GET = "get";
+    public static final String PUT = "put";
+    public static final String DELETE = "delete";
+    public static final String QUERY = "query";
+    public static final String COUNT = "count";
+    public static final String TXN = "txn";
+    public static final String COMMIT = "commit";
+    public static final String ROLLBACK = "rollback";
+    public static final String ALLOCATE = "allocate";
+
+    /**
+     * Upper bounds (inclusive, in milliseconds) of the latency histogram buckets, the last bucket being unbounded.
+     */
+    protected static final long[] LATENCY_BOUNDS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000};
+
+    /**
+     * Upper bounds (inclusive) of the batch size histogram buckets, the last bucket being unbounded.
+     */
+    protected static final long[] BATCH_BOUNDS = {0, 1, 2, 5, 10, 20, 50, 100, 200, 500};
+
+    protected static final int STRIPES = stripes();
+
+    protected static Map<String, Stat> stats = new ConcurrentHashMap<String, Stat>();
+
+    protected static ThreadLocal<Invocation> invocation = new ThreadLocal<Invocation>();
+
+    /**
+     * Returns true if metrics are enabled via "objectify.metrics".
+     *
+     * @return true if enabled, false otherwise
+     */
+    public static boolean isEnabled() {
+        return Boolean.parseBoolean(Play.configuration.getProperty("objectify.metrics", "true"));
+    }
+
+    /**
+     * Records a datastore RPC.
+     *
+     * @param op the operation
+     * @param kind the kind or null if kindless
+     * @param entities the number of entities read or written
+     * @param nanos the time taken in nanoseconds
+     */
+    public static void record(String op, String kind, int entities, long nanos) {
+        getStat(op, kind).record(entities, nanos);
+        Invocation current = invocation.get();
+        if (current != null) {
+            current.record(op, kind, entities, nanos);
+        }
+    }
+
+    /**
+     * Records entities read after the RPC of an operation was recorded, as when iterating query results.
+     *
+     * @param op the operation
+     * @param kind the kind or null if kindless
+     * @param entities the number of entities read
+     */
+    public static void recordEntities(String op, String kind, int entities) {
+        getStat(op, kind).add(Stat.ENTITIES, entities);
+        Invocation current = invocation.get();
+        if (current != null) {
+            current.entities += entities;
+            current.entitiesRead += entities;
+        }
+    }
+
+    /**
+     * Records the number of entities requested from the global cache, of which those not cached are then
+     * read from the datastore, giving the cache hit rate.
+     *
+     * @param kind the kind
+     * @param entities the number of entities requested
+     */
+    public static void recordRequested(String kind, int entities) {
+        getStat(GET, kind).add(Stat.REQUESTED, entities);
+    }
+
+    /**
+     * Records a failed operation.
+     *
+     * @param op the operation
+     * @param kind the kind or null if kindless
+     */
+    public static void recordError(String op, String kind) {
+        getStat(op, kind).add(Stat.ERRORS, 1);
+    }
+
+    /**
+     * Returns the statistics of the given operation and kind, creating them if necessary.
+     *
+     * @param op the operation
+     * @param kind the kind or null if kindless
+     * @return the statistics
+     */
+    public static Stat getStat(String op, String kind) {
+        String name = op + "." + (kind != null ? kind : "");
+        Stat stat = stats.get(name);
+        if (stat == null) {
+            synchronized (stats) {
+                stat = stats.get(name);
+                if (stat == null) {
+                    stat = new Stat(op, kind);
+                    stats.put(name, stat);
+                }
+            }
+        }
+        return stat;
+    }
+
+    /**
+     * Returns all statistics sorted by operation and kind.
+     *
+     * @return the statistics
+     */
+    public static List<Stat> getStats() {
+        List<String> names = new ArrayList<String>(stats.keySet());
+        Collections.sort(names);
+        List<Stat> list = new ArrayList<Stat>();
+        for (String name : names) {
+            list.add(stats.get(name));
+        }
+        return list;
+    }
+
+    /**
+     * Resets all statistics.
+     */
+    public static void reset() {
+        stats.clear();
+    }
+
+    /**
+     * Starts accumulating the metrics of the current invocation.
+     */
+    public static void begin() {
+        invocation.set(new Invocation());
+    }
+
+    /**
+     * Starts accumulating the metrics of an action, which are those checked against an {@link ObjectifyBudget}.
+     * Actions normally run within an invocation, into whose metrics the action's are added once it ends, but
+     * functional tests invoke them directly. The metrics of a previous action left current by an action which
+     * failed are discarded.
+     */
+    public static void beginAction() {
+        Invocation current = invocation.get();
+        Invocation action = new Invocation();
+        action.action = true;
+        action.parent = current != null && current.action ? current.parent : current;
+        invocation.set(action);
+    }
+
+    /**
+     * Ends the current action, adding its metrics to those of the enclosing invocation, if any, which becomes
+     * current again.
+     *
+     * @return the action metrics or null if no action is current
+     */
+    public static Invocation endAction() {
+        Invocation current = invocation.get();
+        if (current == null || !current.action) {
+            return null;
+        }
+        if (current.parent != null) {
+            current.parent.add(current);
+            invocation.set(current.parent);
+        }
+        else {
+            invocation.remove();
+        }
+        return current;
+    }
+
+    /**
+     * Returns the metrics of the current invocation or null if none.
+     *
+     * @return the invocation metrics
+     */
+    public static Invocation current() {
+        return invocation.get();
+    }
+
+    /**
+     * Returns true if the current thread is within a Play invocation (a request or a job), whose metrics are begun
+     * by the {@link ObjectifyPlugin} whether or not metrics are enabled, rather than on a thread of its own such
+     * as a worker of the {@link ObjectifyScanner}. State kept for the duration of an invocation is only kept
+     * within one, as it is released at its end.
+     *
+     * @return true if within an invocation, false otherwise
+     */
+    public static boolean isInvocation() {
+        return invocation.get() != null;
+    }
+
+    /**
+     * Detaches the metrics of the current invocation from the thread, so that RPCs made on behalf of the module
+     * rather than the invocation (such as reserving the ids of an {@link ObjectifyIdPool}) are recorded in the
+     * statistics but not counted against the invocation or its {@link ObjectifyBudget}.
+     *
+     * @return the invocation metrics to {@link #resume(Invocation)}, or null if none
+     */
+    public static Invocation suspend() {
+        Invocation current = invocation.get();
+        invocation.remove();
+        return current;
+    }
+
+    /**
+     * Reattaches the metrics of an invocation detached by {@link #suspend()}.
+     *
+     * @param current the invocation metrics or null if none
+     */
+    public static void resume(Invocation current) {
+        if (current != null) {
+            invocation.set(current);
+        }
+    }
+
+    /**
+     * Ends the current invocation, logging its summary if it exceeds the configured thresholds.
+     *
+     * @return the invocation metrics or null if none
+     */
+    public static Invocation end() {
+        Invocation current = invocation.get();
+        invocation.remove();
+        if (current != null) {
+            int maxRpcs = Integer.parseInt(Play.configuration.getProperty("objectify.metrics.threshold.rpcs", "50"));
+            long maxMillis = Long.parseLong(Play.configuration.getProperty("objectify.metrics.threshold.time", "1000"));
+            if (current.rpcs > maxRpcs || current.getMillis() > maxMillis) {
+                Logger.warn("Objectify: %s", current);
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Returns the metrics as text for {@link ObjectifyPlugin#getStatus()}.
+     *
+     * @return the status
+     */
+    public static String getStatus() {
+        StringWriter sw = new StringWriter();
+        PrintWriter out = new PrintWriter(sw);
+        out.println("Objectify:");
+        out.println("~~~~~~~~~~");
+        for (Stat stat : getStats()) {
+            out.println(stat);
+        }
+        return sw.toString();
+    }
+
+    /**
+     * Returns the metrics as JSON for {@link ObjectifyPlugin#getJsonStatus()}.
+     *
+     * @return the status
+     */
+    public static JsonObject getJsonStatus() {
+        JsonArray array = new JsonArray();
+        for (Stat stat : getStats()) {
+            array.add(stat.toJson());
+        }
+        JsonObject status = new JsonObject();
+        status.add("objectify", array);
+        return status;
+    }
+
+    protected static int stripes() {
+        int stripes = 1;
+        while (stripes < Runtime.getRuntime().availableProcessors() * 2 && stripes < 64) {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+
+    protected static int bucket(long[] bounds, long value) {
+        for (int i = 0; i < bounds.length; i++) {
+            if (value <= bounds[i]) {
+                return i;
+            }
+        }
+        return bounds.length;
+    }
+
+    /**
+     * A set of counters striped by thread, each stripe occupying its own row so that threads rarely share
+     * a cache line.
+     */
+    public static class StripedCounters {
+
+        protected final int width;
+        protected final AtomicLongArray cells;
+
+        public StripedCounters(int size) {
+            this.width = Math.max(size, 8);
+            this.cells = new AtomicLongArray(STRIPES * width);
+        }
+
+        public void add(int index, long value) {
+            int stripe = (int) (Thread.currentThread().getId() & (STRIPES - 1));
+            cells.addAndGet(stripe * width + index, value);
+        }
+
+        public long get(int index) {
+            long sum = 0;
+            for (int stripe = 0; stripe < STRIPES; stripe++) {
+                sum += cells.get(stripe * width + index);
+            }
+            return sum;
+        }
+
+    }
+
+    /**
+     * The statistics of an operation on a kind: calls, entities, errors, time and histograms of latencies
+     * and batch sizes.
+     */
+    public static class Stat {
+
+        public static final int CALLS = 0;
+        public static final int ENTITIES = 1;
+        public static final int NANOS = 2;
+        public static final int ERRORS = 3;
+        public static final int REQUESTED = 4;
+
+        protected final String op;
+        protected final String kind;
+        protected final StripedCounters counters = new StripedCounters(REQUESTED + 1);
+        protected final StripedCounters latencies = new StripedCounters(LATENCY_BOUNDS.length + 1);
+        protected final StripedCounters batches = new StripedCounters(BATCH_BOUNDS.length + 1);
+
+        public Stat(String op, String kind) {
+            this.op = op;
+            this.kind = kind;
+        }
+
+        public void record(int entities, long nanos) {
+            counters.add(CALLS, 1);
+            counters.add(ENTITIES, entities);
+            counters.add(NANOS, nanos);
+            latencies.add(bucket(LATENCY_BOUNDS, nanos / 1000000L), 1);
+            batches.add(bucket(BATCH_BOUNDS, entities), 1);
+        }
+
+        public void add(int index, long value) {
+            counters.add(index, value);
+        }
+
+        public String getOp() {
+            return op;
+        }
+
+        public String getKind() {
+            return kind;
+        }
+
+        public long get(int index) {
+            return counters.get(index);
+        }
+
+        public double getMeanMillis() {
+            long calls = get(CALLS);
+            return calls == 0 ? 0 : get(NANOS) / 1000000.0 / calls;
+        }
+
+        public double getMeanBatch() {
+            long calls = get(CALLS);
+            return calls == 0 ? 0 : (double) get(ENTITIES) / calls;
+        }
+
+        /**
+         * Returns the upper bound in milliseconds of the latency bucket holding the given percentile, or -1 if
+         * it falls within the unbounded bucket.
+         *
+         * @param percentile the percentile between 0 and 100
+         * @return the latency in milliseconds
+         */
+        public long getPercentileMillis(double percentile) {
+            long[] counts = new long[LATENCY_BOUNDS.length + 1];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = latencies.get(i);
+                total += counts[i];
+            }
+            long target = (long) Math.ceil(total * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < LATENCY_BOUNDS.length; i++) {
+                seen += counts[i];
+                if (seen >= target) {
+                    return LATENCY_BOUNDS[i];
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Returns the global cache hit rate of gets between 0 and 1, or -1 if not applicable.
+         *
+         * @return the hit rate
+         */
+        public double getHitRate() {
+            long requested = get(REQUESTED);
+            if (requested == 0) {
+                return -1;
+            }
+            return Math.max(0, 1.0 - (double) get(ENTITIES) / requested);
+        }
+
+        public JsonObject toJson() {
+            JsonObject json = new JsonObject();
+            json.addProperty("op", op);
+            json.addProperty("kind", kind != null ? kind : "");
+            json.addProperty("calls", get(CALLS));
+            json.addProperty("entities", get(ENTITIES));
+            json.addProperty("errors", get(ERRORS));
+            json.addProperty("meanMillis", getMeanMillis());
+            json.addProperty("meanBatch", getMeanBatch());
+            json.addProperty("p50Millis", getPercentileMillis(50));
+            json.addProperty("p90Millis", getPercentileMillis(90));
+            json.addProperty("p99Millis", getPercentileMillis(99));
+            if (get(REQUESTED) > 0) {
+                json.addProperty("cacheHitRate", getHitRate());
+            }
+            return json;
+        }
+
+        @Override
+        public String toString() {
+            String s = String.format("%-8s %-24s calls=%d entities=%d errors=%d mean=%.1fms p50<=%dms p90<=%dms p99<=%dms batch=%.1f",
+                    op, kind != null ? kind : "-", get(CALLS), get(ENTITIES), get(ERRORS), getMeanMillis(),
+                    getPercentileMillis(50), getPercentileMillis(90), getPercentileMillis(99), getMeanBatch());
+            if (get(REQUESTED) > 0) {
+                s += String.format(" cacheHitRate=%.2f", getHitRate());
+            }
+            return s;
+        }
+
+    }
+
+    /**
+     * The metrics of a single invocation, only ever accessed by the invocation's thread.
+     */
+    public static class Invocation {
+
+        public int rpcs;
+        public long entities;
+        public long entitiesRead;
+        public long nanos;
+        public long started = System.currentTimeMillis();
+        public Map<String, int[]> ops = new LinkedHashMap<String, int[]>();
+        public Map<String, Integer> singleGets;
+        public boolean action;
+        public Invocation parent;
+
+        public void record(String op, String kind, int entities, long nanos) {
+            this.rpcs++;
+            this.entities += entities;
+            if (GET.equals(op) || QUERY.equals(op)) {
+                this.entitiesRead += entities;
+            }
+            this.nanos += nanos;
+            String name = op + (kind != null ? " " + kind : "");
+            int[] count = ops.get(name);
+            if (count == null) {
+                count = new int[2];
+                ops.put(name, count);
+            }
+            count[0]++;
+            count[1] += entities;
+        }
+
+        public void add(Invocation other) {
+            this.rpcs += other.rpcs;
+            this.entities += other.entities;
+            this.entitiesRead += other.entitiesRead;
+            this.nanos += other.nanos;
+            for (Map.Entry<String, int[]> entry : other.ops.entrySet()) {
+                int[] count = ops.get(entry.getKey());
+                if (count == null) {
+                    count = new int[2];
+                    ops.put(entry.getKey(), count);
+                }
+                count[0] += entry.getValue()[0];
+                count[1] += entry.getValue()[1];
+            }
+        }
+
+        public long getMillis() {
+            return nanos / 1000000L;
+        }
+
+        public String getName() {
+            Http.Request request = Http.Request.current();
+            return request != null ? request.action : Thread.currentThread().getName();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(getName()).append(" made ").append(rpcs).append(" datastore RPCs for ")
+                    .append(entities).append(" entities in ").append(getMillis()).append("ms (");
+            boolean first = true;
+            for (Map.Entry<String, int[]> entry : ops.entrySet()) {
+                if (!first) {
+                    sb.append(", ");
+                }
+                sb.append(entry.getKey()).append(" x").append(entry.getValue()[0]);
+                first = false;
+            }
+            return sb.append(")").toString();
+        }
+
+    }
+
+}
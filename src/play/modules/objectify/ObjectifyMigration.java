@@ -0,0 +1,159 @@
+package play.modules.objectify;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.googlecode.objectify.Objectify;
+import play.Play;
+
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+
+/**
+ * Rewrites every entity of a kind, optionally transforming it first, so that entities written before a change to
+ * the model pick up the change (such as a newly indexed or renamed field) without waiting to be saved again. The
+ * migration is an {@link ObjectifyScanner} scan, and is therefore split into parallel key ranges, checkpointed
+ * (a failed migration is resumed by running it again) and may be throttled so as not to disturb live traffic:
+ * <pre>
+ * Datastore.migrate(Flight.class, "trimPilots", new ObjectifyMigration.Transform&lt;Flight&gt;() {
+ *     public boolean transform(Flight flight) {
+ *         flight.pilot = flight.pilot.trim();
+ *         return true;
+ *     }
+ * });
+ * </pre>
+ * The checkpoints of a migration are kept under its name, which must therefore differ from that of any other
+ * migration of the kind. Entities are rewritten in batches. Entities with a {@link javax.persistence.Version}
+ * field are instead each rewritten within a short transaction which skips the entity, without changing its
+ * version, if it was saved since it was read by the migration (in which case it was written by the current model
+ * anyway), so that a migration never overwrites a concurrent change nor invalidates the forms of users editing
+ * the entity.
+ *
+ * @author David Cheong
+ * @since 19/10/2010
+ * @see ObjectifyService#migrate(Class, String, Transform)
+ */
+public class ObjectifyMigration<T> {
+
+    protected ObjectifyScanner<T> scanner;
+    protected Transform<T> transform;
+
+    /**
+     * Creates a migration which rewrites every entity of the given class as is, checkpointed under "migrate."
+     * followed by the kind.
+     *
+     * @param clazz the class
+     */
+    public ObjectifyMigration(Class<T> clazz) {
+        this.scanner = new ObjectifyScanner<T>(clazz).id("migrate." + ObjectifyService.getKind(clazz));
+    }
+
+    /**
+     * Creates a migration which transforms and rewrites every entity of the given class, checkpointed under
+     * "migrate." followed by the kind and the name of the migration. Each migration must be given a name of its
+     * own, so that it never resumes from the checkpoints of another migration of the same kind which failed.
+     *
+     * @param clazz the class
+     * @param name the name of the migration
+     * @param transform the transform
+     */
+    public ObjectifyMigration(Class<T> clazz, String name, Transform<T> transform) {
+        if (name == null || name.length() == 0 || transform == null) {
+            throw new IllegalArgumentException("A migration with a transform requires a name");
+        }
+        this.scanner = new ObjectifyScanner<T>(clazz).id("migrate." + ObjectifyService.getKind(clazz) + "." + name);
+        this.transform = transform;
+    }
+
+    /**
+     * Returns the scanner of the migration, to configure its id, ranges, chunk and batch sizes or throttle.
+     *
+     * @return the scanner
+     */
+    public ObjectifyScanner<T> getScanner() {
+        return scanner;
+    }
+
+    /**
+     * Runs the migration, resuming from checkpoints if a previous run did not complete.
+     *
+     * @return the statistics of the migration
+     */
+    public ObjectifyScanner.Stats run() {
+        return scanner.scan(new ObjectifyScanner.Processor<T>() {
+            public void process(T entity, ObjectifyScanner.Batch batch) throws Exception {
+                if (transform != null && !transform.transform(entity)) {
+                    return;
+                }
+                Field versionField = ObjectifyVersioning.getVersionField(entity.getClass());
+                if (versionField == null) {
+                    batch.put(entity);
+                }
+                else if (rewrite(entity, versionField)) {
+                    batch.stats.written.incrementAndGet();
+                }
+            }
+        });
+    }
+
+    /**
+     * Rewrites a versioned entity within a transaction of its own (as ranges are migrated on separate threads),
+     * unless its stored version differs from the version read.
+     *
+     * @param entity the entity
+     * @param versionField the version field
+     * @return true if rewritten, false if skipped
+     */
+    protected boolean rewrite(T entity, Field versionField) {
+        long version = ObjectifyVersioning.getVersion(versionField, entity);
+        Key key = ObjectifyService.factory().getRawKey(entity);
+        int retries = Integer.parseInt(Play.configuration.getProperty("objectify.txn.retries", "3"));
+        for (int i = 0; ; i++) {
+            Objectify objectify = ObjectifyService.factory().beginTransaction();
+            try {
+                Entity stored = objectify.getDatastore().get(objectify.getTxn(), key);
+                Object value = stored.getProperty(versionField.getName());
+                if ((value instanceof Number ? ((Number) value).longValue() : 0) != version) {
+                    return false;
+                }
+                objectify.put(entity);
+                objectify.getTxn().commit();
+                ObjectifyService.invalidate(Collections.singletonList(entity), null);
+                return true;
+            }
+            catch (EntityNotFoundException e) {
+                return false;
+            }
+            catch (ConcurrentModificationException e) {
+                if (i >= retries) {
+                    throw e;
+                }
+                ObjectifyTxnRunner.sleep(ObjectifyTxnRunner.getDelay(i));
+            }
+            finally {
+                if (objectify.getTxn().isActive()) {
+                    objectify.getTxn().rollback();
+                }
+            }
+        }
+    }
+
+    /**
+     * Transforms the entities of a migration. Invoked concurrently from multiple ranges and possibly more than
+     * once for the same entity, if a migration is resumed.
+     */
+    public interface Transform<T> {
+
+        /**
+         * Transforms an entity before it is rewritten.
+         *
+         * @param entity the entity
+         * @return true to rewrite the entity, false to leave it unchanged
+         * @throws Exception if the transform fails, which fails the migration
+         */
+        boolean transform(T entity) throws Exception;
+
+    }
+
+}
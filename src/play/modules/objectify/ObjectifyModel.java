@@ -1,8 +1,11 @@
 package play.modules.objectify;
 
+import com.google.appengine.api.datastore.Entity;
 import com.googlecode.objectify.Key;
 import play.db.Model;
 
+import javax.persistence.PostLoad;
+import javax.persistence.PrePersist;
 import java.lang.reflect.Field;
 
 /**
@@ -87,10 +90,61 @@ public abstract class ObjectifyModel<T extends ObjectifyModel> implements Model
     }
 
     /**
-     * Internal delete method.
+     * Internal delete method, which also deletes descendants and owned entities.
      */
     public void _delete() {
-        Datastore.delete(this);
+        Datastore.deleteCascade(this);
+    }
+
+    /**
+     * Internal pre-persist callback which maintains the search index of fields annotated with {@link Searchable}.
+     *
+     * @param entity the raw entity being saved
+     */
+    @PrePersist
+    protected void _index(Entity entity) {
+        ObjectifySearch.index(this, entity);
+    }
+
+    /**
+     * Internal pre-persist callback which stamps the field annotated with {@link LastModified}, if any.
+     */
+    @PrePersist
+    protected void _stamp() {
+        ObjectifyVersioning.stamp(this);
+    }
+
+    /**
+     * Internal post-load callback which marks the {@link Ref} fields, if any, as pending resolution.
+     */
+    @PostLoad
+    protected void _refs() {
+        Ref.register(this);
+    }
+
+    /**
+     * Internal post-load callback which keeps the raw entity loaded, if {@link ObjectifyDirtyTracking} is enabled.
+     *
+     * @param entity the raw entity loaded
+     */
+    @PostLoad
+    protected void _track(Entity entity) {
+        ObjectifyDirtyTracking.snapshot(this, entity);
+    }
+
+    /**
+     * Returns a cheap content version of this entity instance, being its {@link javax.persistence.Version} or
+     * its {@link LastModified} time, or null if it has neither.
+     *
+     * @return the content version or null
+     */
+    public String getContentVersion() {
+        Long version = ObjectifyVersioning.getVersion(this);
+        if (version != null) {
+            return String.valueOf(version);
+        }
+        long lastModified = ObjectifyVersioning.getLastModified(this);
+        return lastModified != 0 ? "t" + lastModified : null;
     }
 
     /**
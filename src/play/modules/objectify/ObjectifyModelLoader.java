@@ -1,8 +1,16 @@
 package play.modules.objectify;
 
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.googlecode.objectify.Objectify;
 import com.googlecode.objectify.Key;
 import com.googlecode.objectify.Query;
+import com.googlecode.objectify.annotation.Cached;
 import play.Logger;
+import play.Play;
 import play.db.Model;
 import play.exceptions.UnexpectedException;
 import play.libs.I18N;
@@ -17,6 +25,7 @@ import java.lang.reflect.Modifier;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author David Cheong
@@ -24,6 +33,9 @@ import java.util.*;
  */
 public class ObjectifyModelLoader implements ObjectifyModel.Factory {
 
+    protected static final int MAX_SEARCH_PLANS = 500;
+    protected static Map<String, SearchPlan> searchPlans = new ConcurrentHashMap<String, SearchPlan>();
+
     protected Class<? extends Model> modelClass;
 
     public void init(Class<? extends Model> modelClass) {
@@ -74,9 +86,143 @@ public class ObjectifyModelLoader implements ObjectifyModel.Factory {
 
     public List<? extends Model> fetch(String keywords, String orderBy, String orderDirection, int offset, int length) {
         Query<? extends Model> query = prepareFetchQuery(keywords, orderBy, orderDirection);
+        Set<String> unmatched = getUnmatchedFilterValues(keywords);
+        if (!unmatched.isEmpty()) {
+            return fetchMatching(query, unmatched, offset, length);
+        }
         query.offset(offset);
         query.limit(length);
-        return Utils.asList(query);
+        return Utils.asList(query, isKeysOnlyFetch(modelClass));
+    }
+
+    /**
+     * Pages through the results of a query which match search index values not filtered by the datastore, see
+     * {@link ObjectifySearch}. Results are matched against their stored index before being translated, and at
+     * most "objectify.search.maxScan" results of the query are read per page. When the query cache is enabled,
+     * the cursor reached at the end of each page is cached so that the following page resumes from it rather
+     * than from the start of the query.
+     *
+     * @param query the query
+     * @param filterValues the search index values each result must hold
+     * @param offset the number of matching results to skip
+     * @param length the maximum number of matching results
+     * @param <T> the type
+     * @return the matching results
+     */
+    protected <T extends Model> List<T> fetchMatching(Query<T> query, Set<String> filterValues, int offset, int length) {
+        List<T> results = new ArrayList<T>();
+        scanMatching(query, filterValues, offset, length, results);
+        return results;
+    }
+
+    /**
+     * Counts the results of a query which match search index values not filtered by the datastore. As no more
+     * than "objectify.search.maxScan" results of the query are read, the count is a lower bound for searches
+     * whose most selective term matches more entities than that.
+     *
+     * @param query the query
+     * @param filterValues the search index values each result must hold
+     * @return the number of matching results
+     */
+    protected long countMatching(Query<? extends Model> query, Set<String> filterValues) {
+        String kind = ObjectifyService.getKind(modelClass);
+        String version = ObjectifyQueryCache.isEnabled() ? ObjectifyQueryCache.getVersion(kind) : null;
+        String signature = query.toString() + filterValues;
+        if (version != null) {
+            Integer count = ObjectifyQueryCache.getCount(kind, version, signature);
+            if (count != null) {
+                return count;
+            }
+        }
+        int count = scanMatching(query, filterValues, 0, Integer.MAX_VALUE, null);
+        if (version != null) {
+            ObjectifyQueryCache.putCount(kind, version, signature, count);
+        }
+        return count;
+    }
+
+    /**
+     * Reads the raw results of a query, from the cached cursor of the offset if any, until the given number of
+     * results matching the filter values have been found or "objectify.search.maxScan" results have been read.
+     *
+     * @param query the query
+     * @param filterValues the search index values each result must hold
+     * @param offset the number of matching results to skip
+     * @param length the maximum number of matching results
+     * @param results the list to which the translated matching results are added or null to only count them
+     * @param <T> the type
+     * @return the number of matching results found after the offset
+     */
+    protected <T> int scanMatching(Query<T> query, Set<String> filterValues, int offset, int length, List<T> results) {
+        Objectify objectify = Utils.getObjectify(query);
+        String kind = ObjectifyService.getKind(modelClass);
+        String version = ObjectifyQueryCache.isEnabled() ? ObjectifyQueryCache.getVersion(kind) : null;
+        String signature = query.toString() + filterValues;
+        int maxScan = Integer.parseInt(Play.configuration.getProperty("objectify.search.maxScan", "1000"));
+        FetchOptions options = Utils.getFetchOptions(query).chunkSize(Math.max(Math.min(length, maxScan), 1));
+        int matched = 0;
+        if (version != null && offset > 0) {
+            String cursor = ObjectifyQueryCache.getPosition(kind, version, signature, offset);
+            if (cursor != null) {
+                options.startCursor(Cursor.fromWebSafeString(cursor));
+                matched = offset;
+            }
+        }
+        PreparedQuery preparedQuery = objectify.getDatastore().prepare(objectify.getTxn(), Utils.getRawQuery(query));
+        QueryResultIterator<Entity> itr = preparedQuery.asQueryResultIterator(options);
+        int found = 0;
+        int scanned = 0;
+        while (found < length && itr.hasNext()) {
+            if (scanned++ == maxScan) {
+                Logger.warn("Search of %s stopped after reading %s entities (objectify.search.maxScan)", kind, maxScan);
+                return found;
+            }
+            Entity entity = itr.next();
+            if (isMatch(entity, filterValues) && matched++ >= offset) {
+                found++;
+                if (results != null) {
+                    results.add(Utils.<T>toObject(objectify, entity));
+                }
+            }
+        }
+        if (version != null && found == length && found > 0) {
+            Cursor cursor = itr.getCursor();
+            if (cursor != null) {
+                ObjectifyQueryCache.putPosition(kind, version, signature, offset + length, cursor.toWebSafeString());
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Returns true if the search index stored with a raw entity holds every one of the given filter values.
+     *
+     * @param entity the raw entity
+     * @param filterValues the filter values
+     * @return true if all match, false otherwise
+     */
+    protected boolean isMatch(Entity entity, Set<String> filterValues) {
+        Object index = entity.getProperty(ObjectifySearch.PROPERTY);
+        if (index instanceof Collection) {
+            return ((Collection<?>) index).containsAll(filterValues);
+        }
+        return index != null && filterValues.size() == 1 && filterValues.contains(index);
+    }
+
+    /**
+     * Returns true if queries for the given class should be run keys-only with the entities batch fetched
+     * afterwards, so that entities already held in the session or global cache are not read again. This is
+     * the default for classes annotated with {@link Cached}, otherwise "objectify.fetchMode" may be set to
+     * "keys" to apply it to all classes. Subclasses may override this for hot kinds.
+     *
+     * @param clazz the class being fetched
+     * @return true if keys only, false otherwise
+     */
+    protected boolean isKeysOnlyFetch(Class<?> clazz) {
+        if (clazz.isAnnotationPresent(Cached.class)) {
+            return true;
+        }
+        return "keys".equalsIgnoreCase(Play.configuration.getProperty("objectify.fetchMode", "entities"));
     }
 
     public Long count(List<String> properties, String keywords, String where) {
@@ -85,109 +231,35 @@ public class ObjectifyModelLoader implements ObjectifyModel.Factory {
 
     public Long count(String keywords) {
         Query<? extends Model> query = prepareFetchQuery(keywords, null, null);
+        Set<String> unmatched = getUnmatchedFilterValues(keywords);
+        if (!unmatched.isEmpty()) {
+            return countMatching(query, unmatched);
+        }
         return (long) query.countAll();
     }
 
+    /**
+     * Prepares the query of a CRUD list or count, which subclasses may override to apply filters of their own.
+     * Only the most selective search index value is filtered by the query, the remainder (see
+     * {@link #getUnmatchedFilterValues(String)}) being matched in memory by the callers (see
+     * {@link ObjectifySearch}).
+     *
+     * @param keywords the keywords searched for, if any
+     * @param orderBy the field to sort by, if any
+     * @param orderDirection "ASC" or "DESC"
+     * @return the query
+     */
     protected Query<? extends Model> prepareFetchQuery(String keywords, String orderBy, String orderDirection) {
 
-        Query<? extends Model> query = Datastore.query(modelClass);
+        Query<? extends Model> query = query(modelClass);
 
         String inequalityFieldName = null;
 
         if (keywords != null && keywords.length() > 0) {
-
-            String[] keyWordsAsArray = keywords.split(" ");
-            List<SearchFieldValue> searchFieldValues = new ArrayList<SearchFieldValue>();
-            String key = null;
-            String value = "";
-            for (String keyword : keyWordsAsArray) {
-                if (key == null) {
-                    int delim = keyword.indexOf(":");
-                    if (delim != -1 && delim > 0 && delim < keyword.length() - 1) {
-                        String fieldName = keyword.substring(0, delim);
-                        String fieldValue = keyword.substring(delim + 1);
-                        if (!fieldValue.startsWith("\"")) {
-                            searchFieldValues.add(new SearchFieldValue(fieldName, fieldValue));
-                        }
-                        else {
-                            key = fieldName;
-                            if (fieldValue.length() > 1) {
-                                if (fieldValue.endsWith("\"")) {
-                                    value = fieldValue.substring(1, fieldValue.length() - 1);
-
-                                }
-                                else {
-                                    value = fieldValue.substring(1);
-                                }
-                            }
-                            else {
-                                value = "";
-                            }
-                        }
-                    }
-                }
-                else {
-                    if (keyword.endsWith("\"")) {
-                        value += " " + (keyword.length() > 1 ? keyword.substring(0, keyword.length() - 1) : "");
-                        searchFieldValues.add(new SearchFieldValue(key, value));
-                        key = null;
-                        value = "";
-                    }
-                    else {
-                        value += " " + keyword;
-                    }
-                }
-            }
-            if (key != null) {
-                searchFieldValues.add(new SearchFieldValue(key, value));
-            }
-
-            for (SearchFieldValue searchFieldValue : searchFieldValues) {
-                String fieldName = searchFieldValue.name;
-                String fieldValue = searchFieldValue.value;
-                Field field = Utils.findField(modelClass, fieldName);
-                if (field != null) {
-                    Class<?> type = field.getType();
-                    if (type.equals(String.class)) {
-                        if (inequalityFieldName == null) {
-                            query.filter(fieldName + " >=", fieldValue);
-                            query.filter(fieldName + " <", fieldValue + "\uFFFD");
-                            inequalityFieldName = fieldName;
-                        }
-                        else {
-                            Logger.warn("Datastore only allows one inequality filter per query, search by '" + fieldName + "' is silently ignored");
-                        }
-                    }
-                    else if (Integer.class.isAssignableFrom(type) || int.class.isAssignableFrom(type)) {
-                        query.filter(fieldName, Integer.parseInt(fieldValue));
-                    }
-                    else if (Long.class.isAssignableFrom(type) || long.class.isAssignableFrom(type)) {
-                        query.filter(fieldName, Long.parseLong(fieldValue));
-                    }
-                    else if (Float.class.isAssignableFrom(type) || float.class.isAssignableFrom(type)) {
-                        query.filter(fieldName, Float.parseFloat(fieldValue));
-                    }
-                    else if (Double.class.isAssignableFrom(type) || double.class.isAssignableFrom(type)) {
-                        query.filter(fieldName, Double.parseDouble(fieldValue));
-                    }
-                    else if (Boolean.class.isAssignableFrom(type) || boolean.class.isAssignableFrom(type)) {
-                        query.filter(fieldName, Boolean.valueOf(fieldValue));
-                    }
-                    else if (Date.class.equals(type)) {
-                        try {
-                            Date date = new SimpleDateFormat(I18N.getDateFormat()).parse(fieldValue);
-                            query.filter(fieldName, date);
-                        }
-                        catch (ParseException e) {
-                            // ignored
-                        }
-                    }
-                    else if (type.isEnum()) {
-                        query.filter(fieldName, fieldValue);
-                    }
-                }
-            }
-
+            SearchKeywords searchKeywords = parseKeywords(keywords);
+            SearchPlan searchPlan = getSearchPlan(searchKeywords);
+            searchPlan.bind(query, searchKeywords);
+            inequalityFieldName = searchPlan.inequalityFieldName;
         }
 
         if (inequalityFieldName != null) {
@@ -222,6 +294,137 @@ public class ObjectifyModelLoader implements ObjectifyModel.Factory {
 
     }
 
+    /**
+     * Returns the search index values of the keywords which {@link #prepareFetchQuery(String, String, String)}
+     * leaves to be matched in memory, empty if every value is filtered by the query.
+     *
+     * @param keywords the keywords searched for, if any
+     * @return the unmatched search index values
+     */
+    protected Set<String> getUnmatchedFilterValues(String keywords) {
+        if (keywords == null || keywords.length() == 0) {
+            return new LinkedHashSet<String>();
+        }
+        SearchKeywords searchKeywords = parseKeywords(keywords);
+        return getSearchPlan(searchKeywords).getUnmatchedFilterValues(searchKeywords);
+    }
+
+    /**
+     * Splits the CRUD search keywords into bare terms and "field:value" pairs, where a value may be quoted
+     * to include spaces.
+     *
+     * @param keywords the keywords entered
+     * @return the parsed keywords
+     */
+    protected SearchKeywords parseKeywords(String keywords) {
+        SearchKeywords searchKeywords = new SearchKeywords();
+        String[] keyWordsAsArray = keywords.split(" ");
+        String key = null;
+        String value = "";
+        for (String keyword : keyWordsAsArray) {
+            if (key == null) {
+                int delim = keyword.indexOf(":");
+                if (delim != -1 && delim > 0 && delim < keyword.length() - 1) {
+                    String fieldName = keyword.substring(0, delim);
+                    String fieldValue = keyword.substring(delim + 1);
+                    if (!fieldValue.startsWith("\"")) {
+                        searchKeywords.fieldValues.add(new SearchFieldValue(fieldName, fieldValue));
+                    }
+                    else {
+                        key = fieldName;
+                        if (fieldValue.length() > 1) {
+                            if (fieldValue.endsWith("\"")) {
+                                value = fieldValue.substring(1, fieldValue.length() - 1);
+
+                            }
+                            else {
+                                value = fieldValue.substring(1);
+                            }
+                        }
+                        else {
+                            value = "";
+                        }
+                    }
+                }
+                else if (keyword.length() > 0) {
+                    searchKeywords.terms.add(keyword);
+                }
+            }
+            else {
+                if (keyword.endsWith("\"")) {
+                    value += " " + (keyword.length() > 1 ? keyword.substring(0, keyword.length() - 1) : "");
+                    searchKeywords.fieldValues.add(new SearchFieldValue(key, value));
+                    key = null;
+                    value = "";
+                }
+                else {
+                    value += " " + keyword;
+                }
+            }
+        }
+        if (key != null) {
+            searchKeywords.fieldValues.add(new SearchFieldValue(key, value));
+        }
+        return searchKeywords;
+    }
+
+    /**
+     * Returns the compiled search plan for the shape of the given keywords (the field names searched, in order,
+     * without their values), compiling and caching it on first use. Plans are shared by fetch and count since
+     * ordering is applied after binding.
+     *
+     * @param searchKeywords the parsed keywords
+     * @return the search plan
+     */
+    protected SearchPlan getSearchPlan(SearchKeywords searchKeywords) {
+        String shape = getClass().getName() + "|" + modelClass.getName() + "|" + searchKeywords.getShape();
+        SearchPlan searchPlan = searchPlans.get(shape);
+        if (searchPlan == null) {
+            searchPlan = compileSearchPlan(searchKeywords);
+            if (searchPlans.size() >= MAX_SEARCH_PLANS) {
+                searchPlans.clear();
+            }
+            searchPlans.put(shape, searchPlan);
+        }
+        return searchPlan;
+    }
+
+    /**
+     * Compiles a search plan by resolving each searched field and its value converter once.
+     *
+     * @param searchKeywords the parsed keywords
+     * @return the search plan
+     */
+    protected SearchPlan compileSearchPlan(SearchKeywords searchKeywords) {
+        SearchPlan searchPlan = new SearchPlan(ObjectifySearch.isSearchable(modelClass));
+        for (SearchFieldValue searchFieldValue : searchKeywords.fieldValues) {
+            String fieldName = searchFieldValue.name;
+            if (searchPlan.indexed && ObjectifySearch.isSearchable(modelClass, fieldName)) {
+                searchPlan.steps.add(new SearchStep(fieldName, SearchStep.Type.INDEX, null));
+                continue;
+            }
+            Field field = Utils.findField(modelClass, fieldName);
+            SearchConverter converter = field != null ? SearchConverter.forType(field.getType()) : null;
+            if (converter == null) {
+                searchPlan.steps.add(new SearchStep(fieldName, SearchStep.Type.IGNORED, null));
+            }
+            else if (converter == SearchConverter.STRING) {
+                if (searchPlan.inequalityFieldName == null) {
+                    searchPlan.steps.add(new SearchStep(fieldName, SearchStep.Type.PREFIX, converter));
+                    searchPlan.inequalityFieldName = fieldName;
+                }
+                else {
+                    Logger.warn("Datastore only allows one inequality filter per query, search by '" + fieldName + "' is silently ignored");
+                    searchPlan.steps.add(new SearchStep(fieldName, SearchStep.Type.IGNORED, null));
+                }
+            }
+            else {
+                searchPlan.steps.add(new SearchStep(fieldName, SearchStep.Type.EQUALITY, converter));
+            }
+        }
+        return searchPlan;
+    }
+
     @SuppressWarnings({"unchecked"})
     public List<Object> listChoices(String fieldName, Class fieldType) {
         if (ObjectifyModel.class.isAssignableFrom(fieldType)) {
@@ -235,15 +438,132 @@ public class ObjectifyModelLoader implements ObjectifyModel.Factory {
         }
     }
 
-    @SuppressWarnings({"unchecked"})
+    /**
+     * Lists the choices of a relation field as {@link ObjectifyChoice}s (key and label only) rather than as
+     * full entities. The list is capped at "objectify.choices.max" (defaults to 500) entries, and when the
+     * query cache is enabled it is cached per query (i.e. kind and any filters such as the owner) until the
+     * kind is next written.
+     *
+     * @param fieldName the field name
+     * @param fieldType the field type
+     * @return the choices
+     */
     protected List<Object> listModel(String fieldName, Class fieldType) {
         Query query = prepareListModelQuery(fieldName, fieldType);
-        return (List<Object>) Utils.asList(query);
+        return new ArrayList<Object>(listModelChoices(query, fieldType, getMaxChoices()));
+    }
+
+    /**
+     * Lists at most max choices for the given query, served from the {@link ObjectifyQueryCache} if enabled.
+     *
+     * @param query the query
+     * @param fieldType the field type
+     * @param max the maximum number of choices
+     * @return the choices
+     */
+    @SuppressWarnings({"unchecked"})
+    protected List<ObjectifyChoice> listModelChoices(Query query, Class fieldType, int max) {
+        query.limit(max);
+        boolean cached = ObjectifyQueryCache.isEnabled();
+        String kind = ObjectifyService.getKind(fieldType);
+        String signature = query.toString();
+        String version = cached ? ObjectifyQueryCache.getVersion(kind) : null;
+        List<ObjectifyChoice> choices = cached ? ObjectifyQueryCache.getChoices(kind, version, signature) : null;
+        if (choices == null) {
+            choices = new ArrayList<ObjectifyChoice>();
+            for (Object entity : Utils.asList((Query<Object>) query, isKeysOnlyFetch(fieldType))) {
+                choices.add(new ObjectifyChoice(ObjectifyService.keyStr(entity), toLabel(entity)));
+            }
+            if (choices.size() >= max) {
+                Logger.info("Choices of kind '" + kind + "' capped at " + max + ", consider an autocomplete (see ObjectifyChoices)");
+            }
+            if (cached) {
+                ObjectifyQueryCache.putChoices(kind, version, signature, choices);
+            }
+        }
+        return choices;
+    }
+
+    /**
+     * Searches the choices of a relation field for the text supplied. If the related class has fields annotated
+     * with {@link Searchable}, the keyword index is queried, otherwise the (capped) choice list is filtered by label.
+     *
+     * @param fieldName the field name
+     * @param text the text to search for
+     * @param max the maximum number of choices
+     * @return the choices, empty if the field is not a relation
+     */
+    public List<ObjectifyChoice> searchChoices(String fieldName, String text, int max) {
+        Class fieldType = null;
+        for (Model.Property property : listProperties()) {
+            if (property.name.equals(fieldName) && property.isRelation) {
+                fieldType = property.relationType;
+            }
+        }
+        if (fieldType == null || !ObjectifyModel.class.isAssignableFrom(fieldType)) {
+            return new ArrayList<ObjectifyChoice>();
+        }
+        Query query = prepareListModelQuery(fieldName, fieldType);
+        if (text == null || text.length() == 0) {
+            return listModelChoices(query, fieldType, max);
+        }
+        if (ObjectifySearch.isSearchable(fieldType)) {
+            for (String filterValue : ObjectifySearch.toFilterValues(null, text)) {
+                query.filter(ObjectifySearch.PROPERTY, filterValue);
+            }
+            return listModelChoices(query, fieldType, max);
+        }
+        List<ObjectifyChoice> choices = new ArrayList<ObjectifyChoice>();
+        String lowerText = text.toLowerCase();
+        for (ObjectifyChoice choice : listModelChoices(query, fieldType, getMaxChoices())) {
+            if (choice.label != null && choice.label.toLowerCase().contains(lowerText)) {
+                choices.add(choice);
+                if (choices.size() >= max) {
+                    break;
+                }
+            }
+        }
+        return choices;
+    }
+
+    /**
+     * Returns the label of an entity offered as a choice, its string representation by default.
+     *
+     * @param entity the entity
+     * @return the label
+     */
+    protected String toLabel(Object entity) {
+        return String.valueOf(entity);
+    }
+
+    /**
+     * Returns the maximum number of choices listed for a relation field as specified by "objectify.choices.max".
+     *
+     * @return the maximum number of choices
+     */
+    protected int getMaxChoices() {
+        return Integer.parseInt(Play.configuration.getProperty("objectify.choices.max", "500"));
     }
 
     @SuppressWarnings({"UnusedDeclaration", "unchecked"})
     protected Query prepareListModelQuery(String fieldName, Class fieldType) {
-        return Datastore.query(fieldType);
+        return query(fieldType);
+    }
+
+    /**
+     * Creates a query used to list or count models of the given class, using the {@link ObjectifyProfiles profile}
+     * of the class if one is specified via {@link ManagedBy#profile()}, otherwise the current session.
+     *
+     * @param clazz the class
+     * @param <T> the type
+     * @return the query
+     */
+    protected <T> Query<T> query(Class<T> clazz) {
+        ManagedBy managedBy = clazz.getAnnotation(ManagedBy.class);
+        if (managedBy != null && managedBy.profile().length() > 0) {
+            return Datastore.factory().begin(ObjectifyProfiles.getOpts(managedBy.profile())).query(clazz);
+        }
+        return Datastore.query(clazz);
     }
 
     @SuppressWarnings({"UnusedDeclaration"})
@@ -404,4 +724,228 @@ public class ObjectifyModelLoader implements ObjectifyModel.Factory {
 
     }
 
+    /**
+     * The keywords of a CRUD search, split into bare terms and "field:value" pairs.
+     */
+    public static class SearchKeywords {
+
+        public List<String> terms = new ArrayList<String>();
+        public List<SearchFieldValue> fieldValues = new ArrayList<SearchFieldValue>();
+
+        /**
+         * Returns the shape of the search, being the field names searched in order without their values, under
+         * which its {@link SearchPlan} is cached.
+         *
+         * @return the shape
+         */
+        public String getShape() {
+            StringBuilder shape = new StringBuilder();
+            for (SearchFieldValue fieldValue : fieldValues) {
+                shape.append(fieldValue.name).append(':');
+            }
+            return shape.toString();
+        }
+
+    }
+
+    /**
+     * A compiled search, holding the resolved steps for each "field:value" pair and the inequality field,
+     * to which the values of a search are bound.
+     */
+    public static class SearchPlan {
+
+        public boolean indexed;
+        public List<SearchStep> steps = new ArrayList<SearchStep>();
+        public String inequalityFieldName;
+
+        SearchPlan(boolean indexed) {
+            this.indexed = indexed;
+        }
+
+        /**
+         * Binds the values of a search of the plan's shape to the query. Only the most selective search index value
+         * is filtered by the query.
+         *
+         * @param query the query
+         * @param searchKeywords the keywords, of the same shape as those the plan was compiled for
+         * @return the search index values not filtered by the query, to be matched in memory
+         */
+        public Set<String> bind(Query<?> query, SearchKeywords searchKeywords) {
+            Set<String> filterValues = getFilterValues(searchKeywords);
+            for (int i = 0; i < steps.size(); i++) {
+                steps.get(i).bind(query, searchKeywords.fieldValues.get(i).value, filterValues);
+            }
+            String selective = ObjectifySearch.getMostSelective(filterValues);
+            if (selective != null) {
+                query.filter(ObjectifySearch.PROPERTY, selective);
+                filterValues.remove(selective);
+            }
+            return filterValues;
+        }
+
+        /**
+         * Returns the search index values of a search of the plan's shape which {@link #bind(Query, SearchKeywords)}
+         * leaves to be matched in memory.
+         *
+         * @param searchKeywords the keywords, of the same shape as those the plan was compiled for
+         * @return the search index values not filtered by the query
+         */
+        public Set<String> getUnmatchedFilterValues(SearchKeywords searchKeywords) {
+            Set<String> filterValues = getFilterValues(searchKeywords);
+            filterValues.remove(ObjectifySearch.getMostSelective(filterValues));
+            return filterValues;
+        }
+
+        protected Set<String> getFilterValues(SearchKeywords searchKeywords) {
+            Set<String> filterValues = new LinkedHashSet<String>();
+            if (indexed) {
+                for (String term : searchKeywords.terms) {
+                    filterValues.addAll(ObjectifySearch.toFilterValues(null, term));
+                }
+            }
+            for (int i = 0; i < steps.size(); i++) {
+                SearchStep step = steps.get(i);
+                if (step.type == SearchStep.Type.INDEX) {
+                    String value = searchKeywords.fieldValues.get(i).value;
+                    filterValues.addAll(ObjectifySearch.toFilterValues(step.fieldName, value));
+                }
+            }
+            return filterValues;
+        }
+
+    }
+
+    /**
+     * The resolved search of a single "field:value" pair: a term of the {@link ObjectifySearch} index, a prefix
+     * (inequality) filter on a string field, an equality filter on a field of another type, or nothing if the
+     * field cannot be searched.
+     */
+    public static class SearchStep {
+
+        public enum Type {
+            INDEX, PREFIX, EQUALITY, IGNORED
+        }
+
+        public String fieldName;
+        public Type type;
+        public SearchConverter converter;
+
+        SearchStep(String fieldName, Type type, SearchConverter converter) {
+            this.fieldName = fieldName;
+            this.type = type;
+            this.converter = converter;
+        }
+
+        /**
+         * Binds the value searched for to the query, adding the index values of an INDEX step to those to filter.
+         *
+         * @param query the query
+         * @param value the value searched for
+         * @param filterValues the search index values to filter by
+         */
+        public void bind(Query<?> query, String value, Set<String> filterValues) {
+            switch (type) {
+                case INDEX:
+                    filterValues.addAll(ObjectifySearch.toFilterValues(fieldName, value));
+                    break;
+                case PREFIX:
+                    query.filter(fieldName + " >=", value);
+                    query.filter(fieldName + " <", value + "\uFFFD");
+                    break;
+                case EQUALITY:
+                    Object converted = converter.convert(value);
+                    if (converted != null) {
+                        query.filter(fieldName, converted);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+    }
+
+    /**
+     * Converts searched values to the type of the field searched, a null return skipping the filter.
+     */
+    public enum SearchConverter {
+
+        STRING {
+            public Object convert(String value) {
+                return value;
+            }
+        },
+        INTEGER {
+            public Object convert(String value) {
+                return Integer.parseInt(value);
+            }
+        },
+        LONG {
+            public Object convert(String value) {
+                return Long.parseLong(value);
+            }
+        },
+        FLOAT {
+            public Object convert(String value) {
+                return Float.parseFloat(value);
+            }
+        },
+        DOUBLE {
+            public Object convert(String value) {
+                return Double.parseDouble(value);
+            }
+        },
+        BOOLEAN {
+            public Object convert(String value) {
+                return Boolean.valueOf(value);
+            }
+        },
+        DATE {
+            public Object convert(String value) {
+                try {
+                    return new SimpleDateFormat(I18N.getDateFormat()).parse(value);
+                }
+                catch (ParseException e) {
+                    return null;
+                }
+            }
+        },
+        ENUM {
+            public Object convert(String value) {
+                return value;
+            }
+        };
+
+        public abstract Object convert(String value);
+
+        public static SearchConverter forType(Class<?> type) {
+            if (type.equals(String.class)) {
+                return STRING;
+            }
+            else if (Integer.class.equals(type) || int.class.equals(type)) {
+                return INTEGER;
+            }
+            else if (Long.class.equals(type) || long.class.equals(type)) {
+                return LONG;
+            }
+            else if (Float.class.equals(type) || float.class.equals(type)) {
+                return FLOAT;
+            }
+            else if (Double.class.equals(type) || double.class.equals(type)) {
+                return DOUBLE;
+            }
+            else if (Boolean.class.equals(type) || boolean.class.equals(type)) {
+                return BOOLEAN;
+            }
+            else if (Date.class.equals(type)) {
+                return DATE;
+            }
+            else if (type.isEnum()) {
+                return ENUM;
+            }
+            return null;
+        }
+
+    }
+
 }
@@ -1,10 +1,13 @@
 package play.modules.objectify;
 
+import com.google.gson.JsonObject;
 import play.Play;
 import play.PlayPlugin;
+import play.classloading.ApplicationClasses;
 import play.db.Model;
 import play.exceptions.UnexpectedException;
 import play.modules.gae.GAEPlugin;
+import play.mvc.Http;
 import play.mvc.Scope;
 
 import java.lang.annotation.Annotation;
@@ -73,6 +76,26 @@ public class ObjectifyPlugin extends PlayPlugin {
         }
     }
 
+    /**
+     * Shuts down the background executor shared by the module, see {@link Utils#execute(Runnable)}.
+     */
+    @Override
+    public void onApplicationStop() {
+        Utils.shutdownExecutor();
+    }
+
+    /**
+     * Generates the field accessors of {@link ObjectifyModel} subclasses used by the {@link ObjectifyTranslator}.
+     *
+     * @param applicationClass the application class
+     * @throws Exception if the class cannot be enhanced
+     * @see ObjectifyEnhancer
+     */
+    @Override
+    public void enhance(ApplicationClasses.ApplicationClass applicationClass) throws Exception {
+        new ObjectifyEnhancer().enhanceThisClass(applicationClass);
+    }
+
     /**
      * Invoked when binding HTTP parameters to Java instances.
      *
@@ -126,38 +149,74 @@ public class ObjectifyPlugin extends PlayPlugin {
     }
 
     /**
-     * Setup the environment if not production.
+     * Setup the environment if not production and starts recording the {@link ObjectifyMetrics} of the invocation.
      */
     @Override
     public void beforeInvocation() {
         if (!isProd()) {
             setup();
         }
+        ObjectifyMetrics.begin();
     }
 
     /**
-     * Commits all opened transactions.
+     * Commits all opened transactions and checks an invocation other than a request (such as a job) against any
+     * {@link ObjectifyBudget}, the actions of requests being checked by {@link #afterActionInvocation()}.
      */
     @Override
     public void afterInvocation() {
         ObjectifyService.commitAll();
+        if (Http.Request.current() == null) {
+            ObjectifyBudget.check();
+        }
+    }
+
+    protected static boolean isMetricsHeader() {
+        return "true".equals(Play.configuration.getProperty("objectify.metrics.header", "false"));
     }
 
     /**
-     * Exposes the {@link ObjectifyService} to templates under two keys, "Datastore" and "ofy".
+     * Exposes the {@link ObjectifyService} to templates under two keys, "Datastore" and "ofy", and starts
+     * recording the {@link ObjectifyMetrics} of the action.
      *
      * @param actionMethod the action method
      */
     @Override
     public void beforeActionInvocation(Method actionMethod) {
+        ObjectifyMetrics.beginAction();
         Scope.RenderArgs renderArgs = Scope.RenderArgs.current();
         ObjectifyService objectifyService = new ObjectifyService();
         renderArgs.put("Datastore", objectifyService);
         renderArgs.put("ofy", objectifyService);
     }
 
+    /**
+     * Checks the action against any {@link ObjectifyBudget}, so that the request (or functional test) over budget
+     * is the one to fail, and, if "objectify.metrics.header" is true, reports the datastore RPCs and time of the
+     * action in the "X-Objectify-RPCs" and "X-Objectify-Time" response headers (as used by the load-test harness).
+     * This is done once the action's result has been applied but before the response is sent, which is no longer
+     * the case by the time {@link #afterInvocation()} runs. An action invoked outside of an invocation, as by a
+     * functional test, releases the state kept for its duration.
+     */
     @Override
     public void afterActionInvocation() {
+        try {
+            ObjectifyBudget.check();
+            Http.Response response = Http.Response.current();
+            ObjectifyMetrics.Invocation invocation = ObjectifyMetrics.current();
+            if (response != null && invocation != null && isMetricsHeader()) {
+                response.setHeader("X-Objectify-RPCs", String.valueOf(invocation.rpcs));
+                response.setHeader("X-Objectify-Time", String.valueOf(invocation.getMillis()));
+            }
+        }
+        finally {
+            ObjectifyMetrics.endAction();
+            if (!ObjectifyMetrics.isInvocation()) {
+                IncludeQuery.clear();
+                Ref.clear();
+                ObjectifyDirtyTracking.clear();
+            }
+        }
     }
 
     /**
@@ -170,8 +229,38 @@ public class ObjectifyPlugin extends PlayPlugin {
         ObjectifyService.rollbackAll();
     }
 
+    /**
+     * Ends the {@link ObjectifyMetrics} of the invocation, logging a summary if over the configured thresholds,
+     * drops the {@link com.googlecode.objectify.Objectify} stack of the thread and forgets the entities loaded by
+     * any {@link IncludeQuery}, the pending {@link Ref}s and the snapshots of {@link ObjectifyDirtyTracking}.
+     */
     @Override
     public void invocationFinally() {
+        ObjectifyMetrics.end();
+        ObjectifyService.clearStack();
+        IncludeQuery.clear();
+        Ref.clear();
+        ObjectifyDirtyTracking.clear();
+    }
+
+    /**
+     * Returns the {@link ObjectifyMetrics} per operation and kind.
+     *
+     * @return the status
+     */
+    @Override
+    public String getStatus() {
+        return ObjectifyMetrics.getStatus();
+    }
+
+    /**
+     * Returns the {@link ObjectifyMetrics} per operation and kind as JSON.
+     *
+     * @return the status
+     */
+    @Override
+    public JsonObject getJsonStatus() {
+        return ObjectifyMetrics.getJsonStatus();
     }
 
     /**
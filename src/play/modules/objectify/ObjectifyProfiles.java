@@ -0,0 +1,102 @@
+package play.modules.objectify;
+
+import com.google.appengine.api.datastore.ReadPolicy;
+import com.googlecode.objectify.ObjectifyOpts;
+import play.Play;
+import play.exceptions.UnexpectedException;
+
+/**
+ * Named {@link ObjectifyOpts} profiles read from application.conf, allowing reads which tolerate stale results
+ * (such as listing pages) to use eventual consistency, a shorter deadline or different caching. For example:
+ * <pre>
+ * objectify.profile.listing.consistency=EVENTUAL
+ * objectify.profile.listing.deadline=2s
+ * objectify.profile.listing.sessionCache=true
+ * objectify.profile.listing.globalCache=true
+ * </pre>
+ * A profile may be selected via {@link ObjectifyService#begin(String)}, for the listing queries of a model via
+ * {@link ManagedBy#profile()}, or as the default of {@link ObjectifyService#begin()} via "objectify.profile".
+ * The deadline is given in seconds, optionally suffixed with "s" or "ms". Settings not specified keep the
+ * factory defaults.
+ *
+ * @author David Cheong
+ * @since 19/10/2010
+ */
+public class ObjectifyProfiles {
+
+    public static final String PREFIX = "objectify.profile.";
+
+    /**
+     * Returns the name of the default profile as specified by "objectify.profile" or null if none.
+     *
+     * @return the default profile or null
+     */
+    public static String getDefault() {
+        String profile = Play.configuration.getProperty("objectify.profile");
+        return profile != null && profile.trim().length() > 0 ? profile.trim() : null;
+    }
+
+    /**
+     * Returns new options for the given profile.
+     *
+     * @param name the profile name
+     * @return the options
+     * @throws UnexpectedException if the profile is not configured or invalid
+     */
+    public static ObjectifyOpts getOpts(String name) {
+        String consistency = getProperty(name, "consistency");
+        String deadline = getProperty(name, "deadline");
+        String sessionCache = getProperty(name, "sessionCache");
+        String globalCache = getProperty(name, "globalCache");
+        if (consistency == null && deadline == null && sessionCache == null && globalCache == null) {
+            throw new UnexpectedException("Objectify profile not configured: " + name);
+        }
+        ObjectifyOpts opts = new ObjectifyOpts();
+        if (consistency != null) {
+            try {
+                opts.setConsistency(ReadPolicy.Consistency.valueOf(consistency.toUpperCase()));
+            }
+            catch (IllegalArgumentException e) {
+                throw new UnexpectedException("Invalid consistency for Objectify profile " + name + ": " + consistency);
+            }
+        }
+        if (deadline != null) {
+            opts.setDeadline(parseDeadline(name, deadline));
+        }
+        if (sessionCache != null) {
+            opts.setSessionCache(Boolean.parseBoolean(sessionCache));
+        }
+        if (globalCache != null) {
+            opts.setGlobalCache(Boolean.parseBoolean(globalCache));
+        }
+        return opts;
+    }
+
+    protected static String getProperty(String name, String setting) {
+        String value = Play.configuration.getProperty(PREFIX + name + "." + setting);
+        return value != null && value.trim().length() > 0 ? value.trim() : null;
+    }
+
+    /**
+     * Parses a deadline such as "2s", "500ms" or "1.5" into seconds.
+     *
+     * @param name the profile name
+     * @param deadline the deadline
+     * @return the deadline in seconds
+     */
+    protected static Double parseDeadline(String name, String deadline) {
+        try {
+            if (deadline.endsWith("ms")) {
+                return Double.parseDouble(deadline.substring(0, deadline.length() - 2).trim()) / 1000;
+            }
+            if (deadline.endsWith("s")) {
+                return Double.parseDouble(deadline.substring(0, deadline.length() - 1).trim());
+            }
+            return Double.parseDouble(deadline);
+        }
+        catch (NumberFormatException e) {
+            throw new UnexpectedException("Invalid deadline for Objectify profile " + name + ": " + deadline);
+        }
+    }
+
+}
@@ -0,0 +1,251 @@
+package play.modules.objectify;
+
+import com.google.appengine.api.datastore.Transaction;
+import com.googlecode.objectify.Key;
+import play.Play;
+import play.cache.Cache;
+import play.libs.Codec;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An opt-in cache of query results which is enabled by setting "objectify.queryCache" to true in application.conf.
+ * Only the result keys (and counts) of a query are cached, keyed by the normalized query signature and the version
+ * of the kind queried as read before the query is run, so that results racing a write are never cached under the
+ * version assigned by the write. Every write made through {@link ObjectifyService} replaces the version of the kind
+ * written, which leaves all previously cached results for that kind unreachable. Entries expire according to
+ * "objectify.queryCache.expiration" (defaults to 10mn).
+ * <p/>
+ * Versions and results are held in Play's {@link Cache} so that invalidations are visible across instances when the
+ * cache is backed by memcache.
+ *
+ * @author David Cheong
+ * @since 19/10/2010
+ * @see CachedQuery
+ */
+public class ObjectifyQueryCache {
+
+    protected static final String PREFIX = "objectify.queryCache.";
+
+    /**
+     * Kinds written within a transaction which must be invalidated again once the transaction commits.
+     */
+    protected static Map<Transaction, Set<String>> pending = new ConcurrentHashMap<Transaction, Set<String>>();
+
+    /**
+     * Returns true if the query cache has been enabled via "objectify.queryCache".
+     *
+     * @return true if enabled, false otherwise
+     */
+    public static boolean isEnabled() {
+        return Boolean.parseBoolean(Play.configuration.getProperty("objectify.queryCache", "false"));
+    }
+
+    /**
+     * Returns the expiration applied to cached results as specified by "objectify.queryCache.expiration".
+     *
+     * @return the expiration
+     */
+    public static String getExpiration() {
+        return Play.configuration.getProperty("objectify.queryCache.expiration", "10mn");
+    }
+
+    /**
+     * Returns the current version of the given kind, assigning one if none exists.
+     *
+     * @param kind the kind
+     * @return the version
+     */
+    public static String getVersion(String kind) {
+        String version = (String) Cache.get(PREFIX + "version." + kind);
+        if (version == null) {
+            version = Codec.UUID();
+            Cache.set(PREFIX + "version." + kind, version);
+        }
+        return version;
+    }
+
+    /**
+     * Invalidates all cached results of the given kind by assigning it a new version. If a transaction is supplied,
+     * the kind is invalidated once more when the transaction commits so that results cached in the meantime
+     * (which cannot yet observe the transaction's writes) are discarded.
+     *
+     * @param kind the kind
+     * @param transaction the active transaction or null
+     */
+    public static void invalidate(String kind, Transaction transaction) {
+        Cache.set(PREFIX + "version." + kind, Codec.UUID());
+        if (transaction != null && transaction.isActive()) {
+            Set<String> kinds = pending.get(transaction);
+            if (kinds == null) {
+                kinds = new HashSet<String>();
+                pending.put(transaction, kinds);
+            }
+            kinds.add(kind);
+        }
+    }
+
+    /**
+     * Invoked once the given transaction completes to invalidate the kinds written within it.
+     *
+     * @param transaction the transaction
+     * @param committed true if committed, false if rolled back
+     */
+    public static void complete(Transaction transaction, boolean committed) {
+        Set<String> kinds = pending.remove(transaction);
+        if (kinds != null && committed) {
+            for (String kind : kinds) {
+                invalidate(kind, null);
+            }
+        }
+    }
+
+    /**
+     * Returns the cached keys for a query signature or null if not cached.
+     *
+     * @param kind the kind
+     * @param version the version of the kind, see {@link #getVersion(String)}
+     * @param signature the query signature
+     * @param <T> the type
+     * @return the keys or null
+     */
+    @SuppressWarnings({"unchecked"})
+    public static <T> List<Key<T>> getKeys(String kind, String version, String signature) {
+        return (List<Key<T>>) Cache.get(toCacheKey(kind, version, signature, "keys"));
+    }
+
+    /**
+     * Caches the keys for a query signature under the version of the kind read before the query was run, so that
+     * the keys are unreachable if the kind was written in the meantime.
+     *
+     * @param kind the kind
+     * @param version the version of the kind read before running the query
+     * @param signature the query signature
+     * @param keys the keys
+     * @param <T> the type
+     */
+    public static <T> void putKeys(String kind, String version, String signature, List<Key<T>> keys) {
+        Cache.set(toCacheKey(kind, version, signature, "keys"), new ArrayList<Key<T>>(keys), getExpiration());
+    }
+
+    /**
+     * Returns the cached count for a query signature or null if not cached.
+     *
+     * @param kind the kind
+     * @param version the version of the kind, see {@link #getVersion(String)}
+     * @param signature the query signature
+     * @return the count or null
+     */
+    public static Integer getCount(String kind, String version, String signature) {
+        return (Integer) Cache.get(toCacheKey(kind, version, signature, "count"));
+    }
+
+    /**
+     * Caches the count for a query signature under the version of the kind read before the query was run.
+     *
+     * @param kind the kind
+     * @param version the version of the kind read before running the query
+     * @param signature the query signature
+     * @param count the count
+     */
+    public static void putCount(String kind, String version, String signature, int count) {
+        Cache.set(toCacheKey(kind, version, signature, "count"), count, getExpiration());
+    }
+
+    /**
+     * Returns the cached relation choices for a query signature or null if not cached.
+     *
+     * @param kind the kind
+     * @param version the version of the kind, see {@link #getVersion(String)}
+     * @param signature the query signature
+     * @return the choices or null
+     */
+    @SuppressWarnings({"unchecked"})
+    public static List<ObjectifyChoice> getChoices(String kind, String version, String signature) {
+        return (List<ObjectifyChoice>) Cache.get(toCacheKey(kind, version, signature, "choices"));
+    }
+
+    /**
+     * Caches the relation choices for a query signature under the version of the kind read before the query was
+     * run.
+     *
+     * @param kind the kind
+     * @param version the version of the kind read before running the query
+     * @param signature the query signature
+     * @param choices the choices
+     */
+    public static void putChoices(String kind, String version, String signature, List<ObjectifyChoice> choices) {
+        Cache.set(toCacheKey(kind, version, signature, "choices"), new ArrayList<ObjectifyChoice>(choices), getExpiration());
+    }
+
+    /**
+     * Returns the cached choice of an entity or null if not cached.
+     *
+     * @param kind the kind
+     * @param version the version of the kind, see {@link #getVersion(String)}
+     * @param keyStr the key string of the entity
+     * @return the choice or null
+     */
+    public static ObjectifyChoice getChoice(String kind, String version, String keyStr) {
+        return (ObjectifyChoice) Cache.get(toCacheKey(kind, version, keyStr, "choice"));
+    }
+
+    /**
+     * Caches the choice of an entity under the version of the kind read before the entity was fetched.
+     *
+     * @param kind the kind
+     * @param version the version of the kind read before fetching the entity
+     * @param keyStr the key string of the entity
+     * @param choice the choice
+     */
+    public static void putChoice(String kind, String version, String keyStr, ObjectifyChoice choice) {
+        Cache.set(toCacheKey(kind, version, keyStr, "choice"), choice, getExpiration());
+    }
+
+    /**
+     * Returns the cached cursor at which a search matched the given number of results or null if not cached.
+     *
+     * @param kind the kind
+     * @param version the version of the kind, see {@link #getVersion(String)}
+     * @param signature the search signature
+     * @param matched the number of matching results before the cursor
+     * @return the web safe cursor or null
+     */
+    public static String getPosition(String kind, String version, String signature, int matched) {
+        return (String) Cache.get(toCacheKey(kind, version, signature + "@" + matched, "position"));
+    }
+
+    /**
+     * Caches the cursor at which a search matched the given number of results under the version of the kind read
+     * before the search was run.
+     *
+     * @param kind the kind
+     * @param version the version of the kind read before running the search
+     * @param signature the search signature
+     * @param matched the number of matching results before the cursor
+     * @param cursor the web safe cursor
+     */
+    public static void putPosition(String kind, String version, String signature, int matched, String cursor) {
+        Cache.set(toCacheKey(kind, version, signature + "@" + matched, "position"), cursor, getExpiration());
+    }
+
+    /**
+     * Builds the cache key of a query signature, qualified by a version of its kind. The signature is hashed as it
+     * may exceed the key length limits of the underlying cache.
+     *
+     * @param kind the kind
+     * @param version the version of the kind
+     * @param signature the query signature
+     * @param type the type of result
+     * @return the cache key
+     */
+    protected static String toCacheKey(String kind, String version, String signature, String type) {
+        return PREFIX + type + "." + kind + "." + version + "." + Codec.hexMD5(signature);
+    }
+
+}
@@ -0,0 +1,567 @@
+package play.modules.objectify;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.DatastoreTimeoutException;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.googlecode.objectify.Objectify;
+import play.Logger;
+import play.Play;
+import play.exceptions.UnexpectedException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Processes every entity of a kind by splitting the kind's key space into ranges (using the datastore's scatter
+ * property to sample split points) and scanning the ranges in parallel, each with its own cursor. Writes made by
+ * the {@link Processor} are batched. The position of each range is checkpointed in the datastore after every
+ * chunk, so a scan which fails can be rerun with the same id to resume where it stopped; processors should
+ * therefore be idempotent as the chunk in progress at the time of failure is processed again.
+ * <p/>
+ * To limit the load a scan places on the datastore alongside live traffic, the ranges together may be throttled
+ * to a number of entities per second, and writes failing with a timeout or contention are retried with the
+ * backoff of the {@link ObjectifyTxnRunner}.
+ * <p/>
+ * Defaults are read from "objectify.scan.ranges" (8), "objectify.scan.chunkSize" (100),
+ * "objectify.scan.batchSize" (100) and "objectify.scan.throttle" (entities per second, 0 for none) in
+ * application.conf.
+ *
+ * @author David Cheong
+ * @since 19/10/2010
+ * @see ObjectifyService#scan(Class, Processor)
+ */
+public class ObjectifyScanner<T> {
+
+    /**
+     * The kind of the entities holding the checkpoints.
+     */
+    public static final String CHECKPOINT_KIND = "ObjectifyCheckpoint";
+
+    /**
+     * The number of samples taken per range when splitting the key space.
+     */
+    protected static final int OVERSAMPLING = 32;
+
+    protected Class<T> clazz;
+    protected String kind;
+    protected String id;
+    protected int ranges;
+    protected int chunkSize;
+    protected int batchSize;
+    protected int throttle;
+    protected long nextChunk;
+
+    /**
+     * Creates a scanner for the given class, identified by its kind.
+     *
+     * @param clazz the class
+     */
+    public ObjectifyScanner(Class<T> clazz) {
+        this.clazz = clazz;
+        this.kind = ObjectifyService.getKind(clazz);
+        this.id = kind;
+        this.ranges = Integer.parseInt(Play.configuration.getProperty("objectify.scan.ranges", "8"));
+        this.chunkSize = Integer.parseInt(Play.configuration.getProperty("objectify.scan.chunkSize", "100"));
+        this.batchSize = Integer.parseInt(Play.configuration.getProperty("objectify.scan.batchSize", "100"));
+        this.throttle = Integer.parseInt(Play.configuration.getProperty("objectify.scan.throttle", "0"));
+    }
+
+    /**
+     * Sets the id under which checkpoints are kept, defaults to the kind.
+     *
+     * @param id the id
+     * @return this scanner
+     */
+    public ObjectifyScanner<T> id(String id) {
+        this.id = id;
+        return this;
+    }
+
+    /**
+     * Sets the number of ranges scanned in parallel.
+     *
+     * @param ranges the number of ranges
+     * @return this scanner
+     */
+    public ObjectifyScanner<T> ranges(int ranges) {
+        this.ranges = ranges;
+        return this;
+    }
+
+    /**
+     * Sets the number of entities read per RPC and checkpoint.
+     *
+     * @param chunkSize the chunk size
+     * @return this scanner
+     */
+    public ObjectifyScanner<T> chunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * Sets the number of writes buffered before they are flushed.
+     *
+     * @param batchSize the batch size
+     * @return this scanner
+     */
+    public ObjectifyScanner<T> batchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of entities processed per second across all ranges, 0 for no limit.
+     *
+     * @param throttle the entities per second
+     * @return this scanner
+     */
+    public ObjectifyScanner<T> throttle(int throttle) {
+        this.throttle = throttle;
+        return this;
+    }
+
+    /**
+     * Scans every entity of the kind, resuming from existing checkpoints if a previous scan with the same id
+     * did not complete. Checkpoints are removed once all ranges have completed.
+     *
+     * @param processor the processor
+     * @return the statistics of the scan
+     * @throws UnexpectedException if any range failed, after all other ranges have been scanned
+     */
+    public Stats scan(final Processor<T> processor) {
+
+        final DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+
+        List<Range> rangeList = loadCheckpoints(ds);
+        if (rangeList == null) {
+            rangeList = split(ds);
+            saveCheckpoints(ds, rangeList);
+        }
+        else {
+            Logger.info("Resuming scan '" + id + "' of " + kind + " from checkpoints");
+        }
+
+        final Stats stats = new Stats(rangeList.size());
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        for (final Range range : rangeList) {
+            if (!range.done) {
+                futures.add(Utils.submit(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        scan(ds, range, processor, stats);
+                        return null;
+                    }
+                }));
+            }
+        }
+
+        Throwable failure = null;
+        for (Future<Object> future : futures) {
+            try {
+                future.get();
+            }
+            catch (InterruptedException e) {
+                failure = e;
+            }
+            catch (ExecutionException e) {
+                failure = e.getCause();
+                Logger.error(e.getCause(), "Scan '" + id + "' of " + kind + " failed in a range");
+            }
+        }
+        stats.finish();
+
+        if (failure != null) {
+            throw new UnexpectedException("Scan '" + id + "' of " + kind + " failed, rerun to resume from checkpoints: " + stats, failure);
+        }
+        deleteCheckpoints(ds, rangeList);
+        Logger.info("Scan '" + id + "' of " + kind + " completed: " + stats);
+        return stats;
+
+    }
+
+    /**
+     * Scans a single range from its checkpointed cursor, saving a checkpoint after each chunk.
+     *
+     * @param ds the datastore service holding the checkpoints
+     * @param range the range
+     * @param processor the processor
+     * @param stats the statistics
+     * @throws Exception if processing fails
+     */
+    protected void scan(DatastoreService ds, Range range, Processor<T> processor, Stats stats) throws Exception {
+        Objectify objectify = ObjectifyService.factory().begin();
+        Batch batch = new Batch(objectify, batchSize, stats);
+        Query query = new Query(kind);
+        if (range.start != null) {
+            query.addFilter(Entity.KEY_RESERVED_PROPERTY, Query.FilterOperator.GREATER_THAN_OR_EQUAL, range.start);
+        }
+        if (range.end != null) {
+            query.addFilter(Entity.KEY_RESERVED_PROPERTY, Query.FilterOperator.LESS_THAN, range.end);
+        }
+        query.addSort(Entity.KEY_RESERVED_PROPERTY);
+        PreparedQuery preparedQuery = objectify.getDatastore().prepare(query);
+        while (!range.done) {
+            pace(chunkSize);
+            FetchOptions options = FetchOptions.Builder.withLimit(chunkSize).prefetchSize(chunkSize).chunkSize(chunkSize);
+            if (range.cursor != null) {
+                options.startCursor(Cursor.fromWebSafeString(range.cursor));
+            }
+            QueryResultList<Entity> page = preparedQuery.asQueryResultList(options);
+            for (Entity entity : page) {
+                processor.process(Utils.<T>toObject(objectify, entity), batch);
+            }
+            batch.flush();
+            stats.processed.addAndGet(page.size());
+            range.processed += page.size();
+            range.cursor = page.getCursor() != null ? page.getCursor().toWebSafeString() : null;
+            range.done = page.size() < chunkSize;
+            ds.put(range.toEntity(id));
+        }
+        Logger.debug("Scan '" + id + "' of " + kind + " completed range " + range.index + " (" + range.processed + " entities)");
+    }
+
+    /**
+     * Waits until the given number of entities may be processed without exceeding the throttle, reserving
+     * their share of time so that the ranges are paced together.
+     *
+     * @param entities the number of entities
+     * @throws InterruptedException if interrupted whilst waiting
+     */
+    protected void pace(int entities) throws InterruptedException {
+        if (throttle <= 0) {
+            return;
+        }
+        long wait;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            nextChunk = Math.max(nextChunk, now);
+            wait = nextChunk - now;
+            nextChunk += entities * 1000L / throttle;
+        }
+        if (wait > 0) {
+            Thread.sleep(wait);
+        }
+    }
+
+    /**
+     * Splits the key space of the kind into ranges using a sample of keys ordered by the scatter property.
+     * If no sample is available, a single range is returned.
+     *
+     * @param ds the datastore service
+     * @return the ranges
+     */
+    protected List<Range> split(DatastoreService ds) {
+        List<Key> samples = new ArrayList<Key>();
+        if (ranges > 1) {
+            try {
+                Query query = new Query(kind).addSort("__scatter__").setKeysOnly();
+                for (Entity entity : ds.prepare(query).asIterable(FetchOptions.Builder.withLimit(ranges * OVERSAMPLING))) {
+                    samples.add(entity.getKey());
+                }
+            }
+            catch (RuntimeException e) {
+                Logger.warn("Unable to sample " + kind + " for splitting, scanning as a single range: " + e.getMessage());
+            }
+        }
+        if (ranges > 1 && samples.isEmpty()) {
+            Logger.info("No scatter samples available for " + kind + ", scanning as a single range");
+        }
+        Collections.sort(samples);
+        List<Range> rangeList = new ArrayList<Range>();
+        Key previous = null;
+        for (int i = 1; i < ranges && !samples.isEmpty(); i++) {
+            Key split = samples.get(i * samples.size() / ranges);
+            if (previous == null || split.compareTo(previous) > 0) {
+                rangeList.add(new Range(rangeList.size(), previous, split));
+                previous = split;
+            }
+        }
+        rangeList.add(new Range(rangeList.size(), previous, null));
+        return rangeList;
+    }
+
+    /**
+     * Loads the ranges of a previous scan with the same id.
+     *
+     * @param ds the datastore service
+     * @return the ranges or null if no checkpoints exist
+     * @throws UnexpectedException if the checkpoint of any range is missing, as resuming would skip its entities
+     */
+    protected List<Range> loadCheckpoints(DatastoreService ds) {
+        Entity header;
+        try {
+            header = ds.get(KeyFactory.createKey(CHECKPOINT_KIND, id));
+        }
+        catch (EntityNotFoundException e) {
+            return null;
+        }
+        int count = ((Long) header.getProperty("ranges")).intValue();
+        List<Key> keys = new ArrayList<Key>(count);
+        for (int i = 0; i < count; i++) {
+            keys.add(Range.toKey(id, i));
+        }
+        Map<Key, Entity> entities = ds.get(keys);
+        if (entities.size() < count) {
+            throw new UnexpectedException("Checkpoints of scan '" + id + "' of " + kind + " are incomplete (" + entities.size()
+                    + " of " + count + " ranges), delete the " + CHECKPOINT_KIND + " entities of the scan to restart it");
+        }
+        List<Range> rangeList = new ArrayList<Range>(count);
+        for (Key key : keys) {
+            rangeList.add(new Range(entities.get(key)));
+        }
+        return rangeList;
+    }
+
+    /**
+     * Saves the initial checkpoints of a new scan.
+     *
+     * @param ds the datastore service
+     * @param rangeList the ranges
+     */
+    protected void saveCheckpoints(DatastoreService ds, List<Range> rangeList) {
+        List<Entity> entities = new ArrayList<Entity>(rangeList.size() + 1);
+        for (Range range : rangeList) {
+            entities.add(range.toEntity(id));
+        }
+        Entity header = new Entity(CHECKPOINT_KIND, id);
+        header.setUnindexedProperty("kind", kind);
+        header.setUnindexedProperty("ranges", (long) rangeList.size());
+        header.setUnindexedProperty("started", new Date());
+        entities.add(header);
+        ds.put(entities);
+    }
+
+    /**
+     * Deletes the checkpoints of a completed scan.
+     *
+     * @param ds the datastore service
+     * @param rangeList the ranges
+     */
+    protected void deleteCheckpoints(DatastoreService ds, List<Range> rangeList) {
+        List<Key> keys = new ArrayList<Key>(rangeList.size() + 1);
+        for (Range range : rangeList) {
+            keys.add(Range.toKey(id, range.index));
+        }
+        keys.add(KeyFactory.createKey(CHECKPOINT_KIND, id));
+        ds.delete(keys);
+    }
+
+    /**
+     * Processes the entities of a scan. Invoked concurrently from multiple ranges, but never concurrently
+     * for the same {@link Batch}.
+     */
+    public interface Processor<T> {
+
+        /**
+         * Processes an entity.
+         *
+         * @param entity the entity
+         * @param batch the batch to which writes should be made
+         * @throws Exception if processing fails, which fails the scan
+         */
+        void process(T entity, Batch batch) throws Exception;
+
+    }
+
+    /**
+     * Buffers the writes of a {@link Processor} within a range, flushing them in batches.
+     */
+    public static class Batch {
+
+        protected Objectify objectify;
+        protected int size;
+        protected Stats stats;
+        protected List<Object> puts = new ArrayList<Object>();
+        protected List<Object> deletes = new ArrayList<Object>();
+
+        public Batch(Objectify objectify, int size, Stats stats) {
+            this.objectify = objectify;
+            this.size = size;
+            this.stats = stats;
+        }
+
+        /**
+         * Queues an entity to be put.
+         *
+         * @param entity the entity
+         */
+        public void put(Object entity) {
+            puts.add(entity);
+            if (puts.size() >= size) {
+                flush();
+            }
+        }
+
+        /**
+         * Queues a key or entity to be deleted.
+         *
+         * @param keyOrEntity the key or entity
+         */
+        public void delete(Object keyOrEntity) {
+            deletes.add(keyOrEntity);
+            if (deletes.size() >= size) {
+                flush();
+            }
+        }
+
+        /**
+         * Writes all queued puts and deletes, retrying writes which time out or meet contention.
+         */
+        public void flush() {
+            int retries = Integer.parseInt(Play.configuration.getProperty("objectify.txn.retries", "3"));
+            for (int i = 0; ; i++) {
+                try {
+                    if (!puts.isEmpty()) {
+                        objectify.put(puts);
+                        ObjectifyService.invalidate(puts, null);
+                        stats.written.addAndGet(puts.size());
+                        puts.clear();
+                    }
+                    if (!deletes.isEmpty()) {
+                        objectify.delete(deletes);
+                        ObjectifyService.invalidate(deletes, null);
+                        stats.deleted.addAndGet(deletes.size());
+                        deletes.clear();
+                    }
+                    return;
+                }
+                catch (DatastoreTimeoutException e) {
+                    backoff(i, retries, e);
+                }
+                catch (ConcurrentModificationException e) {
+                    backoff(i, retries, e);
+                }
+            }
+        }
+
+        protected void backoff(int retry, int retries, RuntimeException e) {
+            if (retry >= retries) {
+                throw e;
+            }
+            long delay = ObjectifyTxnRunner.getDelay(retry);
+            Logger.debug("Objectify: scan write failed (%s), retrying in %s ms", e, delay);
+            ObjectifyTxnRunner.sleep(delay);
+        }
+
+    }
+
+    /**
+     * A range of the key space, from start (inclusive) to end (exclusive), with its checkpointed position.
+     */
+    protected static class Range {
+
+        protected int index;
+        protected Key start;
+        protected Key end;
+        protected String cursor;
+        protected long processed;
+        protected boolean done;
+
+        protected Range(int index, Key start, Key end) {
+            this.index = index;
+            this.start = start;
+            this.end = end;
+        }
+
+        protected Range(Entity entity) {
+            this.index = ((Long) entity.getProperty("index")).intValue();
+            this.start = (Key) entity.getProperty("start");
+            this.end = (Key) entity.getProperty("end");
+            this.cursor = (String) entity.getProperty("cursor");
+            this.processed = (Long) entity.getProperty("processed");
+            this.done = (Boolean) entity.getProperty("done");
+        }
+
+        protected Entity toEntity(String id) {
+            Entity entity = new Entity(toKey(id, index));
+            entity.setUnindexedProperty("index", (long) index);
+            entity.setUnindexedProperty("start", start);
+            entity.setUnindexedProperty("end", end);
+            entity.setUnindexedProperty("cursor", cursor);
+            entity.setUnindexedProperty("processed", processed);
+            entity.setUnindexedProperty("done", done);
+            return entity;
+        }
+
+        protected static Key toKey(String id, int index) {
+            return KeyFactory.createKey(CHECKPOINT_KIND, id + "." + index);
+        }
+
+    }
+
+    /**
+     * The statistics of a scan.
+     */
+    public static class Stats {
+
+        protected int ranges;
+        protected long started = System.currentTimeMillis();
+        protected long finished;
+        protected AtomicLong processed = new AtomicLong();
+        protected AtomicLong written = new AtomicLong();
+        protected AtomicLong deleted = new AtomicLong();
+
+        public Stats(int ranges) {
+            this.ranges = ranges;
+        }
+
+        protected void finish() {
+            finished = System.currentTimeMillis();
+        }
+
+        public int getRanges() {
+            return ranges;
+        }
+
+        public long getProcessed() {
+            return processed.get();
+        }
+
+        public long getWritten() {
+            return written.get();
+        }
+
+        public long getDeleted() {
+            return deleted.get();
+        }
+
+        public long getElapsed() {
+            return (finished > 0 ? finished : System.currentTimeMillis()) - started;
+        }
+
+        /**
+         * Returns the throughput in entities processed per second.
+         *
+         * @return the throughput
+         */
+        public double getRate() {
+            long elapsed = getElapsed();
+            return elapsed > 0 ? getProcessed() * 1000.0 / elapsed : getProcessed();
+        }
+
+        @Override
+        public String toString() {
+            return processed + " processed, " + written + " written, " + deleted + " deleted in " + ranges + " ranges, "
+                    + getElapsed() + "ms (" + Math.round(getRate()) + "/s)";
+        }
+
+    }
+
+}
@@ -0,0 +1,217 @@
+package play.modules.objectify;
+
+import com.google.appengine.api.datastore.Entity;
+import play.Play;
+import play.exceptions.UnexpectedException;
+
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maintains an inverted keyword index for models with fields annotated with {@link Searchable}. When such a
+ * model is saved, the values of its searchable fields are split into lower case tokens and every prefix of
+ * every token (up to "objectify.search.maxPrefix" characters, defaults to 12) is written to the indexed list
+ * property {@link #PROPERTY}, both as-is and qualified by the field name (e.g. "dav" and "pilot:dav").
+ * Keyword searches then become an equality filter on that property, which allows terms on any field and an
+ * arbitrary sort order (which requires a composite index on the property and the sort order). When several terms
+ * are searched for, only the most selective is filtered by the datastore and the remainder are matched in memory
+ * (see {@link #matches(Object, Collection)}), since each further filter on the property would require another
+ * composite index with the property repeated.
+ * <p/>
+ * Entities saved before a field was annotated (or before "objectify.search.maxPrefix" was changed) are not found
+ * until they are saved again; to reindex them at once, rewrite every entity of the kind with
+ * {@link ObjectifyService#migrate(Class)} (e.g. <code>Datastore.migrate(Flight.class)</code>).
+ *
+ * @author David Cheong
+ * @since 19/10/2010
+ * @see ObjectifyModelLoader#prepareFetchQuery(String, String, String)
+ */
+public class ObjectifySearch {
+
+    /**
+     * The name of the list property holding the index.
+     */
+    public static final String PROPERTY = "_search";
+
+    protected static Map<Class<?>, List<Field>> searchableFields = new ConcurrentHashMap<Class<?>, List<Field>>();
+
+    /**
+     * Returns the fields annotated with {@link Searchable} for a given class and its superclasses.
+     *
+     * @param clazz the class
+     * @return the fields, empty if none
+     */
+    public static List<Field> getSearchableFields(Class<?> clazz) {
+        List<Field> fields = searchableFields.get(clazz);
+        if (fields == null) {
+            fields = new ArrayList<Field>();
+            Class<?> tclazz = clazz;
+            while (!tclazz.equals(Object.class)) {
+                for (Field field : tclazz.getDeclaredFields()) {
+                    if (field.isAnnotationPresent(Searchable.class)) {
+                        field.setAccessible(true);
+                        fields.add(field);
+                    }
+                }
+                tclazz = tclazz.getSuperclass();
+            }
+            searchableFields.put(clazz, fields);
+        }
+        return fields;
+    }
+
+    /**
+     * Returns true if the given class has fields annotated with {@link Searchable}.
+     *
+     * @param clazz the class
+     * @return true if searchable, false otherwise
+     */
+    public static boolean isSearchable(Class<?> clazz) {
+        return !getSearchableFields(clazz).isEmpty();
+    }
+
+    /**
+     * Returns true if the given field of a class is annotated with {@link Searchable}.
+     *
+     * @param clazz the class
+     * @param fieldName the field name
+     * @return true if searchable, false otherwise
+     */
+    public static boolean isSearchable(Class<?> clazz, String fieldName) {
+        for (Field field : getSearchableFields(clazz)) {
+            if (field.getName().equals(fieldName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes the search index of an entity instance to the raw entity being saved, if its class is searchable.
+     *
+     * @param instance the entity instance
+     * @param entity the raw entity
+     */
+    public static void index(Object instance, Entity entity) {
+        if (isSearchable(instance.getClass())) {
+            entity.setProperty(PROPERTY, new ArrayList<String>(getIndexValues(instance)));
+        }
+    }
+
+    /**
+     * Returns true if the search index of an entity instance holds every one of the given filter values.
+     *
+     * @param instance the entity instance
+     * @param filterValues the filter values, as returned by {@link #toFilterValues(String, String)}
+     * @return true if all match, false otherwise
+     */
+    public static boolean matches(Object instance, Collection<String> filterValues) {
+        return filterValues.isEmpty() || getIndexValues(instance).containsAll(filterValues);
+    }
+
+    /**
+     * Returns the values of the search index of an entity instance, empty if its class is not searchable.
+     *
+     * @param instance the entity instance
+     * @return the index values
+     */
+    public static Set<String> getIndexValues(Object instance) {
+        List<Field> fields = getSearchableFields(instance.getClass());
+        int maxPrefix = getMaxPrefix();
+        Set<String> index = new TreeSet<String>();
+        for (Field field : fields) {
+            Object value;
+            try {
+                value = field.get(instance);
+            }
+            catch (IllegalAccessException e) {
+                throw new UnexpectedException("Unable to index field: " + field, e);
+            }
+            Collection<?> values = value instanceof Collection ? (Collection<?>) value : Collections.singleton(value);
+            for (Object v : values) {
+                if (v != null) {
+                    for (String token : tokenize(String.valueOf(v))) {
+                        for (int i = 1; i <= Math.min(token.length(), maxPrefix); i++) {
+                            String prefix = token.substring(0, i);
+                            index.add(prefix);
+                            index.add(field.getName() + ":" + prefix);
+                        }
+                    }
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Returns the values to filter the index property by when searching for the given value.
+     *
+     * @param fieldName the field name or null for any field
+     * @param value the value searched for
+     * @return the filter values, each of which must match
+     */
+    public static Set<String> toFilterValues(String fieldName, String value) {
+        int maxPrefix = getMaxPrefix();
+        Set<String> filterValues = new LinkedHashSet<String>();
+        for (String token : tokenize(value)) {
+            if (token.length() > maxPrefix) {
+                token = token.substring(0, maxPrefix);
+            }
+            filterValues.add(fieldName == null ? token : fieldName + ":" + token);
+        }
+        return filterValues;
+    }
+
+    /**
+     * Returns the filter value likely to match the fewest entities, being the one with the longest token.
+     *
+     * @param filterValues the filter values
+     * @return the most selective filter value or null if none
+     */
+    public static String getMostSelective(Collection<String> filterValues) {
+        String selective = null;
+        int selectiveLength = -1;
+        for (String filterValue : filterValues) {
+            int length = filterValue.length() - filterValue.indexOf(':') - 1;
+            if (length > selectiveLength) {
+                selective = filterValue;
+                selectiveLength = length;
+            }
+        }
+        return selective;
+    }
+
+    /**
+     * Splits a value into lower case tokens of letters and digits.
+     *
+     * @param value the value
+     * @return the tokens
+     */
+    public static List<String> tokenize(String value) {
+        List<String> tokens = new ArrayList<String>();
+        int length = value.length();
+        int start = -1;
+        for (int i = 0; i <= length; i++) {
+            boolean letterOrDigit = i < length && Character.isLetterOrDigit(value.charAt(i));
+            if (letterOrDigit && start == -1) {
+                start = i;
+            }
+            else if (!letterOrDigit && start != -1) {
+                tokens.add(value.substring(start, i).toLowerCase());
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Returns the maximum prefix length indexed as specified by "objectify.search.maxPrefix".
+     *
+     * @return the maximum prefix length
+     */
+    public static int getMaxPrefix() {
+        return Integer.parseInt(Play.configuration.getProperty("objectify.search.maxPrefix", "12"));
+    }
+
+}
@@ -1,14 +1,19 @@
 package play.modules.objectify;
 
 import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.Transaction;
 import com.googlecode.objectify.Key;
 import com.googlecode.objectify.Objectify;
 import com.googlecode.objectify.Query;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * A simple service to handle all Objectify operations, working in tandem with {@link ObjectifyFactory} and
@@ -23,7 +28,12 @@ public class ObjectifyService {
 
     protected static ObjectifyFactory factory = new ObjectifyFactory();
 
-    protected static List<Objectify> stack = new ArrayList<Objectify>();
+    protected static ThreadLocal<List<Objectify>> stack = new ThreadLocal<List<Objectify>>() {
+        @Override
+        protected List<Objectify> initialValue() {
+            return new ArrayList<Objectify>();
+        }
+    };
 
     /**
      * Loads a class using Play's dynamic classloader.
@@ -68,6 +78,26 @@ public class ObjectifyService {
         return objectify().get(keys);
     }
 
+    /**
+     * Batch gets the entities for the given keys, returning them in the order of the keys supplied. Keys
+     * for which no entity exists are skipped.
+     *
+     * @param keys the keys
+     * @param <T> the type
+     * @return the entity instances
+     */
+    public static <T> List<T> getList(Iterable<? extends Key<? extends T>> keys) {
+        Map<Key<T>, T> map = get(keys);
+        List<T> list = new ArrayList<T>(map.size());
+        for (Key<? extends T> key : keys) {
+            T instance = map.get(key);
+            if (instance != null) {
+                list.add(instance);
+            }
+        }
+        return list;
+    }
+
     /**
      * See {@link Objectify#get(com.googlecode.objectify.Key)}.
      * 
@@ -77,6 +107,11 @@ public class ObjectifyService {
      * @throws EntityNotFoundException if not found
      */
     public static <T> T get(Key<? extends T> key) throws EntityNotFoundException {
+        T instance = IncludeQuery.getIncluded(key);
+        if (instance != null) {
+            return instance;
+        }
+        ObjectifyLoopDetector.track(key);
         return objectify().get(key);
     }
 
@@ -118,6 +153,7 @@ public class ObjectifyService {
      * @throws EntityNotFoundException if not found
      */
     public static <T> T get(Class<? extends T> clazz, Long id) throws EntityNotFoundException {
+        ObjectifyLoopDetector.track(clazz);
         return objectify().get(clazz, id);
     }
 
@@ -131,6 +167,7 @@ public class ObjectifyService {
      * @throws EntityNotFoundException if not found
      */
     public static <T> T get(Class<? extends T> clazz, String name) throws EntityNotFoundException {
+        ObjectifyLoopDetector.track(clazz);
         return objectify().get(clazz, name);
     }
 
@@ -173,7 +210,11 @@ public class ObjectifyService {
         if (key == null) {
             throw new IllegalArgumentException("Key may not be null");
         }
-        if (key.getId() != 0) {
+        if (IncludeQuery.isIncluded(key)) {
+            instance = IncludeQuery.getIncluded(key);
+        }
+        else if (key.getId() != 0) {
+            ObjectifyLoopDetector.track(key);
             instance = objectify().find(key);
         }
         if (instance == null && newIfNull) {
@@ -261,6 +302,7 @@ public class ObjectifyService {
     public static <T> T find(Class<? extends T> clazz, Long id, boolean newIfNull) {
         T instance = null;
         if (id != null && id != 0) {
+            ObjectifyLoopDetector.track(clazz);
             instance = objectify().find(clazz, id);
         }
         if (instance == null && newIfNull) {
@@ -293,6 +335,7 @@ public class ObjectifyService {
     public static <T> T find(Class<? extends T> clazz, String name, boolean newIfNull) {
         T instance = null;
         if (name != null && name.length() != 0) {
+            ObjectifyLoopDetector.track(clazz);
             instance = objectify().find(clazz, name);
         }
         if (instance == null && newIfNull) {
@@ -302,25 +345,66 @@ public class ObjectifyService {
     }
 
     /**
-     * See {@link Objectify#put(Object)}.
+     * See {@link Objectify#put(Object)}. Entities with a {@link javax.persistence.Version} field are checked for
+     * concurrent modification, see {@link ObjectifyVersioning}. Entities unchanged since they were loaded are not
+     * written if {@link ObjectifyDirtyTracking} is enabled.
      * 
      * @param obj the entity instance
      * @param <T> the type
      * @return the saved instance
      */
     public static <T> Key<T> put(T obj) {
-        return objectify().put(obj);
+        if (ObjectifyDirtyTracking.isClean(obj)) {
+            return getKey(obj);
+        }
+        Key<T> key = isChecked(obj) ? ObjectifyVersioning.put(obj) : ObjectifyVersioning.putNew(obj);
+        invalidate(obj);
+        return key;
     }
 
     /**
-     * See {@link Objectify#put(Iterable)}.
+     * See {@link Objectify#put(Iterable)}. Entities with a {@link javax.persistence.Version} field are checked for
+     * concurrent modification and put per entity group unless new, see {@link ObjectifyVersioning}. Entities unchanged
+     * since they were loaded are left out if {@link ObjectifyDirtyTracking} is enabled.
      * 
      * @param objs the entity instances
      * @param <T> the type
      * @return the saved instances
      */
     public static <T> Map<Key<T>, T> put(Iterable<? extends T> objs) {
-        return objectify().put(objs);
+        List<T> unchecked = new ArrayList<T>();
+        List<T> checked = new ArrayList<T>();
+        List<T> clean = new ArrayList<T>();
+        for (T obj : objs) {
+            if (ObjectifyDirtyTracking.isClean(obj)) {
+                clean.add(obj);
+            }
+            else if (isChecked(obj)) {
+                checked.add(obj);
+            }
+            else {
+                unchecked.add(obj);
+            }
+        }
+        Map<Key<T>, T> keys = unchecked.isEmpty() ? new LinkedHashMap<Key<T>, T>() : ObjectifyVersioning.putNew(unchecked);
+        if (!checked.isEmpty()) {
+            keys.putAll(ObjectifyVersioning.put(checked));
+        }
+        if (!clean.isEmpty()) {
+            unchecked.addAll(checked);
+            invalidate(unchecked);
+            for (T obj : clean) {
+                keys.put(ObjectifyService.<T>getKey(obj), obj);
+            }
+        }
+        else {
+            invalidate(objs);
+        }
+        return keys;
+    }
+
+    protected static boolean isChecked(Object obj) {
+        return ObjectifyVersioning.isVersioned(obj) && !ObjectifyVersioning.isNew(obj);
     }
 
     /**
@@ -330,6 +414,7 @@ public class ObjectifyService {
      */
     public static void delete(Object keyOrEntity) {
         objectify().delete(keyOrEntity);
+        invalidate(keyOrEntity);
     }
 
     /**
@@ -339,6 +424,27 @@ public class ObjectifyService {
      */
     public static void delete(Iterable<?> keysOrEntities) {
         objectify().delete(keysOrEntities);
+        invalidate(keysOrEntities);
+    }
+
+    /**
+     * Deletes an entity together with its descendants and the entities it owns via fields annotated with
+     * {@link CascadeDelete}. See {@link ObjectifyCascade}.
+     *
+     * @param keyOrEntity the key or entity
+     */
+    public static void deleteCascade(Object keyOrEntity) {
+        factory().getCascade().delete(Collections.singletonList(keyOrEntity));
+    }
+
+    /**
+     * Deletes entities together with their descendants and the entities they own via fields annotated with
+     * {@link CascadeDelete}. See {@link ObjectifyCascade}.
+     *
+     * @param keysOrEntities the keys or entities
+     */
+    public static void deleteCascade(Iterable<?> keysOrEntities) {
+        factory().getCascade().delete(keysOrEntities);
     }
 
     /**
@@ -350,6 +456,7 @@ public class ObjectifyService {
      */
     public static <T> void delete(Class<T> clazz, long id) {
         objectify().delete(clazz, id);
+        invalidate(clazz);
     }
 
     /**
@@ -361,6 +468,7 @@ public class ObjectifyService {
      */
     public static <T> void delete(Class<T> clazz, String name) {
         objectify().delete(clazz, name);
+        invalidate(clazz);
     }
 
     /**
@@ -384,6 +492,159 @@ public class ObjectifyService {
         return objectify().query(clazz);
     }
 
+    /**
+     * Creates a query whose result keys and counts are served from the {@link ObjectifyQueryCache} if it
+     * has been enabled via "objectify.queryCache", otherwise a plain query is returned.
+     *
+     * @param clazz the class
+     * @param <T> the type
+     * @return the query
+     * @see CachedQuery
+     */
+    public static <T> Query<T> cachedQuery(Class<T> clazz) {
+        Query<T> query = query(clazz);
+        if (ObjectifyQueryCache.isEnabled()) {
+            return new CachedQuery<T>(clazz, query);
+        }
+        return query;
+    }
+
+    /**
+     * Decorates a query so that the {@link Key} relations held by the given fields of its results are resolved
+     * in a single batch get, see {@link IncludeQuery}.
+     *
+     * @param query the query
+     * @param fieldNames the names of the fields to include
+     * @param <T> the type
+     * @return the query
+     */
+    @SuppressWarnings({"unchecked"})
+    public static <T> IncludeQuery<T> include(Query<T> query, String... fieldNames) {
+        IncludeQuery<T> includeQuery = query instanceof IncludeQuery ? (IncludeQuery<T>) query : new IncludeQuery<T>(query);
+        return includeQuery.include(fieldNames);
+    }
+
+    /**
+     * Scans every entity of a class in parallel key ranges, see {@link ObjectifyScanner}.
+     *
+     * @param clazz the class
+     * @param processor the processor
+     * @param <T> the type
+     * @return the statistics of the scan
+     */
+    public static <T> ObjectifyScanner.Stats scan(Class<T> clazz, ObjectifyScanner.Processor<T> processor) {
+        return new ObjectifyScanner<T>(clazz).scan(processor);
+    }
+
+    /**
+     * Rewrites every entity of a class, see {@link ObjectifyMigration}.
+     *
+     * @param clazz the class
+     * @param <T> the type
+     * @return the statistics of the migration
+     */
+    public static <T> ObjectifyScanner.Stats migrate(Class<T> clazz) {
+        return new ObjectifyMigration<T>(clazz).run();
+    }
+
+    /**
+     * Transforms and rewrites every entity of a class, see {@link ObjectifyMigration}. The name identifies the
+     * checkpoints of the migration, so that a failed migration is resumed by running it again with the same name.
+     *
+     * @param clazz the class
+     * @param name the name of the migration, distinct from that of other migrations of the class
+     * @param transform the transform
+     * @param <T> the type
+     * @return the statistics of the migration
+     */
+    public static <T> ObjectifyScanner.Stats migrate(Class<T> clazz, String name, ObjectifyMigration.Transform<T> transform) {
+        return new ObjectifyMigration<T>(clazz, name, transform).run();
+    }
+
+    /**
+     * Returns read-only views of the results of a query backed by the raw entities, for rendering large lists
+     * without translating each result into its model class, see {@link EntityView}.
+     *
+     * @param query the query
+     * @param <T> the type
+     * @return the views
+     */
+    public static <T> List<EntityView<T>> view(Query<T> query) {
+        return EntityView.list(query);
+    }
+
+    /**
+     * Invalidates the cached query results of the kind of each key or entity supplied.
+     *
+     * @param keysOrEntities the keys or entities
+     */
+    protected static void invalidate(Iterable<?> keysOrEntities) {
+        if (ObjectifyQueryCache.isEnabled()) {
+            invalidate(keysOrEntities, objectify().getTxn());
+        }
+        else {
+            IncludeQuery.forget(keysOrEntities);
+            ObjectifyDirtyTracking.forget(keysOrEntities);
+        }
+    }
+
+    /**
+     * Invalidates the cached query results of the kind of each key or entity supplied, written with the
+     * given transaction.
+     *
+     * @param keysOrEntities the keys or entities
+     * @param transaction the transaction or null
+     */
+    protected static void invalidate(Iterable<?> keysOrEntities, Transaction transaction) {
+        IncludeQuery.forget(keysOrEntities);
+        ObjectifyDirtyTracking.forget(keysOrEntities);
+        if (ObjectifyQueryCache.isEnabled()) {
+            Set<String> kinds = new HashSet<String>();
+            for (Object keyOrEntity : keysOrEntities) {
+                kinds.add(getKind(keyOrEntity));
+            }
+            for (String kind : kinds) {
+                ObjectifyQueryCache.invalidate(kind, transaction);
+            }
+        }
+    }
+
+    /**
+     * Invalidates the cached query results of the kind of the class, key or entity supplied.
+     *
+     * @param classOrKeyOrEntity the class, key or entity
+     */
+    protected static void invalidate(Object classOrKeyOrEntity) {
+        IncludeQuery.forget(classOrKeyOrEntity);
+        ObjectifyDirtyTracking.forget(classOrKeyOrEntity);
+        if (ObjectifyQueryCache.isEnabled()) {
+            ObjectifyQueryCache.invalidate(getKind(classOrKeyOrEntity), objectify().getTxn());
+        }
+    }
+
+    /**
+     * Returns the kind given a class, {@link Key}, {@link com.google.appengine.api.datastore.Key}, key string
+     * or entity instance.
+     *
+     * @param classOrKeyOrEntity the class, key or entity
+     * @return the kind
+     */
+    public static String getKind(Object classOrKeyOrEntity) {
+        if (classOrKeyOrEntity instanceof Class) {
+            return factory().getKind((Class<?>) classOrKeyOrEntity);
+        }
+        else if (classOrKeyOrEntity instanceof Key) {
+            return factory().getKind(((Key<?>) classOrKeyOrEntity).getKindClassName());
+        }
+        else if (classOrKeyOrEntity instanceof com.google.appengine.api.datastore.Key) {
+            return ((com.google.appengine.api.datastore.Key) classOrKeyOrEntity).getKind();
+        }
+        else if (classOrKeyOrEntity instanceof String) {
+            return KeyFactory.stringToKey((String) classOrKeyOrEntity).getKind();
+        }
+        return factory().getKind(classOrKeyOrEntity.getClass());
+    }
+
     /**
      * Returns the singleton {@link ObjectifyFactory}.
      * 
@@ -399,20 +660,35 @@ public class ObjectifyService {
      * @return the Objectify instance
      */
     public static Objectify objectify() {
-        if (stack.isEmpty()) {
+        if (stack.get().isEmpty()) {
             begin();
         }
-        return stack.get(0);
+        return stack.get().get(0);
     }
 
     /**
-     * Adds a new entry to the {@link Objectify} stack.
+     * Adds a new entry to the {@link Objectify} stack, using the default profile specified by
+     * "objectify.profile" if any, see {@link ObjectifyProfiles}.
      * 
      * @return the Objectify instance
      */
     public static Objectify begin() {
-        Objectify objectify = factory().begin();
-        stack.add(0, objectify);
+        String profile = ObjectifyProfiles.getDefault();
+        Objectify objectify = profile != null ? factory().begin(ObjectifyProfiles.getOpts(profile)) : factory().begin();
+        stack.get().add(0, objectify);
+        return objectify;
+    }
+
+    /**
+     * Adds a new entry to the {@link Objectify} stack using the options of the given profile, see
+     * {@link ObjectifyProfiles}.
+     *
+     * @param profile the profile name
+     * @return the Objectify instance
+     */
+    public static Objectify begin(String profile) {
+        Objectify objectify = factory().begin(ObjectifyProfiles.getOpts(profile));
+        stack.get().add(0, objectify);
         return objectify;
     }
 
@@ -423,10 +699,48 @@ public class ObjectifyService {
      */
     public static Objectify beginTxn() {
         Objectify objectify = factory().beginTransaction();
-        stack.add(0, objectify);
+        stack.get().add(0, objectify);
         return objectify;
     }
 
+    /**
+     * Starts a new transaction using the options of the given profile and adds a new entry to the
+     * {@link Objectify} stack, see {@link ObjectifyProfiles}.
+     *
+     * @param profile the profile name
+     * @return the Objectify instance with a transaction
+     */
+    public static Objectify beginTxn(String profile) {
+        Objectify objectify = factory().begin(ObjectifyProfiles.getOpts(profile).setBeginTransaction(true));
+        stack.get().add(0, objectify);
+        return objectify;
+    }
+
+    /**
+     * Runs the work in a new transaction, committing it afterwards and retrying the work with jittered backoff
+     * should the transaction fail due to contention, see {@link ObjectifyTxnRunner}.
+     *
+     * @param work the work
+     * @param <T> the type of result
+     * @return the result of the work
+     */
+    public static <T> T inTxn(ObjectifyTxnRunner.Work<T> work) {
+        return ObjectifyTxnRunner.run(work);
+    }
+
+    /**
+     * Runs the work in a new transaction, retrying it up to the given number of times on contention, see
+     * {@link ObjectifyTxnRunner}.
+     *
+     * @param work the work
+     * @param retries the maximum number of retries
+     * @param <T> the type of result
+     * @return the result of the work
+     */
+    public static <T> T inTxn(ObjectifyTxnRunner.Work<T> work, int retries) {
+        return ObjectifyTxnRunner.run(work, retries);
+    }
+
     /**
      * Commits the current transaction.
      */
@@ -439,7 +753,7 @@ public class ObjectifyService {
      */
     @SuppressWarnings({"ForLoopReplaceableByForEach"})
     public static void commitAll() {
-        for (int i = 0; i < stack.size(); i++) {
+        for (int i = 0; i < stack.get().size(); i++) {
             closeTxn(false);
         }
     }
@@ -456,7 +770,7 @@ public class ObjectifyService {
      */
     @SuppressWarnings({"ForLoopReplaceableByForEach"})
     public static void rollbackAll() {
-        for (int i = 0; i < stack.size(); i++) {
+        for (int i = 0; i < stack.get().size(); i++) {
             closeTxn(true);
         }
     }
@@ -468,21 +782,51 @@ public class ObjectifyService {
      * @param rollback true if rollback, commit otherwise
      */
     protected static void closeTxn(boolean rollback) {
-        if (!stack.isEmpty()) {
+        if (!stack.get().isEmpty()) {
             Objectify objectify = objectify();
             Transaction transaction = objectify.getTxn();
             if (transaction != null && transaction.isActive()) {
-                if (rollback) {
-                    transaction.rollback();
+                long start = System.nanoTime();
+                try {
+                    if (rollback) {
+                        transaction.rollback();
+                    }
+                    else {
+                        transaction.commit();
+                    }
                 }
-                else {
-                    transaction.commit();
+                finally {
+                    ObjectifyQueryCache.complete(transaction, !rollback);
+                    if (ObjectifyMetrics.isEnabled()) {
+                        ObjectifyMetrics.record(rollback ? ObjectifyMetrics.ROLLBACK : ObjectifyMetrics.COMMIT, null, 0, System.nanoTime() - start);
+                    }
                 }
             }
-            stack.remove(0);
+            stack.get().remove(0);
         }
     }
 
+    /**
+     * Drops the {@link Objectify} stack of the current thread, at the end of an invocation. Each thread has its
+     * own stack, so that a transaction begun by one request is never used by another.
+     */
+    protected static void clearStack() {
+        stack.remove();
+    }
+
+    /**
+     * Assigns an id to a new entity from the {@link ObjectifyIdPool} of its kind, so that its key is known before
+     * it is written and new graphs, such as a parent and its children, may be put in a single batch. See
+     * {@link ObjectifyFactory#assignId(Object)}.
+     *
+     * @param obj the entity
+     * @param <T> the type
+     * @return the key of the entity
+     */
+    public static <T> Key<T> assignId(T obj) {
+        return getKey(factory().assignId(obj));
+    }
+
     /**
      * See {@link ObjectifyFactory#getKeyStr(Object)}.
      *
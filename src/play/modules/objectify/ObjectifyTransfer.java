@@ -0,0 +1,440 @@
+package play.modules.objectify;
+
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Category;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Email;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.KeyRange;
+import com.google.appengine.api.datastore.Link;
+import com.google.appengine.api.datastore.PhoneNumber;
+import com.google.appengine.api.datastore.PostalAddress;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.datastore.Rating;
+import com.google.appengine.api.datastore.ShortBlob;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.users.User;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import play.Logger;
+import play.Play;
+import play.exceptions.UnexpectedException;
+import play.libs.Codec;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bulk export and import of the raw entities of a kind as newline delimited JSON, one entity per line, as used by
+ * the "objectify:export" and "objectify:import" play commands via {@code controllers.ObjectifyTransfers}. Each
+ * line holds the key as a path of kind and id or name pairs (so that it does not depend on the application id),
+ * the properties as type and value pairs, and the names of unindexed properties:
+ * <pre>
+ * {"k":[["Flight",7],["Passenger",1]],"p":{"firstName":["str","Joe"],"age":["int",31]},"u":["notes"]}
+ * </pre>
+ * A kind is exported a page at a time via query cursors and imported a batch at a time, so that memory is
+ * bounded by the page or batch size, at most "objectify.transfer.batchSize" (500), whatever the size of the kind.
+ * Imported ids are reserved before they are written so that they are not allocated again to new entities, with a
+ * warning should they overwrite existing entities or overlap ids which may already have been allocated. The
+ * {@link ObjectifyIdPool}s of the imported kinds are discarded, as the ids they hold were reserved beforehand and
+ * may be amongst those imported (the pools of other instances are not, so import before serving traffic).
+ *
+ * @author David Cheong
+ * @since 19/10/2010
+ */
+public class ObjectifyTransfer {
+
+    /**
+     * Writes a page of the entities of a kind, in key order, returning the cursor of the next page.
+     *
+     * @param kind the kind
+     * @param cursor the cursor of the page or null for the first page
+     * @param limit the maximum number of entities, capped by the batch size
+     * @param writer the writer
+     * @return the cursor of the next page or null if none
+     * @throws IOException if unable to write
+     */
+    public static String exportPage(String kind, String cursor, int limit, Writer writer) throws IOException {
+        limit = limit > 0 ? Math.min(limit, getBatchSize()) : getBatchSize();
+        FetchOptions options = FetchOptions.Builder.withLimit(limit);
+        if (cursor != null && cursor.length() > 0) {
+            options.startCursor(Cursor.fromWebSafeString(cursor));
+        }
+        QueryResultIterator<Entity> iterator = getDatastore().prepare(new Query(kind)).asQueryResultIterator(options);
+        int count = 0;
+        while (iterator.hasNext()) {
+            writer.write(toJson(iterator.next()).toString());
+            writer.write('\n');
+            count++;
+        }
+        return count == limit ? iterator.getCursor().toWebSafeString() : null;
+    }
+
+    /**
+     * Reads and puts entities, one per line, in batches, reserving the ids of imported keys and discarding the
+     * {@link ObjectifyIdPool}s of the imported kinds.
+     *
+     * @param reader the reader
+     * @return the number of entities imported
+     * @throws IOException if unable to read
+     */
+    public static int importEntities(BufferedReader reader) throws IOException {
+        int batchSize = getBatchSize();
+        List<Entity> batch = new ArrayList<Entity>(batchSize);
+        Set<String> kinds = new HashSet<String>();
+        int count = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.length() == 0) {
+                continue;
+            }
+            batch.add(fromJson(line));
+            if (batch.size() >= batchSize) {
+                count += put(batch, kinds);
+            }
+        }
+        count += put(batch, kinds);
+        for (String kind : kinds) {
+            ObjectifyService.factory().resetIdPool(kind);
+        }
+        if (ObjectifyQueryCache.isEnabled()) {
+            for (String kind : kinds) {
+                ObjectifyQueryCache.invalidate(kind, null);
+            }
+        }
+        return count;
+    }
+
+    protected static int put(List<Entity> batch, Set<String> kinds) {
+        int count = batch.size();
+        if (count == 0) {
+            return 0;
+        }
+        DatastoreService ds = getDatastore();
+        Map<String, Key> groups = new HashMap<String, Key>();
+        Map<String, long[]> bounds = new HashMap<String, long[]>();
+        for (Entity entity : batch) {
+            Key key = entity.getKey();
+            kinds.add(key.getKind());
+            if (key.getId() > 0) {
+                String group = (key.getParent() != null ? KeyFactory.keyToString(key.getParent()) : "") + "/" + key.getKind();
+                long[] range = bounds.get(group);
+                if (range == null) {
+                    groups.put(group, key);
+                    bounds.put(group, new long[]{key.getId(), key.getId()});
+                }
+                else {
+                    range[0] = Math.min(range[0], key.getId());
+                    range[1] = Math.max(range[1], key.getId());
+                }
+            }
+        }
+        for (Map.Entry<String, Key> group : groups.entrySet()) {
+            long[] range = bounds.get(group.getKey());
+            reserve(ds, new KeyRange(group.getValue().getParent(), group.getValue().getKind(), range[0], range[1]));
+        }
+        ds.put(batch);
+        batch.clear();
+        return count;
+    }
+
+    /**
+     * Reserves a range of imported ids before the entities are written, so that they are not allocated to new
+     * entities, logging a warning if entities already within the range are overwritten or if the range may
+     * already have been allocated (in which case new entities given ids reserved beforehand would overwrite the
+     * imported ones).
+     *
+     * @param ds the datastore
+     * @param range the range of imported ids
+     */
+    protected static void reserve(DatastoreService ds, KeyRange range) {
+        DatastoreService.KeyRangeState state = ds.allocateIdRange(range);
+        if (state == DatastoreService.KeyRangeState.COLLISION) {
+            Logger.warn("Objectify: imported %s ids %s to %s overwrite existing entities",
+                    range.getStart().getKind(), range.getStart().getId(), range.getEnd().getId());
+        }
+        else if (state == DatastoreService.KeyRangeState.CONTENTION) {
+            Logger.warn("Objectify: imported %s ids %s to %s may already have been allocated, new entities may "
+                    + "overwrite them unless other instances are restarted",
+                    range.getStart().getKind(), range.getStart().getId(), range.getEnd().getId());
+        }
+    }
+
+    /**
+     * Returns the JSON representation of an entity.
+     *
+     * @param entity the entity
+     * @return the JSON object
+     */
+    public static JsonObject toJson(Entity entity) {
+        JsonObject json = new JsonObject();
+        json.add("k", toJson(entity.getKey()));
+        JsonObject properties = new JsonObject();
+        JsonArray unindexed = new JsonArray();
+        for (Map.Entry<String, Object> property : entity.getProperties().entrySet()) {
+            properties.add(property.getKey(), toJsonValue(property.getValue()));
+            if (entity.isUnindexedProperty(property.getKey())) {
+                unindexed.add(new JsonPrimitive(property.getKey()));
+            }
+        }
+        json.add("p", properties);
+        if (unindexed.size() > 0) {
+            json.add("u", unindexed);
+        }
+        return json;
+    }
+
+    /**
+     * Returns the entity given its JSON representation.
+     *
+     * @param line the JSON representation
+     * @return the entity
+     */
+    public static Entity fromJson(String line) {
+        try {
+            JsonObject json = new JsonParser().parse(line).getAsJsonObject();
+            Entity entity = new Entity(fromJsonKey(json.getAsJsonArray("k")));
+            Set<String> unindexed = new HashSet<String>();
+            if (json.has("u")) {
+                for (JsonElement name : json.getAsJsonArray("u")) {
+                    unindexed.add(name.getAsString());
+                }
+            }
+            for (Map.Entry<String, JsonElement> property : json.getAsJsonObject("p").entrySet()) {
+                Object value = fromJsonValue(property.getValue().getAsJsonArray());
+                if (unindexed.contains(property.getKey())) {
+                    entity.setUnindexedProperty(property.getKey(), value);
+                }
+                else {
+                    entity.setProperty(property.getKey(), value);
+                }
+            }
+            return entity;
+        }
+        catch (JsonParseException e) {
+            throw new UnexpectedException("Invalid entity: " + line, e);
+        }
+        catch (IllegalStateException e) {
+            throw new UnexpectedException("Invalid entity: " + line, e);
+        }
+    }
+
+    protected static JsonArray toJson(Key key) {
+        List<Key> path = new ArrayList<Key>();
+        for (Key current = key; current != null; current = current.getParent()) {
+            path.add(0, current);
+        }
+        JsonArray json = new JsonArray();
+        for (Key element : path) {
+            JsonArray pair = new JsonArray();
+            pair.add(new JsonPrimitive(element.getKind()));
+            pair.add(element.getName() != null ? new JsonPrimitive(element.getName()) : new JsonPrimitive(element.getId()));
+            json.add(pair);
+        }
+        return json;
+    }
+
+    protected static Key fromJsonKey(JsonArray json) {
+        Key key = null;
+        for (JsonElement element : json) {
+            JsonArray pair = element.getAsJsonArray();
+            String kind = pair.get(0).getAsString();
+            JsonPrimitive idOrName = pair.get(1).getAsJsonPrimitive();
+            key = idOrName.isNumber()
+                    ? KeyFactory.createKey(key, kind, idOrName.getAsLong())
+                    : KeyFactory.createKey(key, kind, idOrName.getAsString());
+        }
+        return key;
+    }
+
+    protected static JsonArray toJsonValue(Object value) {
+        JsonArray json = new JsonArray();
+        if (value == null) {
+            json.add(new JsonPrimitive("null"));
+        }
+        else if (value instanceof String) {
+            add(json, "str", new JsonPrimitive((String) value));
+        }
+        else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            add(json, "int", new JsonPrimitive((Number) value));
+        }
+        else if (value instanceof Double || value instanceof Float) {
+            add(json, "float", new JsonPrimitive((Number) value));
+        }
+        else if (value instanceof Boolean) {
+            add(json, "bool", new JsonPrimitive((Boolean) value));
+        }
+        else if (value instanceof Date) {
+            add(json, "date", new JsonPrimitive(((Date) value).getTime()));
+        }
+        else if (value instanceof Text) {
+            add(json, "text", new JsonPrimitive(((Text) value).getValue()));
+        }
+        else if (value instanceof Key) {
+            add(json, "key", toJson((Key) value));
+        }
+        else if (value instanceof Blob) {
+            add(json, "blob", new JsonPrimitive(Codec.encodeBASE64(((Blob) value).getBytes())));
+        }
+        else if (value instanceof ShortBlob) {
+            add(json, "sblob", new JsonPrimitive(Codec.encodeBASE64(((ShortBlob) value).getBytes())));
+        }
+        else if (value instanceof BlobKey) {
+            add(json, "blobkey", new JsonPrimitive(((BlobKey) value).getKeyString()));
+        }
+        else if (value instanceof Email) {
+            add(json, "email", new JsonPrimitive(((Email) value).getEmail()));
+        }
+        else if (value instanceof Link) {
+            add(json, "link", new JsonPrimitive(((Link) value).getValue()));
+        }
+        else if (value instanceof Category) {
+            add(json, "cat", new JsonPrimitive(((Category) value).getCategory()));
+        }
+        else if (value instanceof PhoneNumber) {
+            add(json, "phone", new JsonPrimitive(((PhoneNumber) value).getNumber()));
+        }
+        else if (value instanceof PostalAddress) {
+            add(json, "addr", new JsonPrimitive(((PostalAddress) value).getAddress()));
+        }
+        else if (value instanceof Rating) {
+            add(json, "rating", new JsonPrimitive(((Rating) value).getRating()));
+        }
+        else if (value instanceof GeoPt) {
+            JsonArray point = new JsonArray();
+            point.add(new JsonPrimitive(((GeoPt) value).getLatitude()));
+            point.add(new JsonPrimitive(((GeoPt) value).getLongitude()));
+            add(json, "geo", point);
+        }
+        else if (value instanceof User) {
+            User user = (User) value;
+            JsonArray fields = new JsonArray();
+            fields.add(new JsonPrimitive(user.getEmail()));
+            fields.add(new JsonPrimitive(user.getAuthDomain()));
+            if (user.getUserId() != null) {
+                fields.add(new JsonPrimitive(user.getUserId()));
+            }
+            add(json, "user", fields);
+        }
+        else if (value instanceof Collection) {
+            JsonArray elements = new JsonArray();
+            for (Object element : (Collection<?>) value) {
+                elements.add(toJsonValue(element));
+            }
+            add(json, "list", elements);
+        }
+        else {
+            throw new UnexpectedException("Unsupported property type for export: " + value.getClass().getName());
+        }
+        return json;
+    }
+
+    protected static void add(JsonArray json, String type, JsonElement value) {
+        json.add(new JsonPrimitive(type));
+        json.add(value);
+    }
+
+    protected static Object fromJsonValue(JsonArray json) {
+        String type = json.get(0).getAsString();
+        if ("null".equals(type)) {
+            return null;
+        }
+        JsonElement value = json.get(1);
+        if ("str".equals(type)) {
+            return value.getAsString();
+        }
+        if ("int".equals(type)) {
+            return value.getAsLong();
+        }
+        if ("float".equals(type)) {
+            return value.getAsDouble();
+        }
+        if ("bool".equals(type)) {
+            return value.getAsBoolean();
+        }
+        if ("date".equals(type)) {
+            return new Date(value.getAsLong());
+        }
+        if ("text".equals(type)) {
+            return new Text(value.getAsString());
+        }
+        if ("key".equals(type)) {
+            return fromJsonKey(value.getAsJsonArray());
+        }
+        if ("blob".equals(type)) {
+            return new Blob(Codec.decodeBASE64(value.getAsString()));
+        }
+        if ("sblob".equals(type)) {
+            return new ShortBlob(Codec.decodeBASE64(value.getAsString()));
+        }
+        if ("blobkey".equals(type)) {
+            return new BlobKey(value.getAsString());
+        }
+        if ("email".equals(type)) {
+            return new Email(value.getAsString());
+        }
+        if ("link".equals(type)) {
+            return new Link(value.getAsString());
+        }
+        if ("cat".equals(type)) {
+            return new Category(value.getAsString());
+        }
+        if ("phone".equals(type)) {
+            return new PhoneNumber(value.getAsString());
+        }
+        if ("addr".equals(type)) {
+            return new PostalAddress(value.getAsString());
+        }
+        if ("rating".equals(type)) {
+            return new Rating(value.getAsInt());
+        }
+        if ("geo".equals(type)) {
+            JsonArray point = value.getAsJsonArray();
+            return new GeoPt(point.get(0).getAsFloat(), point.get(1).getAsFloat());
+        }
+        if ("user".equals(type)) {
+            JsonArray fields = value.getAsJsonArray();
+            return fields.size() > 2
+                    ? new User(fields.get(0).getAsString(), fields.get(1).getAsString(), fields.get(2).getAsString())
+                    : new User(fields.get(0).getAsString(), fields.get(1).getAsString());
+        }
+        if ("list".equals(type)) {
+            List<Object> elements = new ArrayList<Object>();
+            for (JsonElement element : value.getAsJsonArray()) {
+                elements.add(fromJsonValue(element.getAsJsonArray()));
+            }
+            return elements;
+        }
+        throw new UnexpectedException("Unsupported property type for import: " + type);
+    }
+
+    protected static DatastoreService getDatastore() {
+        return ObjectifyService.objectify().getDatastore();
+    }
+
+    protected static int getBatchSize() {
+        return Math.max(1, Integer.parseInt(Play.configuration.getProperty("objectify.transfer.batchSize", "500")));
+    }
+
+}
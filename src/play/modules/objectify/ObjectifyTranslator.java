@@ -0,0 +1,437 @@
+package play.modules.objectify;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Text;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Indexed;
+import com.googlecode.objectify.annotation.NotSaved;
+import com.googlecode.objectify.annotation.Serialized;
+import com.googlecode.objectify.annotation.Unindexed;
+import com.googlecode.objectify.condition.Always;
+import com.googlecode.objectify.impl.EntityMetadata;
+import com.googlecode.objectify.impl.LoadContext;
+import com.googlecode.objectify.impl.Transmog;
+import com.googlecode.objectify.impl.TypeUtils;
+import com.googlecode.objectify.impl.load.Setter;
+import com.googlecode.objectify.impl.save.EmbeddedArrayFieldSaver;
+import com.googlecode.objectify.impl.save.EmbeddedClassFieldSaver;
+import com.googlecode.objectify.impl.save.EmbeddedCollectionFieldSaver;
+import com.googlecode.objectify.impl.save.LeafFieldSaver;
+import com.googlecode.objectify.impl.save.Saver;
+import play.Play;
+import play.exceptions.UnexpectedException;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Translates {@link ObjectifyModel} entities to and from raw entities using the field accessors generated by the
+ * {@link ObjectifyEnhancer}, in place of the reflective setter and saver chains of Objectify. Leaf fields (basic
+ * types and collections of basic types) are converted exactly as Objectify would, but read and written directly;
+ * the remaining fields (embedded, serialized, conditionally indexed or not saved fields, fields with other names
+ * to load, and inherited private fields) fall back to Objectify's own setters and savers, field by field.
+ * <p/>
+ * A translator is installed by {@link ObjectifyFactory#register(Class)} for each enhanced class, unless
+ * "objectify.translators" is false; unenhanced classes keep the reflective translation.
+ *
+ * @author David Cheong
+ * @since 19/10/2010
+ */
+public class ObjectifyTranslator<T> extends Transmog<T> {
+
+    protected static Field transmogField;
+    protected static Field settersField;
+
+    protected com.googlecode.objectify.ObjectifyFactory factory;
+    protected Class<T> clazz;
+    protected Boolean indexed;
+    protected Map<String, Leaf> leaves = new HashMap<String, Leaf>();
+    protected Leaf[] leafArray;
+    protected List<Saver> savers = new ArrayList<Saver>();
+    protected Map<String, Setter> setters;
+
+    /**
+     * Creates a translator for an enhanced class.
+     *
+     * @param factory the factory
+     * @param clazz the class
+     * @param fieldNames the names of the fields covered by the generated accessors
+     */
+    @SuppressWarnings({"unchecked"})
+    public ObjectifyTranslator(com.googlecode.objectify.ObjectifyFactory factory, Class<T> clazz, String[] fieldNames) {
+        super(factory, clazz);
+        this.factory = factory;
+        this.clazz = clazz;
+        try {
+            setters = (Map<String, Setter>) getSettersField().get(this);
+        }
+        catch (Exception e) {
+            throw new UnexpectedException("Unable to read the setters of " + clazz.getName(), e);
+        }
+        if (clazz.isAnnotationPresent(Indexed.class)) {
+            indexed = true;
+        }
+        else if (clazz.isAnnotationPresent(Unindexed.class)) {
+            indexed = false;
+        }
+        Map<String, Integer> indexes = new HashMap<String, Integer>();
+        for (int i = 0; i < fieldNames.length; i++) {
+            indexes.put(fieldNames[i], i);
+        }
+        for (TypeUtils.FieldMetadata metadata : TypeUtils.getPesistentFields(clazz)) {
+            Field field = metadata.field;
+            Integer index = indexes.get(field.getName());
+            if (index != null && metadata.names.size() == 1 && isLeaf(field)) {
+                leaves.put(field.getName(), new Leaf(factory, field, index));
+            }
+            else if (TypeUtils.isEmbedded(field)) {
+                if (field.getType().isArray()) {
+                    savers.add(new EmbeddedArrayFieldSaver(factory, null, clazz, field, false));
+                }
+                else if (Collection.class.isAssignableFrom(field.getType())) {
+                    savers.add(new EmbeddedCollectionFieldSaver(factory, null, clazz, field, false));
+                }
+                else {
+                    savers.add(new EmbeddedClassFieldSaver(factory, null, clazz, field, false));
+                }
+            }
+            else {
+                savers.add(new LeafFieldSaver(factory, null, clazz, field, false));
+            }
+        }
+        leafArray = leaves.values().toArray(new Leaf[leaves.size()]);
+    }
+
+    /**
+     * Installs a translator for a registered class if its field accessors were generated by the
+     * {@link ObjectifyEnhancer}.
+     *
+     * @param factory the factory
+     * @param clazz the registered class
+     * @param <T> the type
+     * @return true if installed, false otherwise
+     */
+    public static <T> boolean install(com.googlecode.objectify.ObjectifyFactory factory, Class<T> clazz) {
+        if (!ObjectifyFieldAccess.class.isAssignableFrom(clazz) || !isEnabled()) {
+            return false;
+        }
+        String fieldNames;
+        try {
+            fieldNames = (String) clazz.getDeclaredField(ObjectifyFieldAccess.FIELD_NAMES).get(null);
+        }
+        catch (NoSuchFieldException e) {
+            // a subclass of an enhanced class which was not enhanced itself
+            return false;
+        }
+        catch (IllegalAccessException e) {
+            throw new UnexpectedException(e);
+        }
+        EntityMetadata<? extends T> metadata = factory.getMetadata(clazz);
+        try {
+            getTransmogField().set(metadata, new ObjectifyTranslator<T>(factory, clazz, fieldNames.split(",")));
+        }
+        catch (IllegalAccessException e) {
+            throw new UnexpectedException(e);
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if translators are enabled, being the default.
+     *
+     * @return true if enabled, false otherwise
+     */
+    public static boolean isEnabled() {
+        return Boolean.parseBoolean(Play.configuration.getProperty("objectify.translators", "true"));
+    }
+
+    /**
+     * Returns the translator (either an <code>ObjectifyTranslator</code> or Objectify's own) of a class.
+     *
+     * @param metadata the metadata of the class
+     * @param <T> the type
+     * @return the translator
+     */
+    @SuppressWarnings({"unchecked"})
+    public static <T> Transmog<T> getTransmog(EntityMetadata<T> metadata) {
+        try {
+            return (Transmog<T>) getTransmogField().get(metadata);
+        }
+        catch (IllegalAccessException e) {
+            throw new UnexpectedException(e);
+        }
+    }
+
+    @Override
+    public void load(Entity fromEntity, T toPojo) {
+        if (toPojo.getClass() != clazz) {
+            super.load(fromEntity, toPojo);
+            return;
+        }
+        ObjectifyFieldAccess model = (ObjectifyFieldAccess) toPojo;
+        LoadContext context = null;
+        for (Map.Entry<String, Object> property : fromEntity.getProperties().entrySet()) {
+            Leaf leaf = leaves.get(property.getKey());
+            if (leaf != null) {
+                leaf.load(model, property.getValue());
+            }
+            else {
+                Setter setter = setters.get(property.getKey());
+                if (setter != null) {
+                    if (context == null) {
+                        context = new LoadContext(toPojo, fromEntity);
+                    }
+                    setter.set(toPojo, property.getValue(), context);
+                }
+            }
+        }
+        if (context != null) {
+            context.done();
+        }
+    }
+
+    @Override
+    public void save(T fromPojo, Entity toEntity) {
+        if (fromPojo.getClass() != clazz) {
+            super.save(fromPojo, toEntity);
+            return;
+        }
+        ObjectifyFieldAccess model = (ObjectifyFieldAccess) fromPojo;
+        boolean index = indexed == null || indexed;
+        for (Leaf leaf : leafArray) {
+            leaf.save(model, toEntity, index);
+        }
+        for (Saver saver : savers) {
+            saver.save(fromPojo, toEntity, index);
+        }
+    }
+
+    /**
+     * Returns true if a field holds a basic type or a collection of basic types, and has no annotation requiring
+     * Objectify's own handling.
+     *
+     * @param field the field
+     * @return true if a leaf, false otherwise
+     */
+    protected static boolean isLeaf(Field field) {
+        if (TypeUtils.isEmbedded(field) || field.isAnnotationPresent(Serialized.class) || field.isAnnotationPresent(NotSaved.class)) {
+            return false;
+        }
+        Indexed indexedAnn = field.getAnnotation(Indexed.class);
+        Unindexed unindexedAnn = field.getAnnotation(Unindexed.class);
+        if ((indexedAnn != null && !isAlways(indexedAnn.value())) || (unindexedAnn != null && !isAlways(unindexedAnn.value()))) {
+            return false;
+        }
+        Class<?> type = field.getType();
+        if (type.isArray()) {
+            return false;
+        }
+        if (Collection.class.isAssignableFrom(type)) {
+            type = TypeUtils.getComponentType(type, field.getGenericType());
+        }
+        return type != null && isBasic(type);
+    }
+
+    protected static boolean isAlways(Class<?>[] conditions) {
+        return conditions.length == 1 && conditions[0] == Always.class;
+    }
+
+    protected static boolean isBasic(Class<?> type) {
+        return !type.isArray() && !Collection.class.isAssignableFrom(type) && !Map.class.isAssignableFrom(type)
+                && type != char.class && type != Character.class && type != Object.class;
+    }
+
+    protected static Field getTransmogField() {
+        if (transmogField == null) {
+            transmogField = getField(EntityMetadata.class, "transmog");
+        }
+        return transmogField;
+    }
+
+    protected static Field getSettersField() {
+        if (settersField == null) {
+            settersField = getField(Transmog.class, "rootSetters");
+        }
+        return settersField;
+    }
+
+    protected static Field getField(Class<?> clazz, String name) {
+        try {
+            Field field = clazz.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        }
+        catch (NoSuchFieldException e) {
+            throw new UnexpectedException("Unsupported Objectify version, no field " + name + " in " + clazz.getName());
+        }
+    }
+
+    /**
+     * A leaf field, converted as by Objectify's <code>LeafSetter</code> and <code>LeafFieldSaver</code>.
+     */
+    protected static class Leaf {
+
+        protected com.googlecode.objectify.ObjectifyFactory factory;
+        protected Field field;
+        protected int index;
+        protected Class<?> type;
+        protected Class<?> componentType;
+        protected Boolean indexed;
+
+        protected Leaf(com.googlecode.objectify.ObjectifyFactory factory, Field field, int index) {
+            this.factory = factory;
+            this.field = field;
+            this.index = index;
+            this.type = field.getType();
+            if (Collection.class.isAssignableFrom(type)) {
+                componentType = TypeUtils.getComponentType(type, field.getGenericType());
+            }
+            if (field.isAnnotationPresent(Indexed.class)) {
+                indexed = true;
+            }
+            else if (field.isAnnotationPresent(Unindexed.class)) {
+                indexed = false;
+            }
+        }
+
+        @SuppressWarnings({"unchecked"})
+        protected void load(ObjectifyFieldAccess model, Object value) {
+            if (componentType == null) {
+                Object converted = importBasic(value, type);
+                if (converted == null && type.isPrimitive()) {
+                    throw new IllegalArgumentException("Cannot load null into primitive " + field);
+                }
+                model._setField(index, converted);
+            }
+            else if (value == null) {
+                model._setField(index, null);
+            }
+            else {
+                if (!(value instanceof Collection)) {
+                    throw new IllegalStateException("Cannot load non-collection value '" + value + "' into " + field);
+                }
+                Collection<?> values = (Collection<?>) value;
+                Collection<Object> target = (Collection<Object>) model._getField(index);
+                if (target == null) {
+                    target = newCollection(values.size());
+                    model._setField(index, target);
+                }
+                for (Object element : values) {
+                    target.add(importBasic(element, componentType));
+                }
+            }
+        }
+
+        @SuppressWarnings({"unchecked"})
+        protected Collection<Object> newCollection(int size) {
+            if (!type.isInterface()) {
+                return (Collection<Object>) TypeUtils.newInstance(type);
+            }
+            else if (SortedSet.class.isAssignableFrom(type)) {
+                return new TreeSet<Object>();
+            }
+            else if (Set.class.isAssignableFrom(type)) {
+                return new HashSet<Object>((int) (size * 1.5));
+            }
+            return new ArrayList<Object>(size);
+        }
+
+        protected void save(ObjectifyFieldAccess model, Entity entity, boolean index) {
+            Object value = model._getField(this.index);
+            if (indexed != null) {
+                index = indexed;
+            }
+            if (componentType != null) {
+                if (value == null || ((Collection<?>) value).isEmpty()) {
+                    return;
+                }
+                Collection<?> values = (Collection<?>) value;
+                List<Object> list = new ArrayList<Object>(values.size());
+                for (Object element : values) {
+                    list.add(prepareForSave(element));
+                }
+                value = list;
+            }
+            else {
+                value = prepareForSave(value);
+            }
+            if (index) {
+                entity.setProperty(field.getName(), value);
+            }
+            else {
+                entity.setUnindexedProperty(field.getName(), value);
+            }
+        }
+
+        protected Object prepareForSave(Object value) {
+            if (value instanceof String) {
+                return ((String) value).length() > 500 ? new Text((String) value) : value;
+            }
+            else if (value instanceof Enum) {
+                return ((Enum<?>) value).name();
+            }
+            else if (value instanceof Key) {
+                return factory.typedKeyToRawKey((Key<?>) value);
+            }
+            return value;
+        }
+
+        @SuppressWarnings({"unchecked"})
+        protected Object importBasic(Object value, Class<?> toType) {
+            if (value == null) {
+                return null;
+            }
+            else if (toType.isAssignableFrom(value.getClass())) {
+                return value;
+            }
+            else if (toType == String.class) {
+                return value instanceof Text ? ((Text) value).getValue() : value.toString();
+            }
+            else if (Enum.class.isAssignableFrom(toType)) {
+                return Enum.valueOf((Class<Enum>) toType, value.toString());
+            }
+            else if (toType == Boolean.TYPE && value instanceof Boolean) {
+                return value;
+            }
+            else if (value instanceof Number) {
+                Number number = (Number) value;
+                if (toType == Byte.class || toType == Byte.TYPE) {
+                    return number.byteValue();
+                }
+                else if (toType == Short.class || toType == Short.TYPE) {
+                    return number.shortValue();
+                }
+                else if (toType == Integer.class || toType == Integer.TYPE) {
+                    return number.intValue();
+                }
+                else if (toType == Long.class || toType == Long.TYPE) {
+                    return number.longValue();
+                }
+                else if (toType == Float.class || toType == Float.TYPE) {
+                    return number.floatValue();
+                }
+                else if (toType == Double.class || toType == Double.TYPE) {
+                    return number.doubleValue();
+                }
+            }
+            else if (Key.class.isAssignableFrom(toType) && value instanceof com.google.appengine.api.datastore.Key) {
+                return factory.rawKeyToTypedKey((com.google.appengine.api.datastore.Key) value);
+            }
+            else if (value instanceof Blob && toType.isArray() && toType.getComponentType() == Byte.TYPE) {
+                return ((Blob) value).getBytes();
+            }
+            throw new IllegalArgumentException("Don't know how to convert " + value.getClass() + " to " + toType);
+        }
+
+    }
+
+}
@@ -0,0 +1,212 @@
+package play.modules.objectify;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Transaction;
+import play.Logger;
+import play.Play;
+import play.exceptions.UnexpectedException;
+
+import java.util.ConcurrentModificationException;
+import java.util.Random;
+
+/**
+ * Runs {@link Work} in a transaction, retrying it with jittered exponential backoff when the transaction fails
+ * with a {@link ConcurrentModificationException} because another request wrote to the same entity group. The
+ * {@link com.googlecode.objectify.Objectify} stack of {@link ObjectifyService} is always restored to its depth
+ * before the work, whether the work commits, fails or is retried.
+ * <p/>
+ * Each conflict is recorded in the {@link ObjectifyMetrics} under the "contention" operation and the root key of
+ * the entity group, so that hot groups are visible in the plugin status (the entity group is known from the
+ * datastore operations of the transaction, so metrics must be enabled). Work which still conflicts after the
+ * last retry is recorded as an error and the exception is rethrown.
+ * <p/>
+ * Defaults are read from "objectify.txn.retries" (3), "objectify.txn.backoff" (the base delay in milliseconds,
+ * 20) and "objectify.txn.backoff.max" (1000) in application.conf. At most "objectify.txn.contention.groups"
+ * (100) entity groups are recorded individually, the remainder being recorded as "other".
+ *
+ * @author David Cheong
+ * @since 19/10/2010
+ * @see ObjectifyService#inTxn(ObjectifyTxnRunner.Work)
+ */
+public class ObjectifyTxnRunner {
+
+    public static final String CONTENTION = "contention";
+
+    protected static final String OTHER_GROUP = "other";
+
+    protected static Random random = new Random();
+
+    protected static ThreadLocal<Attempt> attempt = new ThreadLocal<Attempt>();
+
+    /**
+     * Runs the work in a transaction, retrying up to "objectify.txn.retries" times on contention.
+     *
+     * @param work the work
+     * @param <T> the type of result
+     * @return the result of the work
+     */
+    public static <T> T run(Work<T> work) {
+        return run(work, Integer.parseInt(Play.configuration.getProperty("objectify.txn.retries", "3")));
+    }
+
+    /**
+     * Runs the work in a transaction, retrying up to the given number of times on contention.
+     *
+     * @param work the work
+     * @param retries the maximum number of retries
+     * @param <T> the type of result
+     * @return the result of the work
+     */
+    public static <T> T run(Work<T> work, int retries) {
+        Attempt outer = attempt.get();
+        try {
+            for (int i = 0; ; i++) {
+                int depth = ObjectifyService.stack.get().size();
+                Attempt current = new Attempt();
+                attempt.set(current);
+                try {
+                    current.transaction = ObjectifyService.beginTxn().getTxn();
+                    T result = work.run();
+                    ObjectifyService.commit();
+                    return result;
+                }
+                catch (ConcurrentModificationException e) {
+                    String group = recordContention(current.group);
+                    if (i >= retries) {
+                        ObjectifyMetrics.recordError(CONTENTION, group);
+                        throw e;
+                    }
+                    long delay = getDelay(i);
+                    Logger.debug("Objectify: contention on entity group %s, retrying in %s ms (attempt %s of %s)", group, delay, i + 1, retries);
+                    unwind(depth);
+                    sleep(delay);
+                }
+                finally {
+                    unwind(depth);
+                }
+            }
+        }
+        finally {
+            if (outer != null) {
+                attempt.set(outer);
+            }
+            else {
+                attempt.remove();
+            }
+        }
+    }
+
+    /**
+     * Notes the entity group of a key read or written within a transaction, invoked by the
+     * {@link MetricsDatastoreService}.
+     *
+     * @param transaction the transaction
+     * @param key the key
+     */
+    public static void touch(Transaction transaction, Key key) {
+        Attempt current = attempt.get();
+        if (current != null && current.group == null && transaction == current.transaction && key != null) {
+            Key root = key;
+            while (root.getParent() != null) {
+                root = root.getParent();
+            }
+            if (root.isComplete()) {
+                current.group = root.toString();
+            }
+        }
+    }
+
+    /**
+     * Returns the delay before the given retry, chosen uniformly between zero and an exponentially growing bound
+     * so that conflicting requests do not retry in lockstep.
+     *
+     * @param retry the retry, from zero
+     * @return the delay in milliseconds
+     */
+    protected static long getDelay(int retry) {
+        long base = Long.parseLong(Play.configuration.getProperty("objectify.txn.backoff", "20"));
+        long max = Long.parseLong(Play.configuration.getProperty("objectify.txn.backoff.max", "1000"));
+        long bound = Math.min(max, base << Math.min(retry, 20));
+        synchronized (random) {
+            return bound > 0 ? (long) (random.nextDouble() * bound) : 0;
+        }
+    }
+
+    protected static String recordContention(String group) {
+        if (group == null) {
+            group = OTHER_GROUP;
+        }
+        if (ObjectifyMetrics.isEnabled()) {
+            int maxGroups = Integer.parseInt(Play.configuration.getProperty("objectify.txn.contention.groups", "100"));
+            if (!ObjectifyMetrics.stats.containsKey(CONTENTION + "." + group) && countGroups() >= maxGroups) {
+                group = OTHER_GROUP;
+            }
+            ObjectifyMetrics.getStat(CONTENTION, group).record(0, 0);
+        }
+        return group;
+    }
+
+    protected static int countGroups() {
+        int count = 0;
+        for (ObjectifyMetrics.Stat stat : ObjectifyMetrics.stats.values()) {
+            if (CONTENTION.equals(stat.getOp())) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Rolls back any transaction left open above the given depth of the Objectify stack, as when the work or the
+     * commit fails, restoring the stack to the given depth.
+     *
+     * @param depth the depth
+     */
+    protected static void unwind(int depth) {
+        while (ObjectifyService.stack.get().size() > depth) {
+            try {
+                ObjectifyService.rollback();
+            }
+            catch (RuntimeException e) {
+                Logger.warn(e, "Objectify: unable to rollback transaction");
+                ObjectifyService.stack.get().remove(0);
+            }
+        }
+    }
+
+    protected static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnexpectedException("Interrupted whilst retrying transaction", e);
+        }
+    }
+
+    /**
+     * The work of a transaction, which may be run more than once and should therefore read all the state it
+     * depends upon within the transaction and have no other side effects.
+     */
+    public interface Work<T> {
+
+        /**
+         * Runs the work within the current transaction of the {@link ObjectifyService}.
+         *
+         * @return the result, if any
+         */
+        T run();
+
+    }
+
+    /**
+     * The transaction of the current attempt and the entity group it has touched.
+     */
+    protected static class Attempt {
+
+        protected Transaction transaction;
+        protected String group;
+
+    }
+
+}
@@ -0,0 +1,353 @@
+package play.modules.objectify;
+
+import com.google.appengine.api.datastore.Entity;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Objectify;
+import play.exceptions.UnexpectedException;
+
+import javax.persistence.Id;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.Version;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Optimistic concurrency for entities with a numeric field annotated with {@link Version}. A versioned entity is
+ * put within a short transaction which reads the stored version, fails with an {@link OptimisticLockException}
+ * if it differs from the version of the instance (as when another request saved the entity since it was read or
+ * since the form editing it was rendered), and otherwise increments the version and writes the entity. No
+ * transaction is therefore held across the read-modify-write of an edit, only across the check and the write.
+ * <p/>
+ * New entities (with a null id, or an id from the {@link ObjectifyIdPool} not yet written) are written without a
+ * check, starting at version 1, and may be put in a single batch with other new entities. If a transaction is already
+ * open, the check is made within it instead. Should the short transaction itself conflict with another writer it
+ * is retried by the {@link ObjectifyTxnRunner}, whose check then detects the newer version.
+ * <p/>
+ * A {@link java.util.Date} or long field annotated with {@link LastModified} is also stamped with the current time
+ * whenever the entity is saved. Either the version or the last modified time serve as a cheap content version
+ * for conditional requests, see {@link ObjectifyETags}.
+ *
+ * @author David Cheong
+ * @since 19/10/2010
+ * @see ObjectifyService#put(Object)
+ */
+public class ObjectifyVersioning {
+
+    protected static Map<Class<?>, Field[]> fields = new ConcurrentHashMap<Class<?>, Field[]>();
+
+    /**
+     * Returns true if the entity has a field annotated with {@link Version}.
+     *
+     * @param obj the entity
+     * @return true if versioned, false otherwise
+     */
+    public static boolean isVersioned(Object obj) {
+        return obj != null && getVersionField(obj.getClass()) != null;
+    }
+
+    /**
+     * Returns the field annotated with {@link Version} or null if none.
+     *
+     * @param clazz the entity class
+     * @return the version field or null
+     */
+    public static Field getVersionField(Class<?> clazz) {
+        return getFields(clazz)[1];
+    }
+
+    /**
+     * Returns the version of the entity or null if not versioned.
+     *
+     * @param obj the entity
+     * @return the version or null
+     */
+    public static Long getVersion(Object obj) {
+        Field field = getFields(obj.getClass())[1];
+        return field != null ? getVersion(field, obj) : null;
+    }
+
+    /**
+     * Returns the last modified time of the entity in milliseconds or 0 if unknown.
+     *
+     * @param obj the entity
+     * @return the last modified time or 0
+     */
+    public static long getLastModified(Object obj) {
+        Object value = getValue(getFields(obj.getClass())[2], obj);
+        if (value instanceof Date) {
+            return ((Date) value).getTime();
+        }
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    /**
+     * Stamps the field annotated with {@link LastModified}, if any, with the current time.
+     *
+     * @param obj the entity
+     */
+    public static void stamp(Object obj) {
+        Field field = getFields(obj.getClass())[2];
+        if (field != null) {
+            long now = System.currentTimeMillis();
+            try {
+                if (Date.class.equals(field.getType())) {
+                    field.set(obj, new Date(now));
+                }
+                else {
+                    field.set(obj, now);
+                }
+            }
+            catch (IllegalAccessException e) {
+                throw new UnexpectedException(e);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the entity is known to be new, having a null id or an id assigned from the
+     * {@link ObjectifyIdPool} which has not been written yet.
+     *
+     * @param obj the entity
+     * @return true if new, false otherwise
+     */
+    public static boolean isNew(Object obj) {
+        Field idField = getFields(obj.getClass())[0];
+        return idField == null || getValue(idField, obj) == null || ObjectifyService.factory().isUnwritten(obj);
+    }
+
+    /**
+     * Puts a versioned entity, checking and incrementing its version.
+     *
+     * @param obj the entity
+     * @param <T> the type
+     * @return the key
+     * @throws OptimisticLockException if the entity was saved by another request since it was read
+     */
+    public static <T> Key<T> put(T obj) {
+        if (isNew(obj)) {
+            return putNew(obj);
+        }
+        return put(Collections.singletonList(obj)).keySet().iterator().next();
+    }
+
+    /**
+     * Puts versioned entities which are not new, checking and incrementing their versions. The stored versions of
+     * an entity group are read in a single batch get and its entities written in a single batch put, within a
+     * short transaction per entity group (or within the transaction already open, which must then span every
+     * entity). When the entities span several groups, all stored versions are first read in a single batch get
+     * so that a stale entity fails the put before any group is written.
+     *
+     * @param objs the entities
+     * @param <T> the type
+     * @return the keys and entities
+     * @throws OptimisticLockException if an entity was saved by another request since it was read
+     */
+    public static <T> Map<Key<T>, T> put(List<T> objs) {
+        Map<Key<T>, T> keys = new LinkedHashMap<Key<T>, T>();
+        Objectify objectify = ObjectifyService.objectify();
+        if (objectify.getTxn() != null) {
+            keys.putAll(put(objectify, objs));
+            return keys;
+        }
+        Map<com.google.appengine.api.datastore.Key, List<T>> groups = groupByEntityGroup(objs);
+        if (groups.size() > 1) {
+            check(objectify, objs, objectify.getDatastore().get(getRawKeys(objs)));
+        }
+        for (final List<T> group : groups.values()) {
+            keys.putAll(ObjectifyTxnRunner.run(new ObjectifyTxnRunner.Work<Map<Key<T>, T>>() {
+                public Map<Key<T>, T> run() {
+                    return put(ObjectifyService.objectify(), group);
+                }
+            }));
+        }
+        return keys;
+    }
+
+    /**
+     * Puts a new or unversioned entity without a check, starting the version of a versioned entity and assigning
+     * a pooled id if required.
+     *
+     * @param obj the entity
+     * @param <T> the type
+     * @return the key
+     */
+    public static <T> Key<T> putNew(T obj) {
+        return putNew(Collections.singletonList(obj)).keySet().iterator().next();
+    }
+
+    /**
+     * Puts new or unversioned entities in a single batch without a check, starting the version of versioned
+     * entities and assigning pooled ids where required.
+     *
+     * @param objs the entities
+     * @param <T> the type
+     * @return the keys and entities
+     */
+    public static <T> Map<Key<T>, T> putNew(List<T> objs) {
+        long[] versions = new long[objs.size()];
+        for (int i = 0; i < versions.length; i++) {
+            T obj = objs.get(i);
+            Field field = getFields(obj.getClass())[1];
+            if (field != null) {
+                versions[i] = getVersion(field, obj);
+                setVersion(field, obj, versions[i] + 1);
+            }
+            ObjectifyService.factory().assignId(obj);
+        }
+        try {
+            Map<Key<T>, T> keys = ObjectifyService.objectify().put(objs);
+            for (T obj : objs) {
+                ObjectifyService.factory().markWritten(obj);
+            }
+            return keys;
+        }
+        catch (RuntimeException e) {
+            for (int i = 0; i < versions.length; i++) {
+                Field field = getFields(objs.get(i).getClass())[1];
+                if (field != null) {
+                    setVersion(field, objs.get(i), versions[i]);
+                }
+            }
+            throw e;
+        }
+    }
+
+    protected static <T> Map<Key<T>, T> put(Objectify objectify, List<T> objs) {
+        long[] versions = new long[objs.size()];
+        for (int i = 0; i < versions.length; i++) {
+            versions[i] = getVersion(getFields(objs.get(i).getClass())[1], objs.get(i));
+        }
+        try {
+            check(objectify, objs, objectify.getDatastore().get(objectify.getTxn(), getRawKeys(objs)));
+            for (int i = 0; i < versions.length; i++) {
+                setVersion(getFields(objs.get(i).getClass())[1], objs.get(i), versions[i] + 1);
+            }
+            return objectify.put(objs);
+        }
+        catch (RuntimeException e) {
+            for (int i = 0; i < versions.length; i++) {
+                setVersion(getFields(objs.get(i).getClass())[1], objs.get(i), versions[i]);
+            }
+            throw e;
+        }
+    }
+
+    protected static void check(Objectify objectify, List<?> objs,
+                                Map<com.google.appengine.api.datastore.Key, Entity> entities) {
+        for (Object obj : objs) {
+            Field field = getFields(obj.getClass())[1];
+            long version = getVersion(field, obj);
+            com.google.appengine.api.datastore.Key key = objectify.getFactory().getRawKey(obj);
+            Entity entity = entities.get(key);
+            Object value = entity != null ? entity.getProperty(field.getName()) : null;
+            long stored = value instanceof Number ? ((Number) value).longValue() : 0;
+            if (stored != version) {
+                throw new OptimisticLockException("Entity " + key + " was modified concurrently, expected version "
+                        + version + " but found " + stored);
+            }
+        }
+    }
+
+    protected static List<com.google.appengine.api.datastore.Key> getRawKeys(List<?> objs) {
+        List<com.google.appengine.api.datastore.Key> keys = new ArrayList<com.google.appengine.api.datastore.Key>();
+        for (Object obj : objs) {
+            keys.add(ObjectifyService.factory().getRawKey(obj));
+        }
+        return keys;
+    }
+
+    protected static <T> Map<com.google.appengine.api.datastore.Key, List<T>> groupByEntityGroup(List<T> objs) {
+        Map<com.google.appengine.api.datastore.Key, List<T>> groups =
+                new LinkedHashMap<com.google.appengine.api.datastore.Key, List<T>>();
+        for (T obj : objs) {
+            com.google.appengine.api.datastore.Key root = ObjectifyService.factory().getRawKey(obj);
+            while (root.getParent() != null) {
+                root = root.getParent();
+            }
+            List<T> group = groups.get(root);
+            if (group == null) {
+                group = new ArrayList<T>();
+                groups.put(root, group);
+            }
+            group.add(obj);
+        }
+        return groups;
+    }
+
+    /**
+     * Returns the id, version and last modified fields of a class, the latter being null if not present.
+     *
+     * @param clazz the entity class
+     * @return the id, version and last modified fields
+     */
+    protected static Field[] getFields(Class<?> clazz) {
+        Field[] result = fields.get(clazz);
+        if (result == null) {
+            result = new Field[3];
+            Class<?> current = clazz;
+            while (current != null && !current.equals(Object.class)) {
+                for (Field field : current.getDeclaredFields()) {
+                    if (result[0] == null && field.isAnnotationPresent(Id.class)) {
+                        field.setAccessible(true);
+                        result[0] = field;
+                    }
+                    else if (result[1] == null && field.isAnnotationPresent(Version.class)) {
+                        Class<?> type = field.getType();
+                        if (!long.class.equals(type) && !Long.class.equals(type) && !int.class.equals(type) && !Integer.class.equals(type)) {
+                            throw new UnexpectedException("The @Version field of " + clazz.getName() + " must be an int or long");
+                        }
+                        field.setAccessible(true);
+                        result[1] = field;
+                    }
+                    else if (result[2] == null && field.isAnnotationPresent(LastModified.class)) {
+                        Class<?> type = field.getType();
+                        if (!Date.class.equals(type) && !long.class.equals(type) && !Long.class.equals(type)) {
+                            throw new UnexpectedException("The @LastModified field of " + clazz.getName() + " must be a Date or long");
+                        }
+                        field.setAccessible(true);
+                        result[2] = field;
+                    }
+                }
+                current = current.getSuperclass();
+            }
+            fields.put(clazz, result);
+        }
+        return result;
+    }
+
+    protected static Object getValue(Field field, Object obj) {
+        try {
+            return field != null ? field.get(obj) : null;
+        }
+        catch (IllegalAccessException e) {
+            throw new UnexpectedException(e);
+        }
+    }
+
+    protected static long getVersion(Field field, Object obj) {
+        Object value = getValue(field, obj);
+        return value != null ? ((Number) value).longValue() : 0;
+    }
+
+    protected static void setVersion(Field field, Object obj, long version) {
+        try {
+            Class<?> type = field.getType();
+            if (long.class.equals(type) || Long.class.equals(type)) {
+                field.set(obj, version);
+            }
+            else {
+                field.set(obj, (int) version);
+            }
+        }
+        catch (IllegalAccessException e) {
+            throw new UnexpectedException(e);
+        }
+    }
+
+}
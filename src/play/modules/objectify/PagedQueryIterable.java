@@ -0,0 +1,124 @@
+package play.modules.objectify;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.Query;
+import play.exceptions.UnexpectedException;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * An iterable which reads a query one chunk at a time using cursors. As soon as a chunk is received, the next
+ * one is requested in the background (see {@link Utils#submit(Callable)}) so that the datastore RPC overlaps with
+ * the consumption of the current chunk. The offset, cursor and limit of the query are honoured.
+ *
+ * @author David Cheong
+ * @since 19/10/2010
+ * @see Utils#asPagedIterable(Query, int)
+ */
+public class PagedQueryIterable<T> implements Iterable<T> {
+
+    protected Query<T> query;
+    protected int chunkSize;
+
+    /**
+     * Creates a paged iterable over the supplied query.
+     *
+     * @param query the query
+     * @param chunkSize the number of results per chunk
+     */
+    public PagedQueryIterable(Query<T> query, int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+        }
+        this.query = query;
+        this.chunkSize = chunkSize;
+    }
+
+    public Iterator<T> iterator() {
+        return new PagedIterator();
+    }
+
+    /**
+     * Iterates over the chunks of the query, keeping at most one chunk in flight.
+     */
+    protected class PagedIterator implements Iterator<T> {
+
+        protected Objectify objectify;
+        protected PreparedQuery preparedQuery;
+        protected Integer remaining;
+        protected Iterator<Entity> current;
+        protected Future<QueryResultList<Entity>> next;
+        protected int requested;
+
+        public PagedIterator() {
+            objectify = Utils.getObjectify(query);
+            preparedQuery = objectify.getDatastore().prepare(objectify.getTxn(), Utils.getRawQuery(query));
+            FetchOptions options = Utils.getFetchOptions(query);
+            remaining = options.getLimit();
+            fetch(options);
+        }
+
+        public boolean hasNext() {
+            while (current == null || !current.hasNext()) {
+                if (next == null) {
+                    return false;
+                }
+                QueryResultList<Entity> page;
+                try {
+                    page = next.get();
+                }
+                catch (InterruptedException e) {
+                    throw new UnexpectedException("Interrupted whilst fetching the next chunk", e);
+                }
+                catch (ExecutionException e) {
+                    throw new UnexpectedException("Unable to fetch the next chunk: " + e.getCause().getMessage(), e.getCause());
+                }
+                next = null;
+                if (remaining != null) {
+                    remaining -= page.size();
+                }
+                if (page.size() >= requested && (remaining == null || remaining > 0)) {
+                    fetch(FetchOptions.Builder.withStartCursor(page.getCursor()));
+                }
+                current = page.iterator();
+            }
+            return true;
+        }
+
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return Utils.<T>toObject(objectify, current.next());
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException("Paged query results may not be removed");
+        }
+
+        /**
+         * Requests the next chunk in the background.
+         *
+         * @param options the options positioning the chunk
+         */
+        protected void fetch(final FetchOptions options) {
+            requested = remaining == null ? chunkSize : Math.min(chunkSize, remaining);
+            options.limit(requested).prefetchSize(requested).chunkSize(requested);
+            next = Utils.submit(new Callable<QueryResultList<Entity>>() {
+                public QueryResultList<Entity> call() throws Exception {
+                    return preparedQuery.asQueryResultList(options);
+                }
+            });
+        }
+
+    }
+
+}
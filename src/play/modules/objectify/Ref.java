@@ -0,0 +1,235 @@
+package play.modules.objectify;
+
+import com.googlecode.objectify.Key;
+import play.Play;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link Key} which can be dereferenced, for use as the type of relation fields in place of <code>Key&lt;T&gt;</code>
+ * (and as the element type of collections and arrays of keys), with the same binding, loading and CRUD support:
+ * <pre>
+ * public Ref&lt;Flight&gt; flight;
+ * ...
+ * Flight flight = passenger.flight.get();
+ * </pre>
+ * The refs of the entities loaded during an invocation are pending until the first of them is dereferenced, at
+ * which point the pending refs are resolved in a single batch get of up to "objectify.refs.batchSize" (500) keys.
+ * The entities are held for the remainder of the invocation along with those of any {@link IncludeQuery}, so that
+ * listing the relations of a page of entities costs a single RPC whether the relations are dereferenced in the
+ * controller or in the template. Entities put or deleted during the invocation are forgotten, and resolved again
+ * if dereferenced. Refs dereferenced within a transaction, or outside of an invocation (as on the worker threads
+ * of the {@link ObjectifyScanner}), are read on their own.
+ * <p/>
+ * Keys read from the datastore are always instances of <code>Ref</code> (see
+ * {@link ObjectifyFactory#rawKeyToTypedKey(com.google.appengine.api.datastore.Key)}), so a ref equals and may be
+ * used in place of the key it refers to; keys built in code are converted with {@link #of(Key)}.
+ *
+ * @author David Cheong
+ * @since 19/10/2010
+ */
+public class Ref<T> extends Key<T> {
+
+    private static final long serialVersionUID = 1L;
+
+    protected static final Field[] NO_FIELDS = new Field[0];
+
+    protected static Map<Class<?>, Field[]> refFields = new ConcurrentHashMap<Class<?>, Field[]>();
+
+    protected static ThreadLocal<Set<Key<Object>>> pending = new ThreadLocal<Set<Key<Object>>>();
+
+    /** For serialization */
+    protected Ref() {
+    }
+
+    /**
+     * Creates a ref with a long id.
+     *
+     * @param kind the kind
+     * @param id the id
+     */
+    public Ref(Class<? extends T> kind, long id) {
+        super(kind, id);
+    }
+
+    /**
+     * Creates a ref with a String name.
+     *
+     * @param kind the kind
+     * @param name the name
+     */
+    public Ref(Class<? extends T> kind, String name) {
+        super(kind, name);
+    }
+
+    /**
+     * Creates a ref with a parent and a long id.
+     *
+     * @param parent the parent key
+     * @param kind the kind
+     * @param id the id
+     */
+    public Ref(Key<?> parent, Class<? extends T> kind, long id) {
+        super(parent, kind, id);
+    }
+
+    /**
+     * Creates a ref with a parent and a String name.
+     *
+     * @param parent the parent key
+     * @param kind the kind
+     * @param name the name
+     */
+    public Ref(Key<?> parent, Class<? extends T> kind, String name) {
+        super(parent, kind, name);
+    }
+
+    /**
+     * Returns a ref to the entity of the given key, or null if the key is null.
+     *
+     * @param key the key, which is returned as is if already a ref
+     * @param <T> the type
+     * @return the ref or null
+     */
+    public static <T> Ref<T> of(Key<T> key) {
+        if (key == null || key instanceof Ref) {
+            return (Ref<T>) key;
+        }
+        Ref<T> ref = new Ref<T>();
+        ref.kindClassName = key.getKindClassName();
+        ref.parent = key.getParent();
+        ref.id = key.getId();
+        ref.name = key.getName();
+        return ref;
+    }
+
+    /**
+     * Returns the entity referred to, resolving it along with every other pending ref of the invocation if it has
+     * not been resolved yet. Within a transaction the entity is always read in the transaction, on its own, as it
+     * is outside of an invocation.
+     *
+     * @return the entity, or null if it does not exist
+     */
+    public T get() {
+        if (IncludeQuery.isInTxn() || !ObjectifyMetrics.isInvocation()) {
+            return ObjectifyService.objectify().find(this);
+        }
+        if (!IncludeQuery.isIncluded(this)) {
+            resolve(this);
+        }
+        return IncludeQuery.<T>getIncluded(this);
+    }
+
+    /**
+     * Returns true if the entity referred to has been resolved during the current invocation, in which case
+     * {@link #get()} does not require an RPC.
+     *
+     * @return true if resolved, false otherwise
+     */
+    public boolean isResolved() {
+        return IncludeQuery.isIncluded(this);
+    }
+
+    /**
+     * Loads the entities of the pending refs, along with the given ref, in a single batch get of at most
+     * "objectify.refs.batchSize" (500) keys; any further pending refs are left for the next batch.
+     *
+     * @param ref the ref being dereferenced
+     */
+    @SuppressWarnings({"unchecked"})
+    protected static void resolve(Ref<?> ref) {
+        int batchSize = Integer.parseInt(Play.configuration.getProperty("objectify.refs.batchSize", "500"));
+        Map<Key<?>, Object> included = IncludeQuery.getIncluded();
+        Set<Key<Object>> keys = new LinkedHashSet<Key<Object>>();
+        keys.add((Key<Object>) ref);
+        Set<Key<Object>> current = pending.get();
+        if (current != null) {
+            for (Iterator<Key<Object>> iterator = current.iterator(); iterator.hasNext() && keys.size() < batchSize; ) {
+                Key<Object> key = iterator.next();
+                iterator.remove();
+                if (!included.containsKey(key)) {
+                    keys.add(key);
+                }
+            }
+            if (current.isEmpty()) {
+                pending.remove();
+            }
+        }
+        Map<Key<Object>, Object> entities = ObjectifyService.get(keys);
+        for (Key<Object> key : keys) {
+            Object entity = entities.get(key);
+            included.put(key, entity != null ? entity : IncludeQuery.MISSING);
+        }
+    }
+
+    /**
+     * Marks the refs held by the given entity, in fields of type <code>Ref</code> or collections or arrays of
+     * <code>Ref</code>, as pending, to be resolved together when any is dereferenced. Invoked as entities are
+     * loaded, but only within an invocation as pending refs are only forgotten at its end.
+     *
+     * @param entity the entity
+     */
+    public static void register(Object entity) {
+        Field[] fields = getRefFields(entity.getClass());
+        if (fields.length == 0 || !ObjectifyMetrics.isInvocation()) {
+            return;
+        }
+        Set<Key<Object>> keys = pending.get();
+        if (keys == null) {
+            keys = new LinkedHashSet<Key<Object>>();
+            pending.set(keys);
+        }
+        for (Field field : fields) {
+            try {
+                IncludeQuery.addKeys(keys, field.get(entity));
+            }
+            catch (IllegalAccessException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Returns the fields of a class holding refs.
+     *
+     * @param clazz the class
+     * @return the fields
+     */
+    protected static Field[] getRefFields(Class<?> clazz) {
+        Field[] fields = refFields.get(clazz);
+        if (fields == null) {
+            List<Field> found = new ArrayList<Field>();
+            for (Class<?> c = clazz; c != null && !c.equals(Object.class); c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    Class<?> type = field.getType();
+                    if (Collection.class.isAssignableFrom(type) || type.isArray()) {
+                        type = Utils.getManyFieldRawClass(field);
+                    }
+                    if (type != null && Ref.class.isAssignableFrom(type)) {
+                        field.setAccessible(true);
+                        found.add(field);
+                    }
+                }
+            }
+            fields = found.isEmpty() ? NO_FIELDS : found.toArray(new Field[found.size()]);
+            refFields.put(clazz, fields);
+        }
+        return fields;
+    }
+
+    /**
+     * Forgets the pending refs, at the end of an invocation.
+     */
+    public static void clear() {
+        pending.remove();
+    }
+
+}
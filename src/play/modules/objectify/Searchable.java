@@ -0,0 +1,18 @@
+package play.modules.objectify;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a field of an {@link ObjectifyModel} to be included in its keyword search index.
+ *
+ * @author David Cheong
+ * @since 19/10/2010
+ * @see ObjectifySearch
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface Searchable {
+}
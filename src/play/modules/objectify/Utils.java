@@ -1,8 +1,16 @@
 package play.modules.objectify;
 
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.QueryResultIterable;
 import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.apphosting.api.ApiProxy;
+import com.googlecode.objectify.Objectify;
 import com.googlecode.objectify.Query;
+import com.googlecode.objectify.helper.TranslatingQueryResultIterator;
+import play.Logger;
+import play.Play;
 import play.exceptions.UnexpectedException;
 
 import javax.persistence.Id;
@@ -11,6 +19,15 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * A class containing convenient utilities.
@@ -20,6 +37,21 @@ import java.util.List;
  */
 public class Utils extends play.utils.Utils {
 
+    /**
+     * Cache of the reflected fields of query implementations.
+     */
+    protected static Map<String, Field> queryFields = new ConcurrentHashMap<String, Field>();
+
+    /**
+     * The executor for background work, null if not yet created or if threads may not be created.
+     */
+    protected static ExecutorService executor;
+
+    /**
+     * True if background threads are not permitted by the environment (e.g. on AppSpot).
+     */
+    protected static volatile boolean executorDisabled;
+
     /**
      * Obtains the field specified (supports dot notation).
      *
@@ -257,6 +289,32 @@ public class Utils extends play.utils.Utils {
         return asList(query.iterator());
     }
 
+    /**
+     * Copies the items in the query supplied into a list by running the query keys-only and batch getting the
+     * entities, so that entities present in the session or global cache are served from memory and only the
+     * misses are read from the datastore.
+     *
+     * @param query the query
+     * @param <T> the type
+     * @return the list
+     */
+    public static <T> List<T> asListByKeys(Query<T> query) {
+        return ObjectifyService.getList(query.listKeys());
+    }
+
+    /**
+     * Copies the items in the query supplied into a list, either via {@link #asListByKeys(Query)} if keys only
+     * or via {@link #asList(Query)} otherwise.
+     *
+     * @param query the query
+     * @param keysOnly true if the query should be run keys-only
+     * @param <T> the type
+     * @return the list
+     */
+    public static <T> List<T> asList(Query<T> query, boolean keysOnly) {
+        return keysOnly ? asListByKeys(query) : asList(query);
+    }
+
     /**
      * Copies the items in the iterable supplied into a list.
      *
@@ -288,4 +346,266 @@ public class Utils extends play.utils.Utils {
         return list;
     }
 
+
+    /**
+     * Copies the items in the query supplied into a list, streaming the results with the given batching options.
+     *
+     * @param query the query
+     * @param sizeHint the expected number of results used to size the list, or 0 if unknown
+     * @param prefetchSize the number of results fetched by the first RPC, or 0 for the datastore default
+     * @param chunkSize the number of results fetched by each subsequent RPC, or 0 for the datastore default
+     * @param max the maximum number of results, or 0 for the query limit
+     * @param <T> the type
+     * @return the list
+     */
+    public static <T> List<T> asList(Query<T> query, int sizeHint, int prefetchSize, int chunkSize, int max) {
+        if (sizeHint <= 0) {
+            sizeHint = max > 0 ? Math.min(max, Math.max(prefetchSize, chunkSize)) : Math.max(prefetchSize, chunkSize);
+        }
+        List<T> list = new ArrayList<T>(Math.max(sizeHint, 10));
+        QueryResultIterator<T> itr = iterator(query, prefetchSize, chunkSize, max);
+        while (itr.hasNext()) {
+            list.add(itr.next());
+        }
+        return list;
+    }
+
+    /**
+     * Returns an iterable which reads the query supplied one chunk at a time, fetching the next chunk in the
+     * background whilst the current one is consumed.
+     *
+     * @param query the query
+     * @param chunkSize the number of results per chunk
+     * @param <T> the type
+     * @return the iterable
+     * @see PagedQueryIterable
+     */
+    public static <T> Iterable<T> asPagedIterable(Query<T> query, int chunkSize) {
+        return new PagedQueryIterable<T>(query, chunkSize);
+    }
+
+    /**
+     * Runs the query supplied with the given batching options.
+     *
+     * @param query the query
+     * @param prefetchSize the number of results fetched by the first RPC, or 0 for the datastore default
+     * @param chunkSize the number of results fetched by each subsequent RPC, or 0 for the datastore default
+     * @param max the maximum number of results, or 0 for the query limit
+     * @param <T> the type
+     * @return the iterator
+     */
+    public static <T> QueryResultIterator<T> iterator(Query<T> query, int prefetchSize, int chunkSize, int max) {
+        FetchOptions options = getFetchOptions(query);
+        if (prefetchSize > 0) {
+            options.prefetchSize(prefetchSize);
+        }
+        if (chunkSize > 0) {
+            options.chunkSize(chunkSize);
+        }
+        if (max > 0 && (options.getLimit() == null || options.getLimit() > max)) {
+            options.limit(max);
+        }
+        final Objectify objectify = getObjectify(query);
+        QueryResultIterator<Entity> entities = objectify.getDatastore()
+                .prepare(objectify.getTxn(), getRawQuery(query))
+                .asQueryResultIterator(options);
+        return new TranslatingQueryResultIterator<Entity, T>(entities) {
+            @Override
+            protected T translate(Entity entity) {
+                return Utils.<T>toObject(objectify, entity);
+            }
+        };
+    }
+
+    /**
+     * Translates a raw datastore {@link Entity} into its registered entity class.
+     *
+     * @param objectify the Objectify instance
+     * @param entity the raw entity
+     * @param <T> the type
+     * @return the entity instance
+     */
+    public static <T> T toObject(Objectify objectify, Entity entity) {
+        return objectify.getFactory().<T>getMetadata(entity.getKey()).toObject(entity, objectify);
+    }
+
+    /**
+     * Returns the raw datastore query underlying an Objectify query.
+     *
+     * @param query the query
+     * @return the raw query
+     */
+    public static com.google.appengine.api.datastore.Query getRawQuery(Query<?> query) {
+        return (com.google.appengine.api.datastore.Query) getQueryField(query, "actual");
+    }
+
+    /**
+     * Returns the {@link Objectify} instance an Objectify query was created from.
+     *
+     * @param query the query
+     * @return the Objectify instance
+     */
+    public static Objectify getObjectify(Query<?> query) {
+        return (Objectify) getQueryField(query, "ofy");
+    }
+
+    /**
+     * Returns new {@link FetchOptions} reflecting the limit, offset and cursor of an Objectify query.
+     *
+     * @param query the query
+     * @return the fetch options
+     */
+    public static FetchOptions getFetchOptions(Query<?> query) {
+        FetchOptions options = FetchOptions.Builder.withDefaults();
+        int limit = (Integer) getQueryField(query, "limit");
+        int offset = (Integer) getQueryField(query, "offset");
+        Cursor cursor = (Cursor) getQueryField(query, "cursor");
+        if (limit > 0) {
+            options.limit(limit);
+        }
+        if (offset > 0) {
+            options.offset(offset);
+        }
+        if (cursor != null) {
+            options.startCursor(cursor);
+        }
+        return options;
+    }
+
+    /**
+     * Reads a field of the Objectify query implementation, which does not otherwise expose its state.
+     *
+     * @param query the query
+     * @param name the field name
+     * @return the field value
+     */
+    protected static Object getQueryField(Query<?> query, String name) {
+        if (query instanceof IncludeQuery) {
+            query = ((IncludeQuery<?>) query).query;
+        }
+        if (query instanceof CachedQuery) {
+            query = ((CachedQuery<?>) query).query;
+        }
+        String fieldKey = query.getClass().getName() + "." + name;
+        Field field = queryFields.get(fieldKey);
+        if (field == null) {
+            Class<?> clazz = query.getClass();
+            while (field == null && clazz != null) {
+                try {
+                    field = clazz.getDeclaredField(name);
+                    field.setAccessible(true);
+                }
+                catch (NoSuchFieldException e) {
+                    clazz = clazz.getSuperclass();
+                }
+            }
+            if (field == null) {
+                throw new UnexpectedException("Unsupported query implementation: " + query.getClass().getName());
+            }
+            queryFields.put(fieldKey, field);
+        }
+        try {
+            return field.get(query);
+        }
+        catch (IllegalAccessException e) {
+            throw new UnexpectedException("Unable to read query field: " + fieldKey, e);
+        }
+    }
+
+    /**
+     * Submits a task to run in the background, with access to the datastore of the calling thread. If the
+     * environment does not permit background threads (e.g. on AppSpot), the task is run immediately on the
+     * calling thread instead. The number of threads is bounded by "objectify.threads" (defaults to 10).
+     *
+     * @param task the task
+     * @param <T> the result type
+     * @return the future result
+     */
+    public static <T> Future<T> submit(Callable<T> task) {
+        FutureTask<T> future = new FutureTask<T>(task);
+        if (!execute(future)) {
+            future.run();
+        }
+        return future;
+    }
+
+    /**
+     * Runs a task in the background on the shared executor, with access to the datastore of the calling thread,
+     * unless the environment does not permit background threads (e.g. on AppSpot).
+     *
+     * @param task the task
+     * @return true if submitted, false if background threads are not permitted
+     */
+    public static boolean execute(final Runnable task) {
+        final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+        ExecutorService executor = getExecutor();
+        if (executor == null) {
+            return false;
+        }
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    ApiProxy.setEnvironmentForCurrentThread(environment);
+                    try {
+                        task.run();
+                    }
+                    finally {
+                        ApiProxy.clearEnvironmentForCurrentThread();
+                    }
+                }
+            });
+            return true;
+        }
+        catch (SecurityException e) {
+            Logger.info("Background threads are not permitted, running tasks on the calling thread");
+            disableExecutor();
+        }
+        catch (RejectedExecutionException e) {
+            // the executor was shut down as the application stopped
+        }
+        return false;
+    }
+
+    /**
+     * Shuts down the shared executor as the application stops, letting tasks already submitted complete. The
+     * executor is created again should the application start once more.
+     */
+    public static synchronized void shutdownExecutor() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * Discards the shared executor once background threads are found not to be permitted, so that later tasks
+     * run on the calling thread without attempting to start a thread again.
+     */
+    protected static synchronized void disableExecutor() {
+        executorDisabled = true;
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Returns the shared executor for background work, creating it if required.
+     *
+     * @return the executor or null if background threads are not permitted
+     */
+    protected static synchronized ExecutorService getExecutor() {
+        if (executor == null && !executorDisabled) {
+            int threads = Integer.parseInt(Play.configuration.getProperty("objectify.threads", "10"));
+            executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "objectify-worker");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
 }